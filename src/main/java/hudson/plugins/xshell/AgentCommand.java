@@ -0,0 +1,577 @@
+package hudson.plugins.xshell;
+
+import hudson.Launcher;
+import hudson.Proc;
+import hudson.remoting.RemoteOutputStream;
+import hudson.remoting.VirtualChannel;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import hudson.util.StreamTaskListener;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.security.MasterToSlaveCallable;
+import jenkins.util.SystemProperties;
+import org.apache.commons.io.output.TeeOutputStream;
+
+/**
+ * Runs a child on its agent together with its output pump, kill patterns and deadline.
+ *
+ * <p>Normally the child's output crosses the channel byte for byte and is scanned on the controller,
+ * so a kill waits for the output to arrive and every agent's output costs controller CPU. This
+ * callable instead launches the child in the agent JVM and scans its output there. The controller
+ * only receives the console output in batches of up to {@link #BATCH_SIZE} bytes or {@link
+ * #BATCH_INTERVAL} milliseconds, and the outcome once the child has exited.
+ *
+ * <p>When the output is spooled, the spool and its index are written on the agent as well, and the
+ * head and tail lines of the console are picked there, so only the lines that are shown cross the
+ * channel. The index comes back with the outcome.
+ *
+ * <p>On the controller the child is represented by the {@link Handle} returned by {@link #start}.
+ */
+final class AgentCommand extends MasterToSlaveCallable<AgentCommand.Outcome, IOException> {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger LOG = Logger.getLogger(AgentCommand.class.getName());
+
+    /** Most output bytes held on the agent before they are sent. */
+    static final int BATCH_SIZE = 64 * 1024;
+
+    /** Most milliseconds output is held on the agent before it is sent. */
+    static final long BATCH_INTERVAL =
+            SystemProperties.getLong(AgentCommand.class.getName() + ".batchInterval", 200L);
+
+    private final List<String> cmds;
+    private final boolean[] masks;
+    private final Map<String, String> envs;
+    private final String pwd;
+    private final String regexToKill;
+    private final String charset;
+    private final long timeLimit;
+    private final long gracePeriod;
+    private final String timeLabel;
+    private final long idleTimeout;
+    private final String idleLabel;
+    private final String cookie;
+    private final boolean warmSession;
+    private final String pidFile;
+    private final String spoolFile;
+    private final int headLines;
+    private final int tailLines;
+    private final RemoteOutputStream out;
+
+    /**
+     * @param cmds the command line.
+     * @param masks which arguments are hidden when the command line is printed.
+     * @param envs environment of the child.
+     * @param pwd working directory of the child.
+     * @param regexToKill kill regexes, compiled on the agent.
+     * @param charset charset used to decode the output for matching.
+     * @param timeLimit time allocated in milliseconds, 0 for no limit.
+     * @param gracePeriod time after the termination until the child is killed again, 0 for never.
+     * @param timeLabel the time allocated as configured, for the console.
+     * @param idleTimeout quiet time in milliseconds until the child is terminated, 0 for no limit.
+     * @param idleLabel the idle timeout as configured, for the console.
+     * @param cookie identifies the child on its agent.
+     * @param warmSession whether to run the child in a pooled {@link ShellSession} when possible.
+     * @param pidFile the pid file of the {@link ProcessGroup} the command line starts, {@code null}
+     *     if it does not start one.
+     * @param spoolFile where the full output is spooled, {@code null} to send all of it to the console.
+     * @param headLines number of lines shown before eliding, when the output is spooled.
+     * @param tailLines number of lines shown at the end, when the output is spooled.
+     * @param out the console on the controller.
+     */
+    AgentCommand(
+            final List<String> cmds,
+            final boolean[] masks,
+            final Map<String, String> envs,
+            final String pwd,
+            final String regexToKill,
+            final Charset charset,
+            final long timeLimit,
+            final long gracePeriod,
+            final String timeLabel,
+            final long idleTimeout,
+            final String idleLabel,
+            final String cookie,
+            final boolean warmSession,
+            final String pidFile,
+            final String spoolFile,
+            final int headLines,
+            final int tailLines,
+            final OutputStream out) {
+        this.cmds = cmds;
+        this.masks = masks;
+        this.envs = envs;
+        this.pwd = pwd;
+        this.regexToKill = regexToKill;
+        this.charset = charset.name();
+        this.timeLimit = timeLimit;
+        this.gracePeriod = gracePeriod;
+        this.timeLabel = timeLabel;
+        this.idleTimeout = idleTimeout;
+        this.idleLabel = idleLabel;
+        this.cookie = cookie;
+        this.warmSession = warmSession;
+        this.pidFile = pidFile;
+        this.spoolFile = spoolFile;
+        this.headLines = headLines;
+        this.tailLines = tailLines;
+        this.out = new RemoteOutputStream(out);
+    }
+
+    /**
+     * Start the child on its agent.
+     *
+     * @param channel channel to the agent.
+     * @return the child as seen from the controller.
+     */
+    Handle start(final VirtualChannel channel) throws IOException {
+        return new Handle(channel, cookie, channel.callAsync(this));
+    }
+
+    @Override
+    public Outcome call() throws IOException {
+        final Running running = new Running();
+        if (RUNNING.putIfAbsent(cookie, Optional.of(running)) != null) {
+            // Aborted before it got here: the child is killed as soon as it is launched.
+            RUNNING.put(cookie, Optional.of(running));
+            running.abort();
+        }
+        try {
+            return running.run();
+        } finally {
+            RUNNING.remove(cookie);
+        }
+    }
+
+    /** The command line as the launcher prints it, with masked arguments hidden. */
+    private String commandLine() {
+        final StringBuilder sb = new StringBuilder("[").append(new File(pwd).getName()).append("] $");
+        for (int i = 0; i < cmds.size(); i++) {
+            final String arg = masks != null && i < masks.length && masks[i] ? "********" : cmds.get(i);
+            sb.append(' ').append(arg.indexOf(' ') >= 0 ? '"' + arg + '"' : arg);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Children running in this JVM, by cookie. An abort that comes before its child leaves an empty
+     * entry, which the child finds when it starts, or which expires after {@link #TOMBSTONE_TTL}
+     * milliseconds if the child never comes.
+     */
+    private static final Map<String, Optional<Running>> RUNNING = new ConcurrentHashMap<>();
+
+    private static final long TOMBSTONE_TTL = TimeUnit.MINUTES.toMillis(10);
+
+    /** Scheduler of this JVM, which may be an agent without the Jenkins timer. */
+    private static final class Scheduler {
+        static final ScheduledExecutorService INSTANCE = Executors.newSingleThreadScheduledExecutor(
+                new NamingThreadFactory(new DaemonThreadFactory(), "XShell agent scheduler"));
+    }
+
+    /** Where process groups are killed, which blocks until they are gone. */
+    private static final class Killer {
+        static final ExecutorService INSTANCE = Executors.newCachedThreadPool(
+                new NamingThreadFactory(new DaemonThreadFactory(), "XShell agent killer"));
+    }
+
+    /** The agent side of one child. */
+    private final class Running {
+        private final AtomicBoolean terminated = new AtomicBoolean();
+        private final AtomicBoolean killed = new AtomicBoolean();
+        private final AtomicBoolean idleTimedOut = new AtomicBoolean();
+        private final BatchingOutputStream batch = new BatchingOutputStream(out);
+        private volatile Proc proc;
+        private volatile boolean inSession;
+        private volatile String killReason = "Aborted by User";
+        private volatile String spoolIndex;
+
+        Outcome run() throws IOException {
+            final Charset cs = Charset.forName(charset);
+            final KillPatterns patterns = KillPatterns.compile(regexToKill);
+            final HeadTailOutputStream shown =
+                    spoolFile != null ? new HeadTailOutputStream(batch, headLines, tailLines, cs) : null;
+            final SpoolOutputStream spool = spoolFile != null
+                    ? new SpoolOutputStream(new FileOutputStream(spoolFile), patterns, cs, this::indexed)
+                    : null;
+            final XShellOutputStream pump = new XShellOutputStream(
+                    spool != null ? new TeeOutputStream(shown, spool) : batch,
+                    patterns,
+                    cs,
+                    pattern -> {
+                        if (shown != null) {
+                            showMatch(shown);
+                        }
+                        terminate("Matched <" + pattern + "> in output. Terminated");
+                    });
+            final ScheduledFuture<?> flusher = Scheduler.INSTANCE.scheduleWithFixedDelay(
+                    batch::drainQuietly, BATCH_INTERVAL, BATCH_INTERVAL, TimeUnit.MILLISECONDS);
+            XShellWatchdog.Deadline deadline = null;
+            XShellWatchdog.Deadline idle = null;
+            try {
+                proc = warmSession ? ShellSession.launch(cmds, envs, pwd, pump) : null;
+                if (proc != null) {
+                    inSession = true;
+                    print(commandLine() + "  # in a warm shell session");
+                } else {
+                    proc = new Launcher.LocalLauncher(new StreamTaskListener(batch, cs))
+                            .launch()
+                            .cmds(cmds)
+                            .masks(masks)
+                            .envs(envs)
+                            .stdout(pump)
+                            .pwd(pwd)
+                            .start();
+                }
+                if (terminated.get()) {
+                    kill();
+                }
+                if (timeLimit > 0) {
+                    deadline = XShellWatchdog.schedule(
+                            Scheduler.INSTANCE, timeLimit, gracePeriod, new XShellWatchdog.Target() {
+                                @Override
+                                public void terminate() {
+                                    Running.this.terminate("Timed out <" + timeLabel + ">. Terminated");
+                                }
+
+                                @Override
+                                public void kill() {
+                                    final String message = "Still running " + TimeLimit.format(gracePeriod)
+                                            + " after termination. Killed";
+                                    print(message);
+                                    submitKill(true, message);
+                                }
+                            });
+                }
+                if (idleTimeout > 0) {
+                    idle = XShellWatchdog.scheduleIdle(
+                            Scheduler.INSTANCE,
+                            idleTimeout,
+                            gracePeriod,
+                            pump::getLastOutput,
+                            new XShellWatchdog.Target() {
+                                @Override
+                                public void terminate() {
+                                    if (!terminated.get()) {
+                                        idleTimedOut.set(true);
+                                    }
+                                    Running.this.terminate("No output for <" + idleLabel + ">. Terminated");
+                                }
+
+                                @Override
+                                public void kill() {
+                                    final String message = "Still running " + TimeLimit.format(gracePeriod)
+                                            + " after termination. Killed";
+                                    print(message);
+                                    submitKill(true, message);
+                                }
+                            });
+                }
+                final int exitCode = proc.join();
+                return new Outcome(
+                        exitCode,
+                        terminated.get(),
+                        idleTimedOut.get(),
+                        pump.getBytes(),
+                        pump.getLines(),
+                        pump.getBusyNanos(),
+                        spoolIndex);
+            } catch (InterruptedException e) {
+                // The controller went away while waiting; do not leave the child behind.
+                abort();
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the child", e);
+            } finally {
+                if (deadline != null) {
+                    deadline.cancel();
+                }
+                if (idle != null) {
+                    idle.cancel();
+                }
+                flusher.cancel(false);
+                try {
+                    if (spool != null) {
+                        spool.close();
+                        shown.close();
+                    }
+                } finally {
+                    batch.drain();
+                }
+            }
+        }
+
+        /** Write the index next to the spool, and keep it for the outcome. */
+        private void indexed(final SpoolIndex index) throws IOException {
+            final String text = index.format();
+            Files.write(Paths.get(spoolFile + ".idx"), text.getBytes(SpoolIndex.INDEX_CHARSET));
+            spoolIndex = text;
+        }
+
+        private void showMatch(final HeadTailOutputStream shown) {
+            try {
+                shown.matched();
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Failed to show the matching line", e);
+            }
+        }
+
+        /** Kill the child on request of the controller, or once it is launched if it is not yet. */
+        void abort() {
+            terminated.set(true);
+            kill();
+        }
+
+        private void terminate(final String message) {
+            if (terminated.compareAndSet(false, true)) {
+                killReason = message;
+                print(message);
+                if (proc != null) {
+                    kill();
+                }
+            }
+        }
+
+        private void kill() {
+            if (proc != null && killed.compareAndSet(false, true)) {
+                submitKill(false, killReason);
+            }
+        }
+
+        /**
+         * Kill from the scheduler, never from the output pump that the child may be blocked on. A
+         * child in a process group is killed through it, from a thread of its own since that waits
+         * for the group to go away; a session kills its own shell.
+         *
+         * @param reason why the child is killed, for the flight recorder.
+         */
+        private void submitKill(final boolean force, final String reason) {
+            final Proc p = proc;
+            if (p == null) {
+                return;
+            }
+            final XShellEvents.KillSpan span = XShellEvents.beginKill(reason, force);
+            final boolean group = pidFile != null && !inSession;
+            (group ? Killer.INSTANCE : Scheduler.INSTANCE).submit(() -> {
+                try {
+                    final ProcessGroup.Report report = group ? ProcessGroup.kill(null, pidFile, force) : null;
+                    if (report == null) {
+                        p.kill();
+                    } else {
+                        print(report.describe(span.millis()));
+                    }
+                    span.end(report);
+                } catch (IOException | InterruptedException e) {
+                    LOG.log(Level.WARNING, "Failed to kill the child process", e);
+                }
+            });
+        }
+
+        private void print(final String message) {
+            LOG.log(Level.FINEST, message);
+            try {
+                batch.write((message + "\n").getBytes(Charset.forName(charset)));
+                batch.drain();
+            } catch (IOException e) {
+                LOG.log(Level.FINE, "Failed to write to the console", e);
+            }
+        }
+    }
+
+    /**
+     * Holds the output on the agent until a batch is full or the flusher drains it. Flushes from the
+     * pump, which flushes every chunk, are ignored.
+     */
+    private static final class BatchingOutputStream extends OutputStream {
+        private final OutputStream out;
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(BATCH_SIZE);
+
+        BatchingOutputStream(final OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(final byte[] b, final int off, final int len) throws IOException {
+            buffer.write(b, off, len);
+            if (buffer.size() >= BATCH_SIZE) {
+                drain();
+            }
+        }
+
+        @Override
+        public void flush() {
+            // Batched; see drain().
+        }
+
+        /** Send the held output now. */
+        synchronized void drain() throws IOException {
+            if (buffer.size() > 0) {
+                buffer.writeTo(out);
+                buffer.reset();
+                out.flush();
+            }
+        }
+
+        void drainQuietly() {
+            try {
+                drain();
+            } catch (IOException e) {
+                LOG.log(Level.FINE, "Failed to send the output", e);
+            }
+        }
+    }
+
+    /** How a child ended, sent back to the controller. */
+    static final class Outcome implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final int exitCode;
+        final boolean terminated;
+        final boolean idleTimedOut;
+        final long bytes;
+        final long lines;
+
+        /** Nanoseconds the pump spent forwarding and scanning the output. */
+        final long outputNanos;
+
+        /** The {@link SpoolIndex#format() index} of the spool, {@code null} if the output was not spooled. */
+        final String spoolIndex;
+
+        Outcome(
+                final int exitCode,
+                final boolean terminated,
+                final boolean idleTimedOut,
+                final long bytes,
+                final long lines,
+                final long outputNanos,
+                final String spoolIndex) {
+            this.exitCode = exitCode;
+            this.terminated = terminated;
+            this.idleTimedOut = idleTimedOut;
+            this.bytes = bytes;
+            this.lines = lines;
+            this.outputNanos = outputNanos;
+            this.spoolIndex = spoolIndex;
+        }
+    }
+
+    /** Kills a child running on this agent. */
+    private static final class Abort extends MasterToSlaveCallable<Boolean, IOException> {
+        private static final long serialVersionUID = 1L;
+
+        private final String cookie;
+
+        Abort(final String cookie) {
+            this.cookie = cookie;
+        }
+
+        @Override
+        public Boolean call() {
+            final Optional<Running> running = RUNNING.computeIfAbsent(cookie, k -> {
+                Scheduler.INSTANCE.schedule(
+                        () -> RUNNING.remove(k, Optional.empty()), TOMBSTONE_TTL, TimeUnit.MILLISECONDS);
+                return Optional.empty();
+            });
+            running.ifPresent(Running::abort);
+            return running.isPresent();
+        }
+    }
+
+    /** A child running on its agent, as seen from the controller. */
+    static final class Handle extends Proc {
+        private final VirtualChannel channel;
+        private final String cookie;
+        private final Future<Outcome> outcome;
+
+        private Handle(final VirtualChannel channel, final String cookie, final Future<Outcome> outcome) {
+            this.channel = channel;
+            this.cookie = cookie;
+            this.outcome = outcome;
+        }
+
+        @Override
+        public boolean isAlive() {
+            return !outcome.isDone();
+        }
+
+        @Override
+        public void kill() throws IOException, InterruptedException {
+            if (!outcome.isDone()) {
+                channel.call(new Abort(cookie));
+            }
+        }
+
+        @Override
+        public int join() throws IOException, InterruptedException {
+            return getOutcome().exitCode;
+        }
+
+        /** Wait for the child to exit. */
+        Outcome getOutcome() throws IOException, InterruptedException {
+            try {
+                return outcome.get();
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof IOException
+                        ? (IOException) e.getCause()
+                        : new IOException("Failed to run the command on the agent", e.getCause());
+            }
+        }
+
+        /** The outcome if the child has exited, else {@code null}. */
+        Outcome getOutcomeNow() {
+            if (!outcome.isDone()) {
+                return null;
+            }
+            try {
+                return outcome.get();
+            } catch (ExecutionException e) {
+                return null;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+
+        @Override
+        public InputStream getStdout() {
+            return null;
+        }
+
+        @Override
+        public InputStream getStderr() {
+            return null;
+        }
+
+        @Override
+        public OutputStream getStdin() {
+            return null;
+        }
+    }
+}
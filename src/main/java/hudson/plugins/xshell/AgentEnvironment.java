@@ -0,0 +1,73 @@
+package hudson.plugins.xshell;
+
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.Computer;
+import java.io.IOException;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The variables of a child that its agent does not already have.
+ *
+ * <p>A child inherits the environment of the agent that launches it, with the variables sent with
+ * the launch on top. The environment of a build starts from that of its node, which the controller
+ * keeps a copy of for every connected agent, so most of its variables are the same as the agent's
+ * and need not be sent. Only those that are new or different go with each launch.
+ *
+ * <p>This holds for a plain launcher, which is also the only kind a step lets the agent launch a
+ * child with itself, but not for a decorated launcher, which may run the child in a container that
+ * has an environment of its own, so the whole environment is sent through those.
+ */
+final class AgentEnvironment {
+
+    private static final Logger LOG = Logger.getLogger(AgentEnvironment.class.getName());
+
+    private AgentEnvironment() {}
+
+    /**
+     * Whether a launcher runs the child on its node as it is, without a decorator that wraps the
+     * command or changes where it runs.
+     */
+    static boolean isPlain(final Launcher launcher) {
+        return launcher instanceof Launcher.LocalLauncher || launcher instanceof Launcher.RemoteLauncher;
+    }
+
+    /**
+     * The environment to send with a launch.
+     *
+     * @param env the environment of the child.
+     * @param workspace a path on the agent.
+     * @param launcher the launcher of the step, or of the agent when it launches the child itself.
+     */
+    static Map<String, String> delta(final EnvVars env, final FilePath workspace, final Launcher launcher)
+            throws IOException {
+        if (!isPlain(launcher)) {
+            return env;
+        }
+        final Computer computer = workspace.toComputer();
+        if (computer == null) {
+            return env;
+        }
+        final EnvVars base;
+        try {
+            base = computer.getEnvironment();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return env;
+        }
+        final EnvVars delta = new EnvVars();
+        for (Map.Entry<String, String> e : env.entrySet()) {
+            if (!e.getValue().equals(base.get(e.getKey()))) {
+                delta.put(e.getKey(), e.getValue());
+            }
+        }
+        LOG.log(
+                Level.FINE,
+                "Sending {0} of {1} variables to {2}",
+                new Object[] {delta.size(), env.size(), computer.getName()});
+        return delta;
+    }
+}
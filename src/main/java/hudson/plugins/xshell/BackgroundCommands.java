@@ -0,0 +1,40 @@
+package hudson.plugins.xshell;
+
+import hudson.Extension;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Children that were left running once ready, by build. They are stopped when their build
+ * completes, so a server started by a step lives exactly as long as the build that uses it.
+ */
+final class BackgroundCommands {
+
+    private static final Map<String, List<XShellProcess>> RUNNING = new ConcurrentHashMap<>();
+
+    private BackgroundCommands() {}
+
+    static void add(final Run<?, ?> run, final XShellProcess process) {
+        RUNNING.computeIfAbsent(run.getExternalizableId(), k -> new CopyOnWriteArrayList<>())
+                .add(process);
+    }
+
+    /** Stops the background children of a build when it completes. */
+    @Extension
+    public static final class Reaper extends RunListener<Run<?, ?>> {
+        @Override
+        public void onCompleted(final Run<?, ?> run, final TaskListener listener) {
+            final List<XShellProcess> processes = RUNNING.remove(run.getExternalizableId());
+            if (processes != null) {
+                for (XShellProcess process : processes) {
+                    process.stopInBackground(listener);
+                }
+            }
+        }
+    }
+}
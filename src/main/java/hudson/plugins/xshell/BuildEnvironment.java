@@ -0,0 +1,128 @@
+package hudson.plugins.xshell;
+
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.model.AbstractBuild;
+import hudson.model.Environment;
+import hudson.model.EnvironmentContributingAction;
+import hudson.model.Node;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.slaves.NodeProperty;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+
+/**
+ * The environment of a freestyle build, computed once for all the xshell steps of the build.
+ *
+ * <p>Computing the environment asks every environment contributor, build wrapper and contributing
+ * action of the build again and copies the whole environment of the node, for every step. Its
+ * result only changes when those change, so it is kept together with the variables it was
+ * computed from: those of each environment contributing action of the build, of each environment
+ * set up by its wrappers and of the global and node properties, and the result of the build so
+ * far. These are asked for again by every step, which is cheap, and compared by value, so the
+ * environment is computed again after an earlier step injected variables or changed those of an
+ * action in place, or after a property was reconfigured. Environment contributors are taken to
+ * give the same variables for the whole build. Snapshots are dropped when their build completes.
+ */
+final class BuildEnvironment {
+
+    private static final Logger LOG = Logger.getLogger(BuildEnvironment.class.getName());
+
+    /** Whether the environment is computed once per build rather than once per step. */
+    static final boolean ENABLED = !SystemProperties.getBoolean(BuildEnvironment.class.getName() + ".disabled");
+
+    private static final Map<String, BuildEnvironment> SNAPSHOTS = new ConcurrentHashMap<>();
+
+    /** The variables the environment was computed from, compared by value. */
+    private final List<Object> inputs;
+
+    private final EnvVars env;
+    private final Map<String, String> buildVariables;
+
+    private BuildEnvironment(
+            final List<Object> inputs, final EnvVars env, final Map<String, String> buildVariables) {
+        this.inputs = inputs;
+        this.env = env;
+        this.buildVariables = Collections.unmodifiableMap(new HashMap<>(buildVariables));
+    }
+
+    /** The environment of a build, from its snapshot if it is still current. */
+    static BuildEnvironment of(final AbstractBuild<?, ?> build, final TaskListener listener)
+            throws IOException, InterruptedException {
+        final boolean cached = ENABLED && build.isBuilding();
+        final List<Object> inputs = cached ? inputs(build) : null;
+        if (cached) {
+            final BuildEnvironment snapshot = SNAPSHOTS.get(build.getExternalizableId());
+            if (snapshot != null && snapshot.inputs.equals(inputs)) {
+                return snapshot;
+            }
+        }
+        final BuildEnvironment snapshot =
+                new BuildEnvironment(inputs, build.getEnvironment(listener), build.getBuildVariables());
+        if (cached) {
+            LOG.log(Level.FINE, "Computed the environment of {0}", build.getExternalizableId());
+            SNAPSHOTS.put(build.getExternalizableId(), snapshot);
+        }
+        return snapshot;
+    }
+
+    private static List<Object> inputs(final AbstractBuild<?, ?> build) throws IOException, InterruptedException {
+        final List<Object> inputs = new ArrayList<>();
+        for (EnvironmentContributingAction action : build.getActions(EnvironmentContributingAction.class)) {
+            final EnvVars vars = new EnvVars();
+            action.buildEnvironment(build, vars);
+            inputs.add(vars);
+        }
+        for (Environment environment : build.getEnvironments()) {
+            final EnvVars vars = new EnvVars();
+            environment.buildEnvVars(vars);
+            inputs.add(vars);
+        }
+        inputs.add(properties(Jenkins.get().getGlobalNodeProperties()));
+        final Node node = build.getBuiltOn();
+        if (node != null) {
+            inputs.add(properties(node.getNodeProperties()));
+        }
+        inputs.add(build.getResult());
+        return inputs;
+    }
+
+    private static EnvVars properties(final Iterable<? extends NodeProperty<?>> properties)
+            throws IOException, InterruptedException {
+        final EnvVars vars = new EnvVars();
+        for (NodeProperty<?> property : properties) {
+            property.buildEnvVars(vars, TaskListener.NULL);
+        }
+        return vars;
+    }
+
+    /** The variables expanded in the command line, a copy that the caller may change. */
+    EnvVars getEnvironment() {
+        return new EnvVars(env);
+    }
+
+    /** The variables given to the child but not expanded. */
+    Map<String, String> getBuildVariables() {
+        return buildVariables;
+    }
+
+    /** Drops the snapshot of a build when it completes. */
+    @Extension
+    public static final class Expiry extends RunListener<Run<?, ?>> {
+        @Override
+        public void onCompleted(final Run<?, ?> run, final TaskListener listener) {
+            SNAPSHOTS.remove(run.getExternalizableId());
+        }
+    }
+}
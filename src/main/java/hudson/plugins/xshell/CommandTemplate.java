@@ -0,0 +1,173 @@
+package hudson.plugins.xshell;
+
+import hudson.EnvVars;
+
+/**
+ * A command line with its file separators already converted for one OS flavor.
+ *
+ * <p>Separators depend only on the configured command line and the OS of the node, so they are
+ * converted once when the template is built. Rendering the template for a build only expands the
+ * build variables and rewrites the variable syntax, both in a single pass without regexes.
+ * Instances are immutable and are cached by {@link XShellBuilder}.
+ */
+final class CommandTemplate {
+
+    private final String converted;
+    private final boolean unix;
+
+    /**
+     * @param commandLine the configured command line, may be {@code null}.
+     * @param unix {@code true} to render for a Unix node, {@code false} for Windows.
+     */
+    CommandTemplate(final String commandLine, final boolean unix) {
+        this.converted = commandLine == null
+                ? null
+                : convertSeparator(commandLine, unix ? XShellBuilder.UNIX_SEP : XShellBuilder.WINDOWS_SEP);
+        this.unix = unix;
+    }
+
+    /** The command line with converted separators, before expansion. */
+    String getConverted() {
+        return converted;
+    }
+
+    /**
+     * Render the command line for a build.
+     *
+     * @param env variables to expand.
+     * @return the expanded command line with the variable syntax of the node, or {@code null} if
+     *     there is no command line.
+     */
+    String render(final EnvVars env) {
+        if (converted == null) {
+            return null;
+        }
+        final String expanded = env.expand(converted);
+        return unix ? convertEnvVarsToUnix(expanded) : convertEnvVarsToWindows(expanded);
+    }
+
+    /**
+     * Replace {@code /} and {@code \} with the given separator in every whitespace separated token
+     * that does not look like a URL.
+     */
+    static String convertSeparator(final String cmdLine, final String newSeparator) {
+        final int length = cmdLine.length();
+        final StringBuilder sb = new StringBuilder(length + 16);
+        int i = 0;
+        while (i < length) {
+            if (isWhitespace(cmdLine.charAt(i))) {
+                sb.append(cmdLine.charAt(i++));
+                continue;
+            }
+            int end = i;
+            while (end < length && !isWhitespace(cmdLine.charAt(end))) {
+                end++;
+            }
+            if (isUrl(cmdLine, i, end)) {
+                sb.append(cmdLine, i, end);
+            } else {
+                for (int k = i; k < end; k++) {
+                    char c = cmdLine.charAt(k);
+                    if (c == '/' || c == '\\') {
+                        sb.append(newSeparator);
+                    } else {
+                        sb.append(c);
+                    }
+                }
+            }
+            i = end;
+        }
+        return sb.toString();
+    }
+
+    /** Replace every {@code %NAME%} with {@code $NAME}. */
+    static String convertEnvVarsToUnix(final String cmdLine) {
+        if (cmdLine == null || cmdLine.indexOf('%') < 0) {
+            return cmdLine;
+        }
+        final int length = cmdLine.length();
+        final StringBuilder sb = new StringBuilder(length);
+        int i = 0;
+        while (i < length) {
+            char c = cmdLine.charAt(i);
+            if (c == '%') {
+                int end = skipName(cmdLine, i + 1);
+                if (end > i + 1 && end < length && cmdLine.charAt(end) == '%') {
+                    sb.append('$').append(cmdLine, i + 1, end);
+                    i = end + 1;
+                    continue;
+                }
+            }
+            sb.append(c);
+            i++;
+        }
+        return sb.toString();
+    }
+
+    /** Replace every {@code $NAME} with {@code %NAME%}. Braced variables are left alone. */
+    static String convertEnvVarsToWindows(final String cmdLine) {
+        if (cmdLine == null || cmdLine.indexOf('$') < 0) {
+            return cmdLine;
+        }
+        final int length = cmdLine.length();
+        final StringBuilder sb = new StringBuilder(length + 8);
+        int i = 0;
+        while (i < length) {
+            char c = cmdLine.charAt(i);
+            if (c == '$') {
+                int end = skipName(cmdLine, i + 1);
+                if (end > i + 1) {
+                    sb.append('%').append(cmdLine, i + 1, end).append('%');
+                    i = end;
+                    continue;
+                }
+            }
+            sb.append(c);
+            i++;
+        }
+        return sb.toString();
+    }
+
+    /** @return the index after the run of {@code [a-zA-Z0-9_]} starting at {@code from}. */
+    private static int skipName(final String s, final int from) {
+        int i = from;
+        while (i < s.length()) {
+            char c = s.charAt(i);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_') {
+                i++;
+            } else {
+                break;
+            }
+        }
+        return i;
+    }
+
+    /** Same characters as {@code \s} in a regex. */
+    private static boolean isWhitespace(final char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    /** Whether the token contains {@code http:}, {@code https:}, {@code ftp:} or {@code git:}. */
+    private static boolean isUrl(final String s, final int start, final int end) {
+        for (int i = start; i < end; i++) {
+            if (s.charAt(i) != ':') {
+                continue;
+            }
+            if (endsWith(s, start, i, "ftp") || endsWith(s, start, i, "git")) {
+                return true;
+            }
+            int j = i;
+            while (j > start && s.charAt(j - 1) == 's') {
+                j--;
+            }
+            if (endsWith(s, start, j, "http")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean endsWith(final String s, final int start, final int end, final String suffix) {
+        return end - start >= suffix.length() && s.regionMatches(end - suffix.length(), suffix, 0, suffix.length());
+    }
+}
@@ -0,0 +1,154 @@
+package hudson.plugins.xshell;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Console policy that keeps the first and last lines of the output.
+ *
+ * <p>The first {@code headLines} lines are written through. After that only the last {@code
+ * tailLines} lines are kept, in a queue limited to {@link #TAIL_BUDGET} bytes, and written when the
+ * output ends. When the output pump reports that a kill pattern matched, through {@link #matched()},
+ * the tail that was kept so far is written at once, which ends with the matching line, and so is
+ * the line being written. Each gap is replaced by a summary of the lines and bytes that were
+ * elided. When the output is scanned on the agent but not spooled there, nothing reports the match
+ * here, and the matching line shows in the tail written at the end.
+ *
+ * <p>The child's output is never buffered beyond this budget: a line longer than {@link
+ * #LINE_LIMIT} bytes is cut into pieces that count as lines of their own, and writes block the
+ * launcher's copier thread, which stops reading the child's pipe until the log has taken the output.
+ */
+final class HeadTailOutputStream extends OutputStream {
+
+    /** Most bytes kept for the tail. */
+    static final int TAIL_BUDGET = 1024 * 1024;
+
+    /** Longest line kept whole, in bytes, the same as the kill pattern scanner. */
+    static final int LINE_LIMIT = KillPatterns.MAX_LINE_LENGTH;
+
+    private final OutputStream out;
+    private final int headLines;
+    private final int tailLines;
+    private final Charset charset;
+    private final byte[] line = new byte[LINE_LIMIT + 1];
+    private int lineLength;
+    private final ArrayDeque<byte[]> tail = new ArrayDeque<>();
+    private long tailBytes;
+    private long lines;
+    private long elidedLines;
+    private long elidedBytes;
+
+    /** Whether the line being written goes through, because a kill pattern matched in it. */
+    private boolean showLine;
+
+    /**
+     * @param out the build log.
+     * @param headLines number of lines written before eliding.
+     * @param tailLines number of lines kept until the end.
+     * @param charset charset of the summaries.
+     */
+    HeadTailOutputStream(final OutputStream out, final int headLines, final int tailLines, final Charset charset) {
+        this.out = out;
+        this.headLines = Math.max(0, headLines);
+        this.tailLines = Math.max(0, tailLines);
+        this.charset = charset;
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(final byte[] b, final int off, final int len) throws IOException {
+        final int end = off + len;
+        int i = off;
+        while (i < end) {
+            final int limit = Math.min(end, i + LINE_LIMIT - lineLength);
+            int j = i;
+            while (j < limit && b[j] != '\n') {
+                j++;
+            }
+            final boolean complete = j < end && b[j] == '\n';
+            final int next = complete ? j + 1 : j;
+            System.arraycopy(b, i, line, lineLength, next - i);
+            lineLength += next - i;
+            if (complete || lineLength == LINE_LIMIT) {
+                eol(line, lineLength);
+                lineLength = 0;
+            }
+            i = next;
+        }
+    }
+
+    private void eol(final byte[] b, final int len) throws IOException {
+        lines++;
+        if (lines <= headLines || showLine) {
+            showLine = false;
+            out.write(b, 0, len);
+            out.flush();
+            return;
+        }
+        if (tailLines == 0) {
+            elide(len);
+            return;
+        }
+        tail.addLast(Arrays.copyOf(b, len));
+        tailBytes += len;
+        while (tail.size() > tailLines || (tailBytes > TAIL_BUDGET && tail.size() > 1)) {
+            final byte[] oldest = tail.removeFirst();
+            tailBytes -= oldest.length;
+            elide(oldest.length);
+        }
+    }
+
+    /**
+     * A kill pattern matched in the last line written, or in the line being written. Called by the
+     * output pump, which has already scanned the output, so this stream does not scan it again.
+     */
+    synchronized void matched() throws IOException {
+        writeTail();
+        if (lineLength > 0) {
+            showLine = true;
+        }
+    }
+
+    private void elide(final int len) {
+        elidedLines++;
+        elidedBytes += len;
+    }
+
+    /** Write the summary of the gap and the kept tail. */
+    private void writeTail() throws IOException {
+        if (elidedLines > 0) {
+            out.write(("[xshell] ... " + elidedLines + " lines (" + elidedBytes + " bytes) elided ...\n")
+                    .getBytes(charset));
+            elidedLines = 0;
+            elidedBytes = 0;
+        }
+        for (byte[] l : tail) {
+            out.write(l);
+        }
+        tail.clear();
+        tailBytes = 0;
+        out.flush();
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        // Complete the last line, but leave the build log open.
+        if (lineLength > 0) {
+            eol(line, lineLength);
+            lineLength = 0;
+        }
+        writeTail();
+    }
+}
@@ -0,0 +1,255 @@
+package hudson.plugins.xshell;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * The kill regexes of a step, compiled once into a single alternation, or into separate patterns
+ * when they cannot be combined.
+ *
+ * <p>Instances are immutable and may be shared between threads. The per-stream state lives in the
+ * {@link Scanner} returned by {@link #newScanner()}.
+ */
+final class KillPatterns {
+
+    /** No pattern at all; its scanners never match. */
+    static final KillPatterns NONE = new KillPatterns(Collections.emptyList());
+
+    /** Longest partial line kept while waiting for its end of line. */
+    static final int MAX_LINE_LENGTH = 16 * 1024;
+
+    /** Tail of an over-long line that is kept, so that matches across the cut are still found. */
+    static final int LINE_OVERLAP = 1024;
+
+    /** Longest partial line that is matched on every flush. */
+    static final int PROMPT_LENGTH = 256;
+
+    private static final Pattern BACK_REFERENCE = Pattern.compile("\\\\([1-9]|k<)");
+
+    private final List<String> patterns;
+
+    /** All patterns as one alternation, each wrapped in its own capturing group. */
+    private final Pattern combined;
+
+    /** Group of {@link #combined} that belongs to each pattern. */
+    private final int[] groups;
+
+    /** Patterns compiled on their own, used when they cannot be combined into one alternation. */
+    private final Pattern[] separate;
+
+    private KillPatterns(final List<String> patterns) {
+        this.patterns = Collections.unmodifiableList(patterns);
+        this.groups = new int[patterns.size()];
+
+        // Each pattern is compiled on its own first, so that an invalid one is reported by itself
+        // rather than as an error somewhere in the alternation.
+        final Pattern[] compiled = new Pattern[patterns.size()];
+        for (int i = 0; i < compiled.length; i++) {
+            compiled[i] = Pattern.compile(patterns.get(i));
+        }
+
+        combined = patterns.isEmpty() ? null : combine(patterns, compiled, groups);
+        separate = patterns.isEmpty() || combined != null ? null : compiled;
+    }
+
+    /**
+     * Join valid patterns into one alternation.
+     *
+     * @return the alternation, or {@code null} if the patterns cannot be combined: a numbered back
+     *     reference would point at the wrong group, a named group is defined twice, or a pattern
+     *     leaks out of its group, as an unterminated {@code \Q} or a {@code #} comment does.
+     */
+    private static Pattern combine(final List<String> patterns, final Pattern[] compiled, final int[] groups) {
+        StringBuilder sb = new StringBuilder();
+        int group = 1;
+        for (int i = 0; i < patterns.size(); i++) {
+            String p = patterns.get(i);
+            if (BACK_REFERENCE.matcher(p).find()) {
+                return null;
+            }
+            if (i > 0) {
+                sb.append('|');
+            }
+            sb.append('(').append(p).append(')');
+            groups[i] = group;
+            group += 1 + compiled[i].matcher("").groupCount();
+        }
+        final Pattern pattern;
+        try {
+            pattern = Pattern.compile(sb.toString());
+        } catch (PatternSyntaxException e) {
+            return null;
+        }
+        // A pattern that swallowed the ones after it still compiles, but with fewer groups.
+        return pattern.matcher("").groupCount() == group - 1 ? pattern : null;
+    }
+
+    /**
+     * Compile the kill regexes of a step.
+     *
+     * @param regexToKill one regex per line; blank lines are ignored. May be {@code null}.
+     * @return the compiled patterns, {@link #NONE} if there are none.
+     * @throws PatternSyntaxException if one of the regexes is invalid on its own.
+     */
+    static KillPatterns compile(final String regexToKill) {
+        if (regexToKill == null || regexToKill.trim().isEmpty()) {
+            return NONE;
+        }
+        List<String> patterns = new ArrayList<>();
+        for (String line : regexToKill.split("\\r?\\n")) {
+            if (!line.trim().isEmpty()) {
+                patterns.add(line);
+            }
+        }
+        return new KillPatterns(patterns);
+    }
+
+    boolean isEmpty() {
+        return patterns.isEmpty();
+    }
+
+    List<String> getPatterns() {
+        return patterns;
+    }
+
+    /**
+     * Search a piece of text for any of the patterns.
+     *
+     * @return the first pattern, in configuration order, that matches at the earliest position, or
+     *     {@code null} if none matches.
+     */
+    String find(final CharSequence text) {
+        return find(text, 0, text.length());
+    }
+
+    /**
+     * Search a region of a text for any of the patterns. The text outside the region is seen by
+     * lookarounds, but {@code ^} and {@code $} only match at the ends of the whole text, not at those
+     * of the region.
+     */
+    private String find(final CharSequence text, final int from, final int to) {
+        if (combined != null) {
+            Matcher m = region(combined.matcher(text), from, to);
+            if (m.find()) {
+                for (int i = 0; i < groups.length; i++) {
+                    if (m.start(groups[i]) >= 0) {
+                        return patterns.get(i);
+                    }
+                }
+            }
+        } else if (separate != null) {
+            for (int i = 0; i < separate.length; i++) {
+                if (region(separate[i].matcher(text), from, to).find()) {
+                    return patterns.get(i);
+                }
+            }
+        }
+        return null;
+    }
+
+    private static Matcher region(final Matcher m, final int from, final int to) {
+        return m.region(from, to).useTransparentBounds(true).useAnchoringBounds(false);
+    }
+
+    /** Start scanning a new output stream. */
+    Scanner newScanner() {
+        return new Scanner();
+    }
+
+    /**
+     * Matches the patterns against a stream of text that arrives in arbitrary chunks.
+     *
+     * <p>The text is matched line by line, each line once it is complete, so every character is
+     * scanned once. A line longer than {@link #MAX_LINE_LENGTH} is cut: the part so far is matched
+     * and only its last {@link #LINE_OVERLAP} characters are kept, so that a match across the cut is
+     * still found. {@code ^} does not match after a cut, and {@code $} matches only at the real end
+     * of a line.
+     *
+     * <p>A prompt that never ends its line is found by {@link #flush()}, which matches the partial
+     * line. To keep the scan linear, a partial line longer than {@link #PROMPT_LENGTH} is matched
+     * again only once it has doubled in length.
+     *
+     * <p>Not thread safe; one scanner serves one stream.
+     */
+    final class Scanner {
+        /** The current line. After a cut, its first character is context from before the cut. */
+        private final StringBuilder line = new StringBuilder();
+
+        /** Whether the current line was cut. */
+        private boolean continued;
+
+        /** Length of the partial line when {@link #flush()} last matched it, 0 if it did not. */
+        private int flushed;
+
+        /**
+         * Feed the next chunk of output.
+         *
+         * @return the pattern that matched, or {@code null} if nothing matched so far.
+         */
+        String feed(final CharSequence chunk) {
+            if (isEmpty()) {
+                return null;
+            }
+            String found = null;
+            int start = 0;
+            final int length = chunk.length();
+            for (int i = 0; i < length; i++) {
+                if (chunk.charAt(i) == '\n') {
+                    line.append(chunk, start, i);
+                    start = i + 1;
+                    if (found == null) {
+                        found = find(line, continued ? 1 : 0, line.length());
+                    }
+                    line.setLength(0);
+                    continued = false;
+                    flushed = 0;
+                }
+            }
+            if (start < length) {
+                line.append(chunk, start, length);
+                if (line.length() > MAX_LINE_LENGTH) {
+                    if (found == null) {
+                        found = findOpen();
+                    }
+                    line.delete(0, line.length() - LINE_OVERLAP - 1);
+                    continued = true;
+                    flushed = 0;
+                }
+            }
+            return found;
+        }
+
+        /**
+         * Match the line that is not complete yet, for prompts that wait for input.
+         *
+         * @return the pattern that matched, or {@code null}.
+         */
+        String flush() {
+            final int length = line.length();
+            if (isEmpty() || length == (continued ? 1 : 0) || length == flushed) {
+                return null;
+            }
+            if (length > PROMPT_LENGTH && length < 2 * flushed) {
+                return null;
+            }
+            flushed = length;
+            return findOpen();
+        }
+
+        /** Match the line so far, as a line that goes on. */
+        private String findOpen() {
+            final int length = line.length();
+            // Something after the region so that $ does not match where the line stops for now.
+            line.append('\u0000');
+            try {
+                return find(line, continued ? 1 : 0, length);
+            } finally {
+                line.setLength(length);
+            }
+        }
+    }
+}
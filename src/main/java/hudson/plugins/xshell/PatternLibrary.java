@@ -0,0 +1,137 @@
+package hudson.plugins.xshell;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The global pattern sets and default limits, compiled.
+ *
+ * <p>A library is an immutable snapshot of the global configuration. {@link XShellDescriptor}
+ * builds a new one when the configuration is saved and swaps it in with a single write, so a step
+ * sees either the old library or the new one, never a mix. Steps cache their resolved patterns
+ * against the library they were resolved with and resolve them again only when it changes.
+ */
+final class PatternLibrary {
+
+    /** No pattern set and no default. */
+    static final PatternLibrary EMPTY = new PatternLibrary(Collections.emptyMap(), null, 0, null);
+
+    private final Map<String, KillPatterns> sets;
+    private final String defaultTimeAllocated;
+    private final long defaultTimeLimit;
+    private final String defaultIdleTimeout;
+
+    private PatternLibrary(
+            final Map<String, KillPatterns> sets,
+            final String defaultTimeAllocated,
+            final long defaultTimeLimit,
+            final String defaultIdleTimeout) {
+        this.sets = sets;
+        this.defaultTimeAllocated = defaultTimeAllocated;
+        this.defaultTimeLimit = defaultTimeLimit;
+        this.defaultIdleTimeout = defaultIdleTimeout;
+    }
+
+    /**
+     * Compile a configuration.
+     *
+     * @throws IllegalArgumentException if a set has no name or the same name as another, or a
+     *     default is not a valid time limit.
+     * @throws java.util.regex.PatternSyntaxException if a regex is invalid.
+     */
+    static PatternLibrary build(
+            final List<XShellDescriptor.PatternSet> patternSets,
+            final String defaultTimeAllocated,
+            final String defaultIdleTimeout) {
+        final Map<String, KillPatterns> sets = new LinkedHashMap<>();
+        for (XShellDescriptor.PatternSet set : patternSets) {
+            if (set.getName() == null) {
+                throw new IllegalArgumentException("A pattern set has no name");
+            }
+            if (sets.put(set.getName(), KillPatterns.compile(set.getPatterns())) != null) {
+                throw new IllegalArgumentException("Two pattern sets are named " + set.getName());
+            }
+        }
+        TimeLimit.parse(defaultIdleTimeout);
+        return new PatternLibrary(
+                Collections.unmodifiableMap(sets),
+                defaultTimeAllocated,
+                TimeLimit.parse(defaultTimeAllocated),
+                defaultIdleTimeout);
+    }
+
+    /**
+     * Split a list of set names separated by commas or whitespace.
+     *
+     * @param names the names, may be {@code null}.
+     */
+    static List<String> names(final String names) {
+        final List<String> list = new ArrayList<>();
+        if (names != null) {
+            for (String name : names.trim().split("[\\s,]+")) {
+                if (!name.isEmpty()) {
+                    list.add(name);
+                }
+            }
+        }
+        return list;
+    }
+
+    /** The names among the given ones that are not in the library. */
+    List<String> unknown(final String names) {
+        final List<String> unknown = new ArrayList<>();
+        for (String name : names(names)) {
+            if (!sets.containsKey(name)) {
+                unknown.add(name);
+            }
+        }
+        return unknown;
+    }
+
+    /**
+     * The patterns of a step: its own regexes followed by those of the sets it refers to. A step
+     * that only refers to one set shares the patterns compiled for the library. Unknown names are
+     * left out.
+     *
+     * @param own the step's own patterns.
+     * @param names the names of the sets, may be {@code null}.
+     */
+    KillPatterns resolve(final KillPatterns own, final String names) {
+        final List<KillPatterns> parts = new ArrayList<>();
+        if (!own.isEmpty()) {
+            parts.add(own);
+        }
+        for (String name : names(names)) {
+            final KillPatterns set = sets.get(name);
+            if (set != null && !set.isEmpty() && !parts.contains(set)) {
+                parts.add(set);
+            }
+        }
+        if (parts.isEmpty()) {
+            return KillPatterns.NONE;
+        } else if (parts.size() == 1) {
+            return parts.get(0);
+        }
+        final List<String> lines = new ArrayList<>();
+        for (KillPatterns part : parts) {
+            lines.addAll(part.getPatterns());
+        }
+        return KillPatterns.compile(String.join("\n", lines));
+    }
+
+    String getDefaultTimeAllocated() {
+        return defaultTimeAllocated;
+    }
+
+    /** The default time allocated in milliseconds, 0 for no limit. */
+    long getDefaultTimeLimit() {
+        return defaultTimeLimit;
+    }
+
+    String getDefaultIdleTimeout() {
+        return defaultIdleTimeout;
+    }
+}
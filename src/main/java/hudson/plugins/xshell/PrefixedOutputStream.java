@@ -0,0 +1,40 @@
+package hudson.plugins.xshell;
+
+import hudson.console.LineTransformationOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes whole lines, each with a prefix, to a console shared with other commands.
+ *
+ * <p>Lines are written while holding the lock of the shared console, so the output of commands
+ * running at the same time never interleaves within a line.
+ */
+final class PrefixedOutputStream extends LineTransformationOutputStream {
+
+    private final OutputStream out;
+    private final byte[] prefix;
+
+    PrefixedOutputStream(final OutputStream out, final byte[] prefix) {
+        this.out = out;
+        this.prefix = prefix.clone();
+    }
+
+    @Override
+    protected void eol(final byte[] b, final int len) throws IOException {
+        synchronized (out) {
+            out.write(prefix);
+            out.write(b, 0, len);
+            if (len == 0 || b[len - 1] != '\n') {
+                out.write('\n');
+            }
+            out.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        // Complete the last line, but leave the shared console open.
+        super.close();
+    }
+}
@@ -0,0 +1,218 @@
+package hudson.plugins.xshell;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import hudson.remoting.VirtualChannel;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.security.MasterToSlaveCallable;
+import jenkins.util.SystemProperties;
+
+/**
+ * Kills a child on a Linux agent together with everything it started, without looking at the
+ * other processes of the agent.
+ *
+ * <p>The generic kill of a {@link hudson.Proc} finds the descendants of the child by going through
+ * every process of the agent, which takes seconds of CPU on an agent running thousands of them.
+ * Instead the child is launched through {@code setsid}, which makes it the leader of a new session
+ * and process group that its descendants inherit, and it writes its process id, which is also the
+ * id of the group, to a file before it executes the command. A kill then signals the group with
+ * {@code SIGTERM}, and with {@code SIGKILL} once the child has exited, for what it left behind, or
+ * if it is still running after {@link #TERM_TIMEOUT} milliseconds. Only the child itself is waited
+ * for: the others may be orphans that nobody reaps, as in a container without an init process.
+ *
+ * <p>When there is no such file, for instance because the child is killed before it wrote it, the
+ * caller falls back to the generic kill. Processes that left the group, such as daemons that start
+ * their own session, are not killed.
+ *
+ * <p>This is off unless the system property {@code hudson.plugins.xshell.ProcessGroup.enabled} is
+ * {@code true}, since it changes the session of every child and writes the pid files to the
+ * {@code xshell} directory next to the workspace, in {@code workspace@tmp}.
+ */
+final class ProcessGroup {
+
+    private static final Logger LOG = Logger.getLogger(ProcessGroup.class.getName());
+
+    /** Whether children are launched in their own process group on Linux agents. */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "for the script console and tests")
+    static /* not final */ boolean ENABLED = SystemProperties.getBoolean(ProcessGroup.class.getName() + ".enabled");
+
+    /** Milliseconds from {@code SIGTERM} until {@code SIGKILL}. */
+    static final long TERM_TIMEOUT =
+            SystemProperties.getLong(ProcessGroup.class.getName() + ".termTimeout", 5000L);
+
+    /** Milliseconds to wait for the child to exit after {@code SIGKILL}. */
+    private static final long KILL_TIMEOUT = 1000L;
+
+    private ProcessGroup() {}
+
+    /**
+     * The arguments to put before the command line to run it in a new process group. {@code setsid}
+     * forks when it is started as the leader of a group, so it is told to wait for the child and
+     * exit with its code rather than return at once.
+     *
+     * @param pidFile where the id of the group is written, on the agent.
+     */
+    static String[] prefix(final String pidFile) {
+        return new String[] {"setsid", "--wait", "sh", "-c", "echo $$ >\"$0\" && exec \"$@\"", pidFile};
+    }
+
+    /**
+     * Kill the group whose id is in the pid file.
+     *
+     * @param channel channel to the agent, {@code null} for this JVM.
+     * @param pidFile the file given to {@link #prefix}.
+     * @param force whether to send {@code SIGKILL} right away.
+     * @return what was done, or {@code null} if there is no id, in which case the child must be
+     *     killed otherwise.
+     */
+    static Report kill(final VirtualChannel channel, final String pidFile, final boolean force)
+            throws IOException, InterruptedException {
+        final Kill kill = new Kill(pidFile, force);
+        return channel != null ? channel.call(kill) : kill.call();
+    }
+
+    /** Kill the group in this JVM. Blocks until the child has exited or was sent {@code SIGKILL}. */
+    private static Report killHere(final String pidFile, final boolean force)
+            throws IOException, InterruptedException {
+        final long pgid = readId(pidFile);
+        if (pgid <= 0) {
+            return null;
+        }
+        if (!force) {
+            if (!signal(pgid, "TERM")) {
+                return new Report(pgid, null, true);
+            }
+            if (awaitExit(pgid, TERM_TIMEOUT)) {
+                signal(pgid, "KILL");
+                return new Report(pgid, "SIGTERM", true);
+            }
+        }
+        if (!signal(pgid, "KILL")) {
+            return new Report(pgid, force ? null : "SIGTERM", true);
+        }
+        return new Report(pgid, "SIGKILL", awaitExit(pgid, KILL_TIMEOUT));
+    }
+
+    private static long readId(final String pidFile) throws IOException {
+        final String id;
+        try {
+            id = new String(Files.readAllBytes(Paths.get(pidFile)), StandardCharsets.US_ASCII).trim();
+        } catch (NoSuchFileException e) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(id);
+        } catch (NumberFormatException e) {
+            // Not written yet.
+            LOG.log(Level.FINE, "No process group id in {0}", pidFile);
+            return 0;
+        }
+    }
+
+    /**
+     * Send a signal to the group, with the shell's {@code kill}, which is there even when the
+     * {@code kill} program is not.
+     *
+     * @return whether the group was there.
+     */
+    private static boolean signal(final long pgid, final String signal) throws IOException, InterruptedException {
+        final Process kill = new ProcessBuilder("/bin/sh", "-c", "kill -s " + signal + " -- -" + pgid)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.DISCARD)
+                .start();
+        return kill.waitFor() == 0;
+    }
+
+    /** Wait for the leader of the group to exit, checking more and more slowly. */
+    private static boolean awaitExit(final long pid, final long timeoutMillis)
+            throws IOException, InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        long pause = 1;
+        while (isRunning(pid)) {
+            final long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (left <= 0) {
+                return false;
+            }
+            Thread.sleep(Math.min(pause, left));
+            pause = Math.min(pause * 2, 100);
+        }
+        return true;
+    }
+
+    /** Whether a process is there and not a zombie. */
+    private static boolean isRunning(final long pid) throws IOException {
+        final String stat;
+        try {
+            stat = new String(
+                    Files.readAllBytes(Paths.get("/proc", Long.toString(pid), "stat")), StandardCharsets.US_ASCII);
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+        // The state follows the name, which is in parentheses and may contain anything.
+        final int end = stat.lastIndexOf(')');
+        return end < 0 || end + 2 >= stat.length() || stat.charAt(end + 2) != 'Z';
+    }
+
+    /** What a kill did. */
+    static final class Report implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final long pgid;
+
+        /** The signal that ended the group, {@code null} if it was gone before any. */
+        final String signal;
+
+        /** Whether the child has exited. */
+        final boolean gone;
+
+        Report(final long pgid, final String signal, final boolean gone) {
+            this.pgid = pgid;
+            this.signal = signal;
+            this.gone = gone;
+        }
+
+        /**
+         * The line for the console.
+         *
+         * @param millis time from the kill request until the kill returned.
+         */
+        String describe(final long millis) {
+            if (signal == null) {
+                return "[xshell] Process group " + pgid + " had already exited";
+            } else if (!gone) {
+                return "[xshell] Process group " + pgid + " still running " + millis + " ms after " + signal;
+            }
+            return "[xshell] Killed process group " + pgid + " with " + signal + " in " + millis + " ms";
+        }
+    }
+
+    /** Kills a group on its agent. */
+    private static final class Kill extends MasterToSlaveCallable<Report, IOException> {
+        private static final long serialVersionUID = 1L;
+
+        private final String pidFile;
+        private final boolean force;
+
+        Kill(final String pidFile, final boolean force) {
+            this.pidFile = pidFile;
+            this.force = force;
+        }
+
+        @Override
+        public Report call() throws IOException {
+            try {
+                return killHere(pidFile, force);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while killing the process group", e);
+            }
+        }
+    }
+}
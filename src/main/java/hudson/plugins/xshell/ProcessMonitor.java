@@ -0,0 +1,95 @@
+package hudson.plugins.xshell;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import hudson.model.Computer;
+import hudson.remoting.VirtualChannel;
+import java.io.IOException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.util.SystemProperties;
+import jenkins.util.Timer;
+
+/**
+ * Samples the process tree of a running child from the shared timer.
+ *
+ * <p>Each tick sends one {@link ProcessSampler} to the agent. A tick is skipped while the previous
+ * sample is still on its way, so a slow agent is never asked twice. Sampling stops for good once a
+ * sample finds nothing: the agent has no {@code /proc}, the child cannot be found, or it is gone.
+ *
+ * <p>This is off unless the system property {@code hudson.plugins.xshell.ProcessMonitor.interval}
+ * is set to a positive number of milliseconds, since every sample is a remote call.
+ */
+final class ProcessMonitor {
+
+    private static final Logger LOG = Logger.getLogger(ProcessMonitor.class.getName());
+
+    /** Environment variable that marks the child, so that the sampler can find it. */
+    static final String COOKIE_VARIABLE = "XSHELL_PROCESS_ID";
+
+    /** Milliseconds between samples, 0 to disable sampling. */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "for the script console and tests")
+    static /* not final */ long INTERVAL = SystemProperties.getLong(ProcessMonitor.class.getName() + ".interval", 0L);
+
+    private final VirtualChannel channel;
+    private final String cookie;
+    private final XShellMetrics metrics;
+    private final AtomicBoolean sampling = new AtomicBoolean();
+    private volatile long rootPid;
+    private volatile ScheduledFuture<?> task;
+
+    /**
+     * @param channel channel to the agent running the child.
+     * @param cookieValue value of {@link #COOKIE_VARIABLE} in the environment of the child.
+     * @param metrics where the samples are recorded.
+     */
+    ProcessMonitor(final VirtualChannel channel, final String cookieValue, final XShellMetrics metrics) {
+        this.channel = channel;
+        this.cookie = COOKIE_VARIABLE + "=" + cookieValue;
+        this.metrics = metrics;
+    }
+
+    /** Whether the children are sampled, and so need {@link #COOKIE_VARIABLE} in their environment. */
+    static boolean isEnabled() {
+        return INTERVAL > 0;
+    }
+
+    void start() {
+        if (isEnabled() && channel != null) {
+            task = Timer.get()
+                    .scheduleWithFixedDelay(this::tick, Math.min(INTERVAL, 1000L), INTERVAL, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    void stop() {
+        final ScheduledFuture<?> t = task;
+        if (t != null) {
+            t.cancel(false);
+        }
+    }
+
+    private void tick() {
+        if (!sampling.compareAndSet(false, true)) {
+            return;
+        }
+        Computer.threadPoolForRemoting.submit(() -> {
+            try {
+                final ProcessSampler.Sample sample = channel.call(new ProcessSampler(cookie, rootPid));
+                if (sample == null) {
+                    stop();
+                    return;
+                }
+                rootPid = sample.rootPid;
+                metrics.sampled(sample);
+            } catch (IOException | RuntimeException e) {
+                LOG.log(Level.FINE, "Failed to sample the child process", e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                sampling.set(false);
+            }
+        });
+    }
+}
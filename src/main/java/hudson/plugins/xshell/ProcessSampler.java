@@ -0,0 +1,183 @@
+package hudson.plugins.xshell;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import jenkins.security.MasterToSlaveCallable;
+
+/**
+ * Reads the resource usage of a child and its descendants from {@code /proc} on a Linux agent.
+ *
+ * <p>The child is recognized by a cookie in its environment, which is searched for once, by the
+ * first sample; a child that is not found then is not searched for again. After that the tree is
+ * walked from the child through the {@code children} files of its tasks, so a sample costs a few
+ * small reads per process of the tree rather than a walk over every process of the agent.
+ */
+final class ProcessSampler extends MasterToSlaveCallable<ProcessSampler.Sample, IOException> {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Clock ticks per second of {@code /proc/<pid>/stat}, fixed at 100 by the Linux ABI. */
+    private static final long CLOCK_TICKS = 100;
+
+    private static final File PROC = new File("/proc");
+
+    private final String cookie;
+    private final long rootPid;
+
+    /**
+     * @param cookie the {@code NAME=value} environment entry that identifies the child.
+     * @param rootPid the pid of the child if known from a previous sample, 0 otherwise.
+     */
+    ProcessSampler(final String cookie, final long rootPid) {
+        this.cookie = cookie;
+        this.rootPid = rootPid;
+    }
+
+    /** Resource usage of a process tree at one point in time. */
+    static final class Sample implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        long rootPid;
+        int processes;
+        int threads;
+        long cpuMillis;
+        long rssBytes;
+        long readBytes;
+        long writeBytes;
+    }
+
+    /**
+     * @return the sample, or {@code null} if the agent has no {@code /proc}, or the child is not found
+     *     or gone. The caller should not ask again then.
+     */
+    @Override
+    public Sample call() throws IOException {
+        if (!new File(PROC, "self/stat").isFile()) {
+            return null;
+        }
+        final long root = rootPid != 0 ? rootPid : findRoot();
+        if (root == 0 || !new File(PROC, Long.toString(root)).isDirectory()) {
+            return null;
+        }
+
+        final Sample sample = new Sample();
+        sample.rootPid = root;
+        final Set<Long> seen = new HashSet<>();
+        final ArrayDeque<Long> queue = new ArrayDeque<>();
+        queue.add(root);
+        while (!queue.isEmpty()) {
+            final long pid = queue.removeFirst();
+            if (!seen.add(pid)) {
+                continue;
+            }
+            try {
+                add(sample, pid, pid == root);
+                final File[] tasks = new File(PROC, pid + "/task").listFiles();
+                if (tasks != null) {
+                    for (File task : tasks) {
+                        for (String child : read(new File(task, "children")).trim().split("\\s+")) {
+                            if (!child.isEmpty()) {
+                                queue.add(Long.parseLong(child));
+                            }
+                        }
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                // The process exited while it was read.
+            }
+        }
+        return sample;
+    }
+
+    /** The lowest pid that has the cookie in its environment, 0 if none. */
+    private long findRoot() {
+        final byte[] needle = cookie.getBytes(StandardCharsets.UTF_8);
+        final String[] pids = PROC.list();
+        long root = 0;
+        if (pids == null) {
+            return root;
+        }
+        for (String name : pids) {
+            if (name.isEmpty() || !Character.isDigit(name.charAt(0))) {
+                continue;
+            }
+            try {
+                final long pid = Long.parseLong(name);
+                if ((root == 0 || pid < root)
+                        && contains(Files.readAllBytes(new File(PROC, name + "/environ").toPath()), needle)) {
+                    root = pid;
+                }
+            } catch (IOException | RuntimeException e) {
+                // Not ours to read, or gone.
+            }
+        }
+        return root;
+    }
+
+    private static void add(final Sample sample, final long pid, final boolean root) throws IOException {
+        final String stat = read(new File(PROC, pid + "/stat"));
+        final String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+        // fields[0] is field 3 of proc(5): utime is 14, stime 15, cutime 16, cstime 17
+        long ticks = Long.parseLong(fields[11]) + Long.parseLong(fields[12]);
+        if (root) {
+            ticks += Long.parseLong(fields[13]) + Long.parseLong(fields[14]);
+        }
+        sample.processes++;
+        sample.cpuMillis += ticks * 1000 / CLOCK_TICKS;
+
+        final List<String> status = Files.readAllLines(new File(PROC, pid + "/status").toPath());
+        for (String line : status) {
+            if (line.startsWith("VmRSS:")) {
+                sample.rssBytes += parseKiloBytes(line);
+            } else if (line.startsWith("Threads:")) {
+                sample.threads += Integer.parseInt(line.substring("Threads:".length()).trim());
+            }
+        }
+
+        try {
+            for (String line : Files.readAllLines(new File(PROC, pid + "/io").toPath())) {
+                if (line.startsWith("read_bytes:")) {
+                    sample.readBytes += Long.parseLong(line.substring("read_bytes:".length()).trim());
+                } else if (line.startsWith("write_bytes:")) {
+                    sample.writeBytes += Long.parseLong(line.substring("write_bytes:".length()).trim());
+                }
+            }
+        } catch (IOException e) {
+            // I/O accounting is not readable on every kernel.
+        }
+    }
+
+    private static long parseKiloBytes(final String line) {
+        final String[] parts = line.trim().split("\\s+");
+        return Long.parseLong(parts[1]) * 1024;
+    }
+
+    private static String read(final File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+
+    private static boolean contains(final byte[] haystack, final byte[] needle) {
+        outer:
+        for (int i = 0; i + needle.length <= haystack.length; i++) {
+            if (i > 0 && haystack[i - 1] != 0) {
+                continue;
+            }
+            for (int j = 0; j < needle.length; j++) {
+                if (haystack[i + j] != needle[j]) {
+                    continue outer;
+                }
+            }
+            if (i + needle.length == haystack.length || haystack[i + needle.length] == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
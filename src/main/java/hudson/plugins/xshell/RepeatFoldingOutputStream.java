@@ -0,0 +1,225 @@
+package hudson.plugins.xshell;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Console policy that folds runs of repeated lines.
+ *
+ * <p>A line that is the same as the last line written, once every run of digits is taken as equal,
+ * is held back instead of written. This folds progress counters, retry loops and the updates of a
+ * progress bar: a carriage return ends a line as well as a newline does, so each update is a line
+ * of its own. When a different line comes, or the output ends, the last line of the run is written
+ * after a summary of the lines folded before it, so the console shows the first and the last line
+ * of every run. A line that matches a kill pattern is never folded.
+ *
+ * <p>Memory does not grow with the output: only the current line, the key of the last line written
+ * and the last line held back are kept, each up to {@link #LINE_LIMIT} bytes. A longer line is
+ * written through as it arrives and never folds, nor does the line after it.
+ */
+final class RepeatFoldingOutputStream extends OutputStream {
+
+    /** Longest line that can be folded, in bytes. */
+    static final int LINE_LIMIT = 4096;
+
+    private final OutputStream out;
+    private final boolean closeOut;
+    private final KillPatterns patterns;
+    private final Charset charset;
+
+    private final byte[] line = new byte[LINE_LIMIT];
+    private int lineLength;
+
+    /** Whether the current line is too long and is being written through. */
+    private boolean overflow;
+
+    /** Whether the current line ends with a carriage return that may be followed by a newline. */
+    private boolean pendingCr;
+
+    /** Key of the last line written, and a buffer for the key of the current one. */
+    private byte[] key = new byte[LINE_LIMIT];
+
+    private byte[] nextKey = new byte[LINE_LIMIT];
+    private int keyLength = -1;
+
+    /** Last line of the current run, not written yet. */
+    private final byte[] held = new byte[LINE_LIMIT];
+
+    private int heldLength;
+    private long folded;
+    private long foldedBytes;
+
+    /**
+     * @param out the console.
+     * @param closeOut whether closing this stream also completes the console, which is not the case
+     *     for the build log itself.
+     * @param patterns lines matching these are never folded.
+     * @param charset charset used to decode lines for matching.
+     */
+    RepeatFoldingOutputStream(
+            final OutputStream out, final boolean closeOut, final KillPatterns patterns, final Charset charset) {
+        this.out = out;
+        this.closeOut = closeOut;
+        this.patterns = patterns;
+        this.charset = charset;
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(final byte[] b, final int off, final int len) throws IOException {
+        int i = off;
+        final int end = off + len;
+        if (pendingCr && i < end) {
+            pendingCr = false;
+            if (b[i] == '\n') {
+                append(b, i, 1);
+                i++;
+            }
+            endLine();
+        }
+        while (i < end) {
+            int j = i;
+            while (j < end && b[j] != '\n' && b[j] != '\r') {
+                j++;
+            }
+            if (j == end) {
+                append(b, i, j - i);
+                return;
+            }
+            append(b, i, j + 1 - i);
+            if (b[j] == '\r') {
+                if (j + 1 == end) {
+                    // Complete the line once it is known whether a newline follows.
+                    pendingCr = true;
+                    return;
+                }
+                if (b[j + 1] == '\n') {
+                    append(b, j + 1, 1);
+                    j++;
+                }
+            }
+            endLine();
+            i = j + 1;
+        }
+    }
+
+    private void append(final byte[] b, final int off, final int len) throws IOException {
+        if (!overflow && lineLength + len > LINE_LIMIT) {
+            writeRun();
+            out.write(line, 0, lineLength);
+            lineLength = 0;
+            overflow = true;
+        }
+        if (overflow) {
+            out.write(b, off, len);
+        } else {
+            System.arraycopy(b, off, line, lineLength, len);
+            lineLength += len;
+        }
+    }
+
+    /** Write the current line, or hold it back if it repeats the last one. */
+    private void endLine() throws IOException {
+        if (overflow) {
+            overflow = false;
+            keyLength = -1;
+            return;
+        }
+        final int nextKeyLength = key(line, lineLength, nextKey);
+        if (nextKeyLength == keyLength && equal(nextKey, key, keyLength) && !matches()) {
+            System.arraycopy(line, 0, held, 0, lineLength);
+            heldLength = lineLength;
+            folded++;
+            foldedBytes += lineLength;
+        } else {
+            writeRun();
+            out.write(line, 0, lineLength);
+            final byte[] last = key;
+            key = nextKey;
+            nextKey = last;
+            keyLength = nextKeyLength;
+        }
+        lineLength = 0;
+    }
+
+    /**
+     * The line without its line terminator and with each run of digits replaced by a single
+     * {@code #}, so that the last update of a progress bar, which ends with a newline, folds with the
+     * others.
+     */
+    private static int key(final byte[] b, final int length, final byte[] key) {
+        int len = length;
+        while (len > 0 && (b[len - 1] == '\n' || b[len - 1] == '\r')) {
+            len--;
+        }
+        int n = 0;
+        for (int i = 0; i < len; i++) {
+            if (isDigit(b[i])) {
+                if (i == 0 || !isDigit(b[i - 1])) {
+                    key[n++] = '#';
+                }
+            } else {
+                key[n++] = b[i];
+            }
+        }
+        return n;
+    }
+
+    private static boolean isDigit(final byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    private static boolean equal(final byte[] a, final byte[] b, final int len) {
+        for (int i = 0; i < len; i++) {
+            if (a[i] != b[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean matches() {
+        return !patterns.isEmpty() && patterns.find(new String(line, 0, lineLength, charset)) != null;
+    }
+
+    /** Write the summary and the last line of the current run. */
+    private void writeRun() throws IOException {
+        if (folded == 0) {
+            return;
+        }
+        if (folded > 1) {
+            out.write(("[xshell] ... " + (folded - 1) + " similar lines (" + (foldedBytes - heldLength)
+                            + " bytes) folded ...\n")
+                    .getBytes(charset));
+        }
+        out.write(held, 0, heldLength);
+        folded = 0;
+        foldedBytes = 0;
+        heldLength = 0;
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (pendingCr || lineLength > 0) {
+            pendingCr = false;
+            endLine();
+        }
+        overflow = false;
+        writeRun();
+        if (closeOut) {
+            out.close();
+        } else {
+            out.flush();
+        }
+    }
+}
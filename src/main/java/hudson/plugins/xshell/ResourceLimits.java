@@ -0,0 +1,250 @@
+package hudson.plugins.xshell;
+
+import hudson.remoting.VirtualChannel;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import jenkins.security.MasterToSlaveCallable;
+
+/**
+ * CPU, I/O, address space and process limits of a child on a Linux agent.
+ *
+ * <p>The limits are applied by prefixing the command line with {@code nice}, {@code ionice} and
+ * {@code prlimit}, each of which sets its part and executes the next, so the child keeps the pid
+ * that was launched and nothing else changes in how it is run, monitored or killed. The agent is
+ * asked once per connection whether it is Linux and which of these tools it has; a limit that
+ * cannot be applied is ignored with a warning in the console.
+ *
+ * <p>The caps are resource limits of each process. The address space cap bounds the virtual memory
+ * a process maps, which is more than it uses, and not the memory of the whole tree. The process cap
+ * is checked by the kernel against every process and thread of the agent's user, those of the
+ * agent JVM and of other executors included, so it is not a cap on the step and a warning says so.
+ */
+final class ResourceLimits {
+
+    /** Lowest and highest niceness. */
+    static final int MIN_NICENESS = -20;
+
+    static final int MAX_NICENESS = 19;
+
+    private static final Pattern SIZE = Pattern.compile("(\\d+)\\s*([kmgt]?)b?");
+
+    /** The tools of each agent, empty for an agent that is not running Linux. */
+    private static final Map<VirtualChannel, Optional<Set<String>>> TOOLS =
+            Collections.synchronizedMap(new WeakHashMap<>());
+
+    private final int niceness;
+    private final String ioClass;
+    private final long addressSpaceBytes;
+    private final int maxOpenFiles;
+    private final int maxUserProcesses;
+
+    private ResourceLimits(
+            final int niceness,
+            final String ioClass,
+            final long addressSpaceBytes,
+            final int maxOpenFiles,
+            final int maxUserProcesses) {
+        this.niceness = niceness;
+        this.ioClass = ioClass;
+        this.addressSpaceBytes = addressSpaceBytes;
+        this.maxOpenFiles = maxOpenFiles;
+        this.maxUserProcesses = maxUserProcesses;
+    }
+
+    /**
+     * Parse the limits of a step.
+     *
+     * @param niceness niceness of the child, 0 to leave it.
+     * @param ioClass I/O scheduling class, {@code idle} or {@code best-effort}, may be {@code null}.
+     * @param addressSpaceLimit cap on the address space of the child, such as {@code 512m} or {@code 4g},
+     *     may be {@code null}.
+     * @param maxOpenFiles cap on open files, 0 for none.
+     * @param maxUserProcesses cap on the processes and threads of the agent's user, counted across
+     *     the whole agent, 0 for none.
+     * @throws IllegalArgumentException if a limit is not valid.
+     */
+    static ResourceLimits of(
+            final int niceness,
+            final String ioClass,
+            final String addressSpaceLimit,
+            final int maxOpenFiles,
+            final int maxUserProcesses) {
+        checkNiceness(niceness);
+        if (maxOpenFiles < 0 || maxUserProcesses < 0) {
+            throw new IllegalArgumentException("Limits on open files and processes cannot be negative");
+        }
+        return new ResourceLimits(
+                niceness, parseIoClass(ioClass), parseSize(addressSpaceLimit), maxOpenFiles, maxUserProcesses);
+    }
+
+    boolean isEmpty() {
+        return niceness == 0 && ioClass == null && addressSpaceBytes == 0 && maxOpenFiles == 0 && maxUserProcesses == 0;
+    }
+
+    /**
+     * The tools of an agent, found by {@link Probe} the first time they are needed.
+     *
+     * @param channel channel to the agent, {@code null} for the controller.
+     * @return the tools, or {@code null} if the agent is not running Linux.
+     */
+    static Set<String> tools(final VirtualChannel channel) throws IOException, InterruptedException {
+        if (channel == null) {
+            return new Probe().call();
+        }
+        Optional<Set<String>> tools = TOOLS.get(channel);
+        if (tools == null) {
+            tools = Optional.ofNullable(channel.call(new Probe()));
+            TOOLS.put(channel, tools);
+        }
+        return tools.orElse(null);
+    }
+
+    /**
+     * The prefix that applies the limits on an agent.
+     *
+     * @param tools the tools of the agent, {@code null} if it is not running Linux.
+     * @param logger where the limits that cannot be applied are reported.
+     * @return the arguments to put before the command line, empty if none apply.
+     */
+    List<String> prefix(final Set<String> tools, final PrintStream logger) {
+        if (isEmpty()) {
+            return Collections.emptyList();
+        }
+        if (tools == null) {
+            logger.println("[xshell] Ignoring resource limits: the agent is not running Linux");
+            return Collections.emptyList();
+        }
+        final List<String> prefix = new ArrayList<>();
+        if (niceness != 0 && available(tools, "nice", "niceness", logger)) {
+            prefix.add("nice");
+            prefix.add("-n");
+            prefix.add(Integer.toString(niceness));
+        }
+        if (ioClass != null && available(tools, "ionice", "I/O class", logger)) {
+            prefix.add("ionice");
+            prefix.add("-c");
+            prefix.add(ioClass.equals("idle") ? "3" : "2");
+        }
+        final List<String> limits = new ArrayList<>();
+        if (addressSpaceBytes > 0) {
+            limits.add("--as=" + addressSpaceBytes);
+        }
+        if (maxOpenFiles > 0) {
+            limits.add("--nofile=" + maxOpenFiles);
+        }
+        if (maxUserProcesses > 0) {
+            limits.add("--nproc=" + maxUserProcesses);
+        }
+        if (!limits.isEmpty() && available(tools, "prlimit", "address space, open files and processes caps", logger)) {
+            prefix.add("prlimit");
+            prefix.addAll(limits);
+            prefix.add("--");
+            if (maxUserProcesses > 0) {
+                logger.println("[xshell] The cap of " + maxUserProcesses + " processes counts every process and"
+                        + " thread of the agent's user, not only those of this step");
+            }
+        }
+        return prefix;
+    }
+
+    private static boolean available(
+            final Set<String> tools, final String tool, final String limit, final PrintStream logger) {
+        if (tools.contains(tool)) {
+            return true;
+        }
+        logger.println("[xshell] Ignoring " + limit + ": " + tool + " was not found on the agent");
+        return false;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the niceness is out of range.
+     */
+    static void checkNiceness(final int niceness) {
+        if (niceness < MIN_NICENESS || niceness > MAX_NICENESS) {
+            throw new IllegalArgumentException(
+                    "Niceness must be between " + MIN_NICENESS + " and " + MAX_NICENESS + ": " + niceness);
+        }
+    }
+
+    /**
+     * Parse an I/O scheduling class.
+     *
+     * @return {@code idle}, {@code best-effort}, or {@code null} for none.
+     * @throws IllegalArgumentException if the value is not a supported class.
+     */
+    static String parseIoClass(final String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return null;
+        }
+        final String trimmed = value.trim().toLowerCase(Locale.ENGLISH);
+        if (trimmed.equals("idle") || trimmed.equals("best-effort")) {
+            return trimmed;
+        }
+        throw new IllegalArgumentException("Not an I/O class: " + value + ". Use idle or best-effort");
+    }
+
+    /**
+     * Parse a size such as {@code 4096}, {@code 512k}, {@code 512m} or {@code 4g}. A number without
+     * a unit is a number of bytes.
+     *
+     * @return the size in bytes, 0 for none.
+     * @throws IllegalArgumentException if the value is not a valid size.
+     */
+    static long parseSize(final String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return 0;
+        }
+        final Matcher m = SIZE.matcher(value.trim().toLowerCase(Locale.ENGLISH));
+        if (!m.matches()) {
+            throw new IllegalArgumentException(
+                    "Not a size: " + value + ". Use a number of bytes or units such as 512m or 4g");
+        }
+        final String unit = m.group(2);
+        final int shift = unit.isEmpty() ? 0 : 10 * ("kmgt".indexOf(unit) + 1);
+        try {
+            return Math.multiplyExact(Long.parseLong(m.group(1)), 1L << shift);
+        } catch (ArithmeticException | NumberFormatException e) {
+            throw new IllegalArgumentException("Size out of range: " + value, e);
+        }
+    }
+
+    /** Find the tools on the agent: {@code null} if it is not Linux, else those on its path. */
+    static final class Probe extends MasterToSlaveCallable<Set<String>, IOException> {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public Set<String> call() {
+            if (!System.getProperty("os.name", "").toLowerCase(Locale.ENGLISH).startsWith("linux")) {
+                return null;
+            }
+            final Set<String> found = new HashSet<>();
+            final String path = System.getenv("PATH");
+            final List<String> dirs = new ArrayList<>();
+            if (path != null) {
+                Collections.addAll(dirs, path.split(File.pathSeparator));
+            }
+            Collections.addAll(dirs, "/usr/bin", "/bin");
+            for (String tool : new String[] {"nice", "ionice", "prlimit", "setsid"}) {
+                for (String dir : dirs) {
+                    if (!dir.isEmpty() && new File(dir, tool).canExecute()) {
+                        found.add(tool);
+                        break;
+                    }
+                }
+            }
+            return found;
+        }
+    }
+}
@@ -0,0 +1,477 @@
+package hudson.plugins.xshell;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.remoting.VirtualChannel;
+import hudson.util.ArgumentListBuilder;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import jenkins.MasterToSlaveFileCallable;
+import jenkins.util.SystemProperties;
+
+/**
+ * Skips command lines whose inputs have not changed since they last succeeded on the same node.
+ *
+ * <p>The key of a step is a SHA-256 over its job, its expanded command lines, its working directory,
+ * its input and output globs, the values of the declared environment variables and the content of
+ * the declared input files, which are hashed in parallel on the node. The job is part of the key
+ * so that the same command in another job never restores the outputs of this one; the blobs are
+ * still shared. When a step succeeds, its declared output files and its
+ * console output are stored under that key. When the key is found again, the outputs are restored
+ * into the workspace and the console output is replayed instead of launching the command.
+ *
+ * <p>The store lives in the {@code xshell-cache} directory of the node's root. It is content
+ * addressed: every file is stored once as a blob named after its hash, and each key has a manifest
+ * that lists its blobs. When the store grows beyond {@link #MAX_SIZE} bytes, the least recently used
+ * manifests are dropped, then the blobs that no manifest refers to. Saves and evictions go one at
+ * a time, through a lock file in the store, also between JVMs that share a node root.
+ */
+final class ResultCache {
+
+    /** Most bytes kept in the store of a node. */
+    static final long MAX_SIZE =
+            SystemProperties.getLong(ResultCache.class.getName() + ".maxSize", 1024L * 1024 * 1024);
+
+    /** Most console bytes recorded; steps with more output are not cached. */
+    static final int MAX_CONSOLE = 1024 * 1024;
+
+    private static final String VERSION = "xshell-cache 1";
+
+    private final FilePath workspace;
+    private final String store;
+    private final String job;
+    private final String inputs;
+    private final String outputs;
+
+    private ResultCache(
+            final FilePath workspace,
+            final String store,
+            final String job,
+            final String inputs,
+            final String outputs) {
+        this.workspace = workspace;
+        this.store = store;
+        this.job = job;
+        this.inputs = inputs;
+        this.outputs = outputs;
+    }
+
+    /**
+     * The cache of the node that holds a workspace.
+     *
+     * @param job full name of the job of the step.
+     * @param inputs input globs relative to the workspace, separated by commas or new lines.
+     * @param outputs output globs relative to the workspace, separated by commas or new lines.
+     * @return the cache, or {@code null} if the node has no root directory.
+     */
+    static ResultCache forWorkspace(
+            final FilePath workspace, final String job, final String inputs, final String outputs) {
+        final Computer computer = workspace.toComputer();
+        final Node node = computer != null ? computer.getNode() : null;
+        final FilePath root = node != null ? node.getRootPath() : null;
+        if (root == null) {
+            return null;
+        }
+        return new ResultCache(
+                workspace, root.child("xshell-cache").getRemote(), job, globs(inputs), globs(outputs));
+    }
+
+    private static String globs(final String patterns) {
+        final String p = Util.fixEmptyAndTrim(patterns);
+        return p == null ? null : p.replaceAll("\\s*[\\r\\n]+\\s*", ",");
+    }
+
+    /**
+     * Everything but the input files that goes into the key.
+     *
+     * @param commands the expanded command lines.
+     * @param workingDir the working directory as configured.
+     * @param envNames names of the environment variables that matter, separated by commas or spaces.
+     * @param env the environment of the step.
+     */
+    static String describe(
+            final List<ArgumentListBuilder> commands,
+            final String workingDir,
+            final String envNames,
+            final Map<String, String> env) {
+        final StringBuilder sb = new StringBuilder(VERSION).append('\n');
+        for (ArgumentListBuilder command : commands) {
+            for (String arg : command.toList()) {
+                sb.append(arg).append('\0');
+            }
+            sb.append('\n');
+        }
+        sb.append("pwd ").append(workingDir).append('\n');
+        if (envNames != null) {
+            for (String name : envNames.trim().split("[\\s,]+")) {
+                if (!name.isEmpty()) {
+                    sb.append("env ").append(name).append('=').append(env.get(name)).append('\0');
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Compute the key of a step on its node.
+     *
+     * @param description the step as given by {@link #describe}, to which the job and the globs
+     *     of this cache are added.
+     */
+    String key(final String description) throws IOException, InterruptedException {
+        final String full = description + "job " + job + '\n' + "inputs " + inputs + '\n' + "outputs " + outputs + '\n';
+        return workspace.act(new Hash(full, inputs));
+    }
+
+    /**
+     * Restore the outputs of a previous run into the workspace.
+     *
+     * @return the recorded result, or {@code null} if there is none.
+     */
+    Hit restore(final String key) throws IOException, InterruptedException {
+        return workspace.act(new Restore(store, key));
+    }
+
+    /** Store the outputs and console of a successful run. */
+    void save(final String key, final byte[] console) throws IOException, InterruptedException {
+        workspace.act(new Save(store, key, outputs, console, MAX_SIZE));
+    }
+
+    /** A result found in the cache. */
+    static final class Hit implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final int exitCode;
+        final int files;
+        final byte[] console;
+
+        Hit(final int exitCode, final int files, final byte[] console) {
+            this.exitCode = exitCode;
+            this.files = files;
+            this.console = console;
+        }
+    }
+
+    /**
+     * Keeps a copy of the console output of a step, up to {@link #MAX_CONSOLE} bytes. Closing it
+     * leaves the build log open.
+     */
+    static final class Capture extends FilterOutputStream {
+        private final ByteArrayOutputStream copy = new ByteArrayOutputStream();
+        private boolean overflow;
+
+        Capture(final OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public synchronized void write(final int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(final byte[] b, final int off, final int len) throws IOException {
+            out.write(b, off, len);
+            if (!overflow && copy.size() + len <= MAX_CONSOLE) {
+                copy.write(b, off, len);
+            } else {
+                overflow = true;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+
+        /** The console output, or {@code null} if it was too long to record. */
+        synchronized byte[] getBytes() {
+            return overflow ? null : copy.toByteArray();
+        }
+    }
+
+    /** Hashes the description and the input files on the node. */
+    private static final class Hash extends MasterToSlaveFileCallable<String> {
+        private static final long serialVersionUID = 1L;
+
+        private final String description;
+        private final String inputs;
+
+        Hash(final String description, final String inputs) {
+            this.description = description;
+            this.inputs = inputs;
+        }
+
+        @Override
+        public String invoke(final File ws, final VirtualChannel channel) throws IOException {
+            final MessageDigest digest = sha256();
+            digest.update(description.getBytes(StandardCharsets.UTF_8));
+            if (inputs != null) {
+                final String[] files = Util.createFileSet(ws, inputs)
+                        .getDirectoryScanner()
+                        .getIncludedFiles();
+                Arrays.sort(files);
+                final List<String> hashes;
+                try {
+                    hashes = Arrays.stream(files)
+                            .parallel()
+                            .map(f -> {
+                                try {
+                                    return hash(new File(ws, f).toPath());
+                                } catch (IOException e) {
+                                    throw new UncheckedIOException(e);
+                                }
+                            })
+                            .collect(Collectors.toList());
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+                for (int i = 0; i < files.length; i++) {
+                    digest.update(("in " + files[i].replace('\\', '/') + ' ' + hashes.get(i) + '\n')
+                            .getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            return hex(digest.digest());
+        }
+    }
+
+    /** Copies the blobs of a manifest into the workspace. */
+    private static final class Restore extends MasterToSlaveFileCallable<Hit> {
+        private static final long serialVersionUID = 1L;
+
+        private final String store;
+        private final String key;
+
+        Restore(final String store, final String key) {
+            this.store = store;
+            this.key = key;
+        }
+
+        @Override
+        public Hit invoke(final File ws, final VirtualChannel channel) throws IOException {
+            final Path root = new File(store).toPath();
+            final Path manifest = root.resolve("entries").resolve(key);
+            if (!Files.isRegularFile(manifest)) {
+                return null;
+            }
+            int exitCode = 0;
+            byte[] console = new byte[0];
+            int files = 0;
+            for (String line : Files.readAllLines(manifest, StandardCharsets.UTF_8)) {
+                final String[] fields = line.split(" ", 4);
+                if (fields[0].equals("exit")) {
+                    exitCode = Integer.parseInt(fields[1]);
+                } else if (fields[0].equals("console")) {
+                    console = Files.readAllBytes(blob(root, fields[1]));
+                } else if (fields[0].equals("file")) {
+                    final Path target = ws.toPath().resolve(fields[3]);
+                    Files.createDirectories(target.getParent());
+                    Files.copy(blob(root, fields[2]), target, StandardCopyOption.REPLACE_EXISTING);
+                    if (fields[1].equals("x")) {
+                        target.toFile().setExecutable(true);
+                    }
+                    files++;
+                }
+            }
+            Files.setLastModifiedTime(manifest, FileTime.fromMillis(System.currentTimeMillis()));
+            return new Hit(exitCode, files, console);
+        }
+    }
+
+    /** Stores the outputs and console of a run, then evicts the least recently used entries. */
+    private static final class Save extends MasterToSlaveFileCallable<Void> {
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Saves and evictions of the steps of this JVM go one at a time; the lock file of the store
+         * does the same between JVMs, but cannot be taken twice by one JVM.
+         */
+        private static final Object LOCK = new Object();
+
+        private final String store;
+        private final String key;
+        private final String outputs;
+        private final byte[] console;
+        private final long maxSize;
+
+        Save(final String store, final String key, final String outputs, final byte[] console, final long maxSize) {
+            this.store = store;
+            this.key = key;
+            this.outputs = outputs;
+            this.console = console;
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        public Void invoke(final File ws, final VirtualChannel channel) throws IOException {
+            final Path root = new File(store).toPath();
+            synchronized (LOCK) {
+                Files.createDirectories(root);
+                try (FileChannel lockFile = FileChannel.open(
+                                root.resolve("lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                        FileLock held = lockFile.lock()) {
+                    save(ws, root);
+                }
+            }
+            return null;
+        }
+
+        private void save(final File ws, final Path root) throws IOException {
+            final StringBuilder manifest = new StringBuilder("exit 0\n");
+            final Path consoleFile = Files.createTempFile("xshell-console", ".log");
+            try {
+                Files.write(consoleFile, console);
+                manifest.append("console ").append(put(root, consoleFile)).append('\n');
+            } finally {
+                Files.deleteIfExists(consoleFile);
+            }
+            if (outputs != null) {
+                for (String f : Util.createFileSet(ws, outputs)
+                        .getDirectoryScanner()
+                        .getIncludedFiles()) {
+                    final Path file = ws.toPath().resolve(f);
+                    manifest.append("file ")
+                            .append(Files.isExecutable(file) ? "x " : "- ")
+                            .append(put(root, file))
+                            .append(' ')
+                            .append(f.replace('\\', '/'))
+                            .append('\n');
+                }
+            }
+            final Path entries = Files.createDirectories(root.resolve("entries"));
+            final Path tmp = entries.resolve(key + "." + UUID.randomUUID() + ".tmp");
+            Files.write(tmp, manifest.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp, entries.resolve(key), StandardCopyOption.REPLACE_EXISTING);
+            evict(root, maxSize);
+        }
+    }
+
+    /** Add a file to the blobs, unless it is there already. Must hold the lock. */
+    private static String put(final Path root, final Path file) throws IOException {
+        final String hash = hash(file);
+        final Path blob = blob(root, hash);
+        if (!Files.exists(blob)) {
+            Files.createDirectories(blob.getParent());
+            final Path tmp = blob.resolveSibling(hash + "." + UUID.randomUUID() + ".tmp");
+            Files.copy(file, tmp);
+            Files.move(tmp, blob, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return hash;
+    }
+
+    /** Drop the least recently used manifests and their orphaned blobs. Must hold the lock. */
+    private static void evict(final Path root, final long maxSize) throws IOException {
+        final List<Path> manifests;
+        try (Stream<Path> s = Files.list(root.resolve("entries"))) {
+            manifests = s.filter(p -> !p.getFileName().toString().endsWith(".tmp"))
+                    .sorted(Comparator.comparing(ResultCache::lastModified).reversed())
+                    .collect(Collectors.toList());
+        }
+        final Set<String> kept = new HashSet<>();
+        long size = 0;
+        final List<Path> dropped = new ArrayList<>();
+        for (Path manifest : manifests) {
+            if (size > maxSize) {
+                dropped.add(manifest);
+                continue;
+            }
+            size += Files.size(manifest);
+            for (String line : Files.readAllLines(manifest, StandardCharsets.UTF_8)) {
+                final String[] fields = line.split(" ", 4);
+                final String hash;
+                if (fields[0].equals("console")) {
+                    hash = fields[1];
+                } else if (fields[0].equals("file")) {
+                    hash = fields[2];
+                } else {
+                    continue;
+                }
+                if (kept.add(hash)) {
+                    final Path blob = blob(root, hash);
+                    size += Files.exists(blob) ? Files.size(blob) : 0;
+                }
+            }
+        }
+        if (dropped.isEmpty()) {
+            return;
+        }
+        for (Path manifest : dropped) {
+            Files.deleteIfExists(manifest);
+        }
+        try (Stream<Path> s = Files.walk(root.resolve("blobs"))) {
+            for (Path blob : s.filter(Files::isRegularFile).collect(Collectors.toList())) {
+                if (!kept.contains(blob.getFileName().toString())) {
+                    Files.deleteIfExists(blob);
+                }
+            }
+        }
+    }
+
+    private static FileTime lastModified(final Path p) {
+        try {
+            return Files.getLastModifiedTime(p);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    private static Path blob(final Path root, final String hash) {
+        return root.resolve("blobs").resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    private static String hash(final Path file) throws IOException {
+        final MessageDigest digest = sha256();
+        final byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = Files.newInputStream(file)) {
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                digest.update(buffer, 0, n);
+            }
+        }
+        return hex(digest.digest());
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(final byte[] bytes) {
+        final StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+}
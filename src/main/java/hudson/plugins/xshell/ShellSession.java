@@ -0,0 +1,358 @@
+package hudson.plugins.xshell;
+
+import hudson.EnvVars;
+import hudson.Proc;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import jenkins.util.SystemProperties;
+
+/**
+ * A long-lived {@code /bin/sh} on an agent that runs short commands one after the other.
+ *
+ * <p>Launching a child from the JVM costs a spawn helper, a shell startup and the whole environment.
+ * A session pays that once: each command is written to the shell's input and run in a subshell,
+ * which is only a fork of the warm shell, with the variables that differ from the shell's own
+ * environment exported in it. Those are expanded on top of the agent's environment the same way a
+ * launcher does, so {@code PATH+NAME} entries and references such as {@code $HOME} mean the same
+ * in a session. The output of the command goes through a pipe of its own, which the shell copies
+ * to its output until every process that holds the pipe has closed it, so processes the command
+ * left running in the background hold up the end of the command as they would with a plain launch,
+ * and never write into the output of a later command. The end of the command's output is framed
+ * by a marker that holds a random token and the exit code.
+ *
+ * <p>Sessions are pooled per working directory in the agent JVM. A session is discarded after
+ * {@link #MAX_RUNS} commands, after a command that failed and whenever a command is killed, so a
+ * broken shell is never reused. Sessions are only available where {@code /bin/sh} is.
+ */
+final class ShellSession {
+
+    private static final Logger LOG = Logger.getLogger(ShellSession.class.getName());
+
+    /** Commands run by a session before it is replaced. */
+    static final int MAX_RUNS = SystemProperties.getInteger(ShellSession.class.getName() + ".maxRuns", 100);
+
+    /** Most idle sessions kept per working directory. */
+    static final int MAX_IDLE = SystemProperties.getInteger(ShellSession.class.getName() + ".maxIdle", 4);
+
+    /** Milliseconds an idle session is kept. */
+    static final long IDLE_TIMEOUT =
+            SystemProperties.getLong(ShellSession.class.getName() + ".idleTimeout", 5 * 60 * 1000L);
+
+    private static final File SHELL = new File("/bin/sh");
+
+    private static final Pattern NAME = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+
+    /** Idle sessions by working directory. */
+    private static final Map<String, Deque<ShellSession>> IDLE = new HashMap<>();
+
+    /** The environment of every shell, the same as that of the agent JVM. */
+    private static final Map<String, String> BASE_ENV = System.getenv();
+
+    private final String pwd;
+    private final Process process;
+    private final byte[] marker;
+    private final String token;
+    private int runs;
+
+    /** The command running in this session, if any. */
+    private volatile Command current;
+    private long lastUsed;
+
+    private ShellSession(final String pwd) throws IOException {
+        this.pwd = pwd;
+        final ProcessBuilder builder = new ProcessBuilder(SHELL.getPath());
+        builder.directory(new File(pwd));
+        builder.redirectErrorStream(true);
+        this.process = builder.start();
+        this.token = "XSHELL-" + UUID.randomUUID();
+        this.marker = ("\u0001" + token + " ").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Run a command in a warm session.
+     *
+     * @param cmds the command line.
+     * @param envs the environment of the command, on top of the agent's own.
+     * @param pwd the working directory.
+     * @param out receives the output of the command.
+     * @return the running command, or {@code null} if it cannot run in a session, in which case it
+     *     must be launched normally.
+     */
+    static Proc launch(
+            final List<String> cmds, final Map<String, String> envs, final String pwd, final OutputStream out)
+            throws IOException {
+        if (!SHELL.canExecute() || File.pathSeparatorChar != ':') {
+            return null;
+        }
+        final Map<String, String> changes = changes(envs);
+        if (changes == null) {
+            return null;
+        }
+        final ShellSession session = acquire(pwd);
+        try {
+            return session.run(cmds, changes, out);
+        } catch (IOException e) {
+            session.close();
+            throw e;
+        }
+    }
+
+    /**
+     * The variables that a command changes in the environment of the shell, after the same
+     * expansion as {@link hudson.Launcher.LocalLauncher}.
+     *
+     * @return the new values, {@code null} for a variable that is removed, or {@code null} if a
+     *     variable cannot be set from a shell.
+     */
+    private static Map<String, String> changes(final Map<String, String> envs) {
+        final EnvVars env = new EnvVars(BASE_ENV);
+        env.overrideExpandingAll(envs);
+        final Map<String, String> changes = new HashMap<>();
+        for (Map.Entry<String, String> e : env.entrySet()) {
+            if (!e.getValue().equals(BASE_ENV.get(e.getKey()))) {
+                changes.put(e.getKey(), e.getValue());
+            }
+        }
+        for (String name : BASE_ENV.keySet()) {
+            if (!env.containsKey(name)) {
+                changes.put(name, null);
+            }
+        }
+        for (String name : changes.keySet()) {
+            if (!NAME.matcher(name).matches()) {
+                LOG.log(Level.FINE, "Cannot export {0} from a shell session", name);
+                return null;
+            }
+        }
+        return changes;
+    }
+
+    private static ShellSession acquire(final String pwd) throws IOException {
+        synchronized (IDLE) {
+            final long now = System.currentTimeMillis();
+            for (Iterator<Deque<ShellSession>> it = IDLE.values().iterator(); it.hasNext(); ) {
+                final Deque<ShellSession> sessions = it.next();
+                sessions.removeIf(s -> {
+                    if (now - s.lastUsed > IDLE_TIMEOUT || !s.process.isAlive()) {
+                        s.close();
+                        return true;
+                    }
+                    return false;
+                });
+                if (sessions.isEmpty()) {
+                    it.remove();
+                }
+            }
+            final Deque<ShellSession> sessions = IDLE.get(pwd);
+            if (sessions != null && !sessions.isEmpty()) {
+                return sessions.pop();
+            }
+        }
+        return new ShellSession(pwd);
+    }
+
+    private void release(final boolean healthy) {
+        if (!healthy || runs >= MAX_RUNS || !process.isAlive()) {
+            close();
+            return;
+        }
+        lastUsed = System.currentTimeMillis();
+        synchronized (IDLE) {
+            final Deque<ShellSession> sessions = IDLE.computeIfAbsent(pwd, k -> new ArrayDeque<>());
+            if (sessions.size() < MAX_IDLE) {
+                sessions.push(this);
+                return;
+            }
+        }
+        close();
+    }
+
+    private void close() {
+        final Command command = current;
+        if (command != null) {
+            command.done = true;
+        }
+        process.descendants().forEach(ProcessHandle::destroyForcibly);
+        process.destroyForcibly();
+    }
+
+    private Proc run(final List<String> cmds, final Map<String, String> changes, final OutputStream out)
+            throws IOException {
+        runs++;
+        final StringBuilder script =
+                new StringBuilder("{ xshell_code=$( { { ( cd ").append(quote(pwd)).append(" || exit 126");
+        for (Map.Entry<String, String> e : changes.entrySet()) {
+            if (e.getValue() == null) {
+                script.append("; unset ").append(e.getKey());
+            } else {
+                script.append("; export ").append(e.getKey()).append('=').append(quote(e.getValue()));
+            }
+        }
+        script.append("; exec");
+        for (String arg : cmds) {
+            script.append(' ').append(quote(arg));
+        }
+        // The command writes to a pipe that cat copies to fd 3, the output of the shell, until the
+        // last process holding the pipe closes it. Its exit code comes back through fd 4, which,
+        // like fd 3, the command does not inherit.
+        script.append(" ) </dev/null 2>&1 3>&- 4>&-; echo \"$?\" >&4; } | cat >&3; } 4>&1 ); } 3>&1\n");
+        script.append("printf '\\001%s %d\\n' ").append(token).append(" \"$xshell_code\"\n");
+        final Writer in = new OutputStreamWriter(process.getOutputStream(), Charset.defaultCharset());
+        in.write(script.toString());
+        in.flush();
+        final Command command = new Command(out);
+        current = command;
+        return command;
+    }
+
+    private static String quote(final String s) {
+        return "'" + s.replace("'", "'\\''") + "'";
+    }
+
+    /** A command running in this session. */
+    private final class Command extends Proc {
+        private final OutputStream out;
+        private volatile boolean killed;
+
+        /** Whether the marker of the command was read, or the session was closed. */
+        volatile boolean done;
+
+        Command(final OutputStream out) {
+            this.out = out;
+        }
+
+        /** Whether the command is running; the shell itself outlives it. */
+        @Override
+        public boolean isAlive() {
+            return !done && process.isAlive();
+        }
+
+        @Override
+        public void kill() {
+            killed = true;
+            close();
+        }
+
+        /** Copy the output up to the marker and read the exit code after it. */
+        @Override
+        public int join() throws IOException {
+            final InputStream stdout = process.getInputStream();
+            final byte[] buffer = new byte[8192 + marker.length];
+            int held = 0;
+            boolean healthy = false;
+            try {
+                int n;
+                while ((n = stdout.read(buffer, held, buffer.length - held)) >= 0) {
+                    final int length = held + n;
+                    final int found = indexOf(buffer, length, marker);
+                    if (found >= 0) {
+                        out.write(buffer, 0, found);
+                        final int exitCode = readExitCode(stdout, buffer, found + marker.length, length);
+                        done = true;
+                        healthy = exitCode == 0 && !killed;
+                        return exitCode;
+                    }
+                    held = partialMarker(buffer, length);
+                    out.write(buffer, 0, length - held);
+                    System.arraycopy(buffer, length - held, buffer, 0, held);
+                }
+                out.write(buffer, 0, held);
+                if (killed) {
+                    return -1;
+                }
+                throw new IOException("Shell session ended unexpectedly");
+            } finally {
+                done = true;
+                current = null;
+                release(healthy);
+            }
+        }
+
+        private int readExitCode(final InputStream stdout, final byte[] buffer, final int from, final int length)
+                throws IOException {
+            final StringBuilder digits = new StringBuilder();
+            boolean complete = false;
+            for (int i = from; i < length && !complete; i++) {
+                if (buffer[i] == '\n') {
+                    complete = true;
+                } else {
+                    digits.append((char) buffer[i]);
+                }
+            }
+            int c;
+            while (!complete && (c = stdout.read()) >= 0) {
+                if (c == '\n') {
+                    complete = true;
+                } else {
+                    digits.append((char) c);
+                }
+            }
+            try {
+                return Integer.parseInt(digits.toString().trim());
+            } catch (NumberFormatException e) {
+                throw new IOException("Bad exit code from shell session: " + digits, e);
+            }
+        }
+
+        @Override
+        public InputStream getStdout() {
+            return null;
+        }
+
+        @Override
+        public InputStream getStderr() {
+            return null;
+        }
+
+        @Override
+        public OutputStream getStdin() {
+            return null;
+        }
+    }
+
+    private static int indexOf(final byte[] data, final int length, final byte[] pattern) {
+        outer:
+        for (int i = 0; i <= length - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (data[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    /** Length of the longest end of the data that could be the start of the marker. */
+    private int partialMarker(final byte[] data, final int length) {
+        for (int k = Math.min(marker.length - 1, length); k > 0; k--) {
+            boolean prefix = true;
+            for (int j = 0; j < k; j++) {
+                if (data[length - k + j] != marker[j]) {
+                    prefix = false;
+                    break;
+                }
+            }
+            if (prefix) {
+                return k;
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,201 @@
+package hudson.plugins.xshell;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Sparse line index of a spool file written by {@link SpoolOutputStream}.
+ *
+ * <p>There is one entry per compressed block, so the index stays small even for very large outputs,
+ * and reading a line range only decompresses from the block that holds its first line.
+ */
+final class SpoolIndex {
+
+    /** Charset of the index files themselves. */
+    static final Charset INDEX_CHARSET = StandardCharsets.US_ASCII;
+
+    /** Most matching lines recorded in an index. */
+    static final int MAX_MATCHES = 1000;
+
+    /** Most lines returned by one read. */
+    static final int MAX_READ_LINES = 10000;
+
+    private final long lines;
+    private final long bytes;
+    private final long compressedBytes;
+
+    /** Per block: first line, whether it starts within that line, uncompressed and compressed offset. */
+    private final List<long[]> blocks;
+
+    private final List<Long> matches;
+
+    SpoolIndex(
+            final long lines,
+            final long bytes,
+            final long compressedBytes,
+            final List<long[]> blocks,
+            final List<Long> matches) {
+        this.lines = lines;
+        this.bytes = bytes;
+        this.compressedBytes = compressedBytes;
+        this.blocks = blocks;
+        this.matches = Collections.unmodifiableList(matches);
+    }
+
+    long getLines() {
+        return lines;
+    }
+
+    long getBytes() {
+        return bytes;
+    }
+
+    long getCompressedBytes() {
+        return compressedBytes;
+    }
+
+    int getBlocks() {
+        return blocks.size();
+    }
+
+    /** Zero based numbers of the lines that matched a kill pattern. */
+    List<Long> getMatches() {
+        return matches;
+    }
+
+    /** The index as text, one block or match per line. */
+    String format() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("xshell-spool 1 ")
+                .append(lines)
+                .append(' ')
+                .append(bytes)
+                .append(' ')
+                .append(compressedBytes)
+                .append('\n');
+        for (long[] block : blocks) {
+            sb.append("B ")
+                    .append(block[0])
+                    .append(' ')
+                    .append(block[1])
+                    .append(' ')
+                    .append(block[2])
+                    .append(' ')
+                    .append(block[3])
+                    .append('\n');
+        }
+        for (Long match : matches) {
+            sb.append("M ").append(match).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Parse an index written by {@link #format()}.
+     *
+     * @throws IOException if the text is not an index.
+     */
+    static SpoolIndex parse(final Reader text) throws IOException {
+        final BufferedReader reader = new BufferedReader(text);
+        final String header = reader.readLine();
+        if (header == null || !header.startsWith("xshell-spool 1 ")) {
+            throw new IOException("Not an xshell spool index");
+        }
+        final String[] totals = header.split(" ");
+        final List<long[]> blocks = new ArrayList<>();
+        final List<Long> matches = new ArrayList<>();
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] fields = line.split(" ");
+                if (fields[0].equals("B") && fields.length == 5) {
+                    blocks.add(new long[] {
+                        Long.parseLong(fields[1]),
+                        Long.parseLong(fields[2]),
+                        Long.parseLong(fields[3]),
+                        Long.parseLong(fields[4])
+                    });
+                } else if (fields[0].equals("M") && fields.length == 2) {
+                    matches.add(Long.parseLong(fields[1]));
+                }
+            }
+            return new SpoolIndex(
+                    Long.parseLong(totals[2]), Long.parseLong(totals[3]), Long.parseLong(totals[4]), blocks, matches);
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Corrupt xshell spool index", e);
+        }
+    }
+
+    static SpoolIndex parse(final String text) throws IOException {
+        return parse(new StringReader(text));
+    }
+
+    /**
+     * Find the last block that starts on a line boundary at or before a line.
+     *
+     * @return the block as {first line, in line, uncompressed offset, compressed offset}.
+     */
+    long[] blockFor(final long line) {
+        int low = 0;
+        int high = blocks.size() - 1;
+        int found = 0;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            if (blocks.get(mid)[0] <= line) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        while (found > 0 && blocks.get(found)[1] != 0) {
+            found--;
+        }
+        return blocks.isEmpty() ? new long[] {0, 0, 0, 0} : blocks.get(found);
+    }
+
+    /**
+     * Read a range of lines from a spool file, decompressing only from the block that holds the
+     * first one.
+     *
+     * @param spool the spool file.
+     * @param from zero based number of the first line.
+     * @param count number of lines, capped at {@link #MAX_READ_LINES}.
+     * @param charset charset of the output.
+     * @return the lines, each with its end of line.
+     */
+    String read(final File spool, final long from, final int count, final Charset charset) throws IOException {
+        final long[] block = blockFor(from);
+        final long to = from + Math.min(count, MAX_READ_LINES);
+        final StringBuilder sb = new StringBuilder();
+        try (RandomAccessFile file = new RandomAccessFile(spool, "r")) {
+            file.seek(block[3]);
+            final InputStream in = new GZIPInputStream(Channels.newInputStream(file.getChannel()), 64 * 1024);
+            final BufferedReader reader = new BufferedReader(new InputStreamReader(in, charset));
+            long line = block[0];
+            int c;
+            while (line < to && (c = reader.read()) >= 0) {
+                if (line >= from) {
+                    sb.append((char) c);
+                }
+                if (c == '\n') {
+                    line++;
+                }
+            }
+        }
+        return sb.toString();
+    }
+}
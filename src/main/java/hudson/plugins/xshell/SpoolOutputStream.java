@@ -0,0 +1,185 @@
+package hudson.plugins.xshell;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes the complete output of a child to a compressed, line-indexed spool file.
+ *
+ * <p>The output is cut into blocks of about {@link #BLOCK_SIZE} bytes that end on a line end, and
+ * each block is compressed as its own gzip member. The file is therefore a regular gzip file, and a
+ * reader can start decompressing at any block. The {@link SpoolIndex} records the first line and
+ * the offsets of every block, and the lines that match a kill pattern.
+ */
+final class SpoolOutputStream extends OutputStream {
+
+    /** Uncompressed size after which a block is closed at the next line end. */
+    static final int BLOCK_SIZE = 64 * 1024;
+
+    /** Uncompressed size after which a block is closed even within a line. */
+    static final int MAX_BLOCK_SIZE = 16 * BLOCK_SIZE;
+
+    /** Receives the index once the spool is complete. */
+    interface Completion {
+        void completed(SpoolIndex index) throws IOException;
+    }
+
+    private final CountingOutputStream file;
+    private final KillPatterns patterns;
+    private final Charset charset;
+    private final Completion completion;
+    private final ByteArrayOutputStream block = new ByteArrayOutputStream(BLOCK_SIZE + 1024);
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+    private final List<long[]> blocks = new ArrayList<>();
+    private final List<Long> matches = new ArrayList<>();
+    private long lines;
+    private long blockFirstLine;
+    private boolean blockStartsInLine;
+    private long uncompressed;
+    private boolean lineOpen;
+    private boolean closed;
+
+    /**
+     * @param file where the compressed output goes; closed with this stream.
+     * @param patterns lines matching these are recorded in the index.
+     * @param charset charset used to decode lines for matching.
+     * @param completion receives the index when the stream is closed.
+     */
+    SpoolOutputStream(
+            final OutputStream file, final KillPatterns patterns, final Charset charset, final Completion completion) {
+        this.file = new CountingOutputStream(file);
+        this.patterns = patterns;
+        this.charset = charset;
+        this.completion = completion;
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(final byte[] b, final int off, final int len) throws IOException {
+        if (len == 0) {
+            return;
+        }
+        int start = off;
+        final int end = off + len;
+        for (int i = off; i < end; i++) {
+            if (b[i] == '\n') {
+                block.write(b, start, i + 1 - start);
+                lineEnded(b, start, i + 1);
+                start = i + 1;
+                if (block.size() >= BLOCK_SIZE) {
+                    flushBlock(false);
+                }
+            }
+        }
+        lineOpen = start < end;
+        if (lineOpen) {
+            block.write(b, start, end - start);
+            if (!patterns.isEmpty() && line.size() < KillPatterns.MAX_LINE_LENGTH) {
+                line.write(b, start, end - start);
+            }
+            if (block.size() >= MAX_BLOCK_SIZE) {
+                flushBlock(true);
+            }
+        }
+    }
+
+    private void lineEnded(final byte[] b, final int start, final int end) {
+        if (!patterns.isEmpty()) {
+            final String text;
+            if (line.size() == 0) {
+                text = new String(b, start, end - start, charset);
+            } else {
+                line.write(b, start, end - start);
+                text = new String(line.toByteArray(), charset);
+                line.reset();
+            }
+            if (matches.size() < SpoolIndex.MAX_MATCHES && patterns.find(text) != null) {
+                matches.add(lines);
+            }
+        }
+        lines++;
+    }
+
+    /**
+     * Compress the current block as its own gzip member.
+     *
+     * @param inLine whether the block ends within a line, so the next one starts within it.
+     */
+    private void flushBlock(final boolean inLine) throws IOException {
+        if (block.size() == 0) {
+            return;
+        }
+        blocks.add(new long[] {blockFirstLine, blockStartsInLine ? 1 : 0, uncompressed, file.getCount()});
+        final GZIPOutputStream gz = new GZIPOutputStream(new FilterOutputStream(file) {
+            @Override
+            public void write(final byte[] b, final int off, final int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() {
+                // The spool file stays open for the next block.
+            }
+        });
+        block.writeTo(gz);
+        gz.finish();
+        uncompressed += block.size();
+        block.reset();
+        blockFirstLine = lines;
+        blockStartsInLine = inLine;
+    }
+
+    @Override
+    public void flush() {
+        // Blocks are written whole when they are complete, there is nothing to push out in between.
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (lineOpen) {
+            lineEnded(new byte[0], 0, 0);
+        }
+        flushBlock(false);
+        file.close();
+        completion.completed(new SpoolIndex(lines, uncompressed, file.getCount(), blocks, matches));
+    }
+
+    /** Counts the compressed bytes, which are the offsets of the blocks. */
+    private static final class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        CountingOutputStream(final OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        long getCount() {
+            return count;
+        }
+    }
+}
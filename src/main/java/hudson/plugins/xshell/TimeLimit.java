@@ -0,0 +1,75 @@
+package hudson.plugins.xshell;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Parses the time limits of a step, such as {@code 90}, {@code 90s}, {@code 15m}, {@code 2h} or
+ * {@code 1h30m}. A number without a unit is a number of seconds, as it always was.
+ */
+final class TimeLimit {
+
+    private static final Pattern PART = Pattern.compile("(\\d+)\\s*(ms|s|m|h|d)?\\s*");
+
+    private TimeLimit() {}
+
+    /**
+     * Parse a time limit.
+     *
+     * @param value the configured value, may be {@code null} or blank for no limit.
+     * @return the limit in milliseconds, 0 for no limit.
+     * @throws IllegalArgumentException if the value is not a valid time limit.
+     */
+    static long parse(final String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return 0;
+        }
+        final String trimmed = value.trim().toLowerCase(Locale.ENGLISH);
+        final Matcher m = PART.matcher(trimmed);
+        long millis = 0;
+        int end = 0;
+        while (end < trimmed.length() && m.find(end) && m.start() == end) {
+            try {
+                millis = Math.addExact(millis, Math.multiplyExact(Long.parseLong(m.group(1)), unitMillis(m.group(2))));
+            } catch (ArithmeticException | NumberFormatException e) {
+                throw new IllegalArgumentException("Time limit out of range: " + value, e);
+            }
+            end = m.end();
+        }
+        if (end != trimmed.length()) {
+            throw new IllegalArgumentException(
+                    "Not a time limit: " + value + ". Use a number of seconds or units such as 90s, 15m or 2h");
+        }
+        return millis;
+    }
+
+    /** Format a duration in milliseconds for the console. */
+    static String format(final long millis) {
+        if (millis % TimeUnit.HOURS.toMillis(1) == 0 && millis > 0) {
+            return TimeUnit.MILLISECONDS.toHours(millis) + "h";
+        } else if (millis % TimeUnit.MINUTES.toMillis(1) == 0 && millis > 0) {
+            return TimeUnit.MILLISECONDS.toMinutes(millis) + "m";
+        } else if (millis % TimeUnit.SECONDS.toMillis(1) == 0) {
+            return TimeUnit.MILLISECONDS.toSeconds(millis) + "s";
+        }
+        return millis + "ms";
+    }
+
+    private static long unitMillis(final String unit) {
+        if (unit == null || unit.equals("s")) {
+            return TimeUnit.SECONDS.toMillis(1);
+        }
+        switch (unit) {
+            case "ms":
+                return 1;
+            case "m":
+                return TimeUnit.MINUTES.toMillis(1);
+            case "h":
+                return TimeUnit.HOURS.toMillis(1);
+            default:
+                return TimeUnit.DAYS.toMillis(1);
+        }
+    }
+}
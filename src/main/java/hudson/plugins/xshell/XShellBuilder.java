@@ -3,18 +3,28 @@ package hudson.plugins.xshell;
 import hudson.*;
 import hudson.model.AbstractBuild;
 import hudson.model.BuildListener;
+import hudson.model.Computer;
 import hudson.model.Descriptor;
-import hudson.model.StreamBuildListener;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.slaves.WorkspaceList;
 import hudson.tasks.Builder;
 import hudson.util.ArgumentListBuilder;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import org.apache.commons.io.output.TeeOutputStream;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 
 /**
  * XShell Builder Plugin.
@@ -24,8 +34,6 @@ import org.kohsuke.stapler.DataBoundConstructor;
 public final class XShellBuilder extends Builder {
 
     private static final Logger LOG = Logger.getLogger(XShellBuilder.class.getName());
-    private static final Pattern WIN_ENV_VAR_REGEX = Pattern.compile("%([a-zA-Z0-9_]+)%");
-    private static final Pattern UNIX_ENV_VAR_REGEX = Pattern.compile("\\$([a-zA-Z0-9_]+)");
     public static final String UNIX_SEP = "/";
     public static final String WINDOWS_SEP = "\\";
 
@@ -41,12 +49,108 @@ public final class XShellBuilder extends Builder {
     /** Specify if command is executed from working dir. */
     private final Boolean executeFromWorkingDir;
 
-    /** if output matches this then kill the step. */
+    /** if output matches one of these regexes, one per line, then kill the step. */
     private final String regexToKill;
 
+    /** names of global pattern sets that also kill the step */
+    private String patternSets;
+
     /** amount of time to allocate to the step */
     private final String timeAllocated;
 
+    /** time between terminating a step that ran out of time and killing it */
+    private String killGracePeriod;
+
+    /** time without output after which the step is terminated */
+    private String idleTimeout;
+
+    /** charset of the child's output, the build's charset if empty */
+    private String outputCharset;
+
+    /** number of output lines written to the console before eliding, 0 to keep all */
+    private int consoleHeadLines;
+
+    /** number of output lines kept for the end of the console, 0 to keep all */
+    private int consoleTailLines;
+
+    /** whether runs of repeated lines are folded in the console */
+    private boolean foldRepeats;
+
+    /** whether each line of the command line runs as a command of its own */
+    private boolean commandPerLine;
+
+    /** number of command lines run at the same time */
+    private int parallelism = 1;
+
+    /** whether the first failed command line terminates the others */
+    private boolean failFast;
+
+    /** whether the full output is kept in a compressed spool file on the node */
+    private boolean spoolOutput;
+
+    /** whether the output is scanned and the time limit enforced on the agent */
+    private boolean scanOnAgent;
+
+    /** whether short commands run in pooled shell sessions on the agent */
+    private boolean warmSession;
+
+    /** input files of the result cache, globs relative to the workspace */
+    private String cacheInputs;
+
+    /** output files of the result cache, globs relative to the workspace */
+    private String cacheOutputs;
+
+    /** names of the environment variables that are part of the cache key */
+    private String cacheEnv;
+
+    /** niceness of the child on Linux agents, 0 to leave it */
+    private int niceness;
+
+    /** I/O scheduling class of the child on Linux agents, idle or best-effort */
+    private String ioClass;
+
+    /** cap on the address space of the child on Linux agents, such as 4g */
+    private String addressSpaceLimit;
+
+    /** cap on the open files of the child on Linux agents, 0 for none */
+    private int maxOpenFiles;
+
+    /** cap on the processes of the agent's user while the child runs on Linux agents, 0 for none */
+    private int maxUserProcesses;
+
+    /** whether the command line is a block of lines run as one script */
+    private boolean scriptMode;
+
+    /** whether a script stops at its first failing line */
+    private boolean stopOnFailure;
+
+    /** if output matches one of these regexes, one per line, then the step is done */
+    private String readyRegex;
+
+    /** time allowed to match the ready regex */
+    private String readyTimeout;
+
+    /** whether a ready child keeps running until the end of the build rather than being shut down */
+    private boolean keepRunning;
+
+    /** Command lines converted for Unix nodes, built on first use. */
+    private transient volatile List<CommandTemplate> unixCommands;
+
+    /** Command lines converted for Windows nodes, built on first use. */
+    private transient volatile List<CommandTemplate> windowsCommands;
+
+    /** Compiled {@link #regexToKill}, built on first use. */
+    private transient volatile KillPatterns killPatterns;
+
+    /** {@link #killPatterns} with the {@link #patternSets}, and the library they come from. */
+    private transient volatile Resolved resolvedPatterns;
+
+    /** Compiled {@link #readyRegex}, built on first use. */
+    private transient volatile KillPatterns readyPatterns;
+
+    /** Parsed {@link #timeAllocated} in milliseconds, built on first use. */
+    private transient volatile Long timeLimit;
+
     public String getCommandLine() {
         return commandLine;
     }
@@ -67,6 +171,240 @@ public final class XShellBuilder extends Builder {
         return timeAllocated;
     }
 
+    public String getPatternSets() {
+        return patternSets;
+    }
+
+    @DataBoundSetter
+    public void setPatternSets(final String patternSets) {
+        this.patternSets = Util.fixEmptyAndTrim(patternSets);
+    }
+
+    public String getKillGracePeriod() {
+        return killGracePeriod;
+    }
+
+    @DataBoundSetter
+    public void setKillGracePeriod(final String killGracePeriod) {
+        this.killGracePeriod = Util.fixEmptyAndTrim(killGracePeriod);
+    }
+
+    public String getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    @DataBoundSetter
+    public void setIdleTimeout(final String idleTimeout) {
+        this.idleTimeout = Util.fixEmptyAndTrim(idleTimeout);
+    }
+
+    public String getOutputCharset() {
+        return outputCharset;
+    }
+
+    @DataBoundSetter
+    public void setOutputCharset(final String outputCharset) {
+        this.outputCharset = Util.fixEmptyAndTrim(outputCharset);
+    }
+
+    public int getConsoleHeadLines() {
+        return consoleHeadLines;
+    }
+
+    @DataBoundSetter
+    public void setConsoleHeadLines(final int consoleHeadLines) {
+        this.consoleHeadLines = Math.max(0, consoleHeadLines);
+    }
+
+    public int getConsoleTailLines() {
+        return consoleTailLines;
+    }
+
+    @DataBoundSetter
+    public void setConsoleTailLines(final int consoleTailLines) {
+        this.consoleTailLines = Math.max(0, consoleTailLines);
+    }
+
+    public boolean isFoldRepeats() {
+        return foldRepeats;
+    }
+
+    @DataBoundSetter
+    public void setFoldRepeats(final boolean foldRepeats) {
+        this.foldRepeats = foldRepeats;
+    }
+
+    public boolean isCommandPerLine() {
+        return commandPerLine;
+    }
+
+    @DataBoundSetter
+    public void setCommandPerLine(final boolean commandPerLine) {
+        this.commandPerLine = commandPerLine;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    @DataBoundSetter
+    public void setParallelism(final int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    public boolean isFailFast() {
+        return failFast;
+    }
+
+    @DataBoundSetter
+    public void setFailFast(final boolean failFast) {
+        this.failFast = failFast;
+    }
+
+    public boolean isSpoolOutput() {
+        return spoolOutput;
+    }
+
+    @DataBoundSetter
+    public void setSpoolOutput(final boolean spoolOutput) {
+        this.spoolOutput = spoolOutput;
+    }
+
+    public boolean isScanOnAgent() {
+        return scanOnAgent;
+    }
+
+    @DataBoundSetter
+    public void setScanOnAgent(final boolean scanOnAgent) {
+        this.scanOnAgent = scanOnAgent;
+    }
+
+    public boolean isWarmSession() {
+        return warmSession;
+    }
+
+    @DataBoundSetter
+    public void setWarmSession(final boolean warmSession) {
+        this.warmSession = warmSession;
+    }
+
+    public String getCacheInputs() {
+        return cacheInputs;
+    }
+
+    @DataBoundSetter
+    public void setCacheInputs(final String cacheInputs) {
+        this.cacheInputs = Util.fixEmptyAndTrim(cacheInputs);
+    }
+
+    public String getCacheOutputs() {
+        return cacheOutputs;
+    }
+
+    @DataBoundSetter
+    public void setCacheOutputs(final String cacheOutputs) {
+        this.cacheOutputs = Util.fixEmptyAndTrim(cacheOutputs);
+    }
+
+    public String getCacheEnv() {
+        return cacheEnv;
+    }
+
+    @DataBoundSetter
+    public void setCacheEnv(final String cacheEnv) {
+        this.cacheEnv = Util.fixEmptyAndTrim(cacheEnv);
+    }
+
+    public int getNiceness() {
+        return niceness;
+    }
+
+    @DataBoundSetter
+    public void setNiceness(final int niceness) {
+        this.niceness = niceness;
+    }
+
+    public String getIoClass() {
+        return ioClass;
+    }
+
+    @DataBoundSetter
+    public void setIoClass(final String ioClass) {
+        this.ioClass = Util.fixEmptyAndTrim(ioClass);
+    }
+
+    public String getAddressSpaceLimit() {
+        return addressSpaceLimit;
+    }
+
+    @DataBoundSetter
+    public void setAddressSpaceLimit(final String addressSpaceLimit) {
+        this.addressSpaceLimit = Util.fixEmptyAndTrim(addressSpaceLimit);
+    }
+
+    public int getMaxOpenFiles() {
+        return maxOpenFiles;
+    }
+
+    @DataBoundSetter
+    public void setMaxOpenFiles(final int maxOpenFiles) {
+        this.maxOpenFiles = Math.max(0, maxOpenFiles);
+    }
+
+    public int getMaxUserProcesses() {
+        return maxUserProcesses;
+    }
+
+    @DataBoundSetter
+    public void setMaxUserProcesses(final int maxUserProcesses) {
+        this.maxUserProcesses = Math.max(0, maxUserProcesses);
+    }
+
+    public boolean isScriptMode() {
+        return scriptMode;
+    }
+
+    @DataBoundSetter
+    public void setScriptMode(final boolean scriptMode) {
+        this.scriptMode = scriptMode;
+    }
+
+    public boolean isStopOnFailure() {
+        return stopOnFailure;
+    }
+
+    @DataBoundSetter
+    public void setStopOnFailure(final boolean stopOnFailure) {
+        this.stopOnFailure = stopOnFailure;
+    }
+
+    public String getReadyRegex() {
+        return readyRegex;
+    }
+
+    @DataBoundSetter
+    public void setReadyRegex(final String readyRegex) {
+        this.readyRegex = Util.fixEmptyAndTrim(readyRegex);
+    }
+
+    public String getReadyTimeout() {
+        return readyTimeout;
+    }
+
+    @DataBoundSetter
+    public void setReadyTimeout(final String readyTimeout) {
+        this.readyTimeout = Util.fixEmptyAndTrim(readyTimeout);
+    }
+
+    public boolean isKeepRunning() {
+        return keepRunning;
+    }
+
+    @DataBoundSetter
+    public void setKeepRunning(final boolean keepRunning) {
+        this.keepRunning = keepRunning;
+    }
+
     @DataBoundConstructor
     public XShellBuilder(
             final String commandLine,
@@ -81,47 +419,186 @@ public final class XShellBuilder extends Builder {
         this.timeAllocated = timeAllocated;
     }
 
-    @Override
-    public Descriptor<Builder> getDescriptor() {
-        return DESCRIPTOR;
+    /**
+     * The command lines converted for the OS flavor of a node. The configuration of a builder never
+     * changes, so the conversion is done once per flavor and shared by all builds. In script mode
+     * the whole block is one template; separators are converted token by token, so that is the
+     * same as converting each line. Unless each line is a command of its own, a command line of
+     * several lines is one command, with its line breaks taken as spaces, as it always was.
+     */
+    List<CommandTemplate> getCommandTemplates(final boolean unix) {
+        List<CommandTemplate> templates = unix ? unixCommands : windowsCommands;
+        if (templates == null) {
+            final List<CommandTemplate> converted = new ArrayList<>();
+            final List<String> lines = commandPerLine && !scriptMode
+                    ? splitCommandLines(commandLine)
+                    : Collections.singletonList(commandLine);
+            for (String line : lines) {
+                converted.add(new CommandTemplate(line, unix));
+            }
+            templates = Collections.unmodifiableList(converted);
+            if (unix) {
+                unixCommands = templates;
+            } else {
+                windowsCommands = templates;
+            }
+        }
+        return templates;
     }
 
-    @Override
-    public boolean perform(final AbstractBuild<?, ?> build, final Launcher launcher, final BuildListener listener)
-            throws InterruptedException, IOException {
+    /**
+     * Split a command line into its non-blank lines.
+     *
+     * @return the lines, or the command line itself if it has less than two non-blank lines.
+     */
+    static List<String> splitCommandLines(final String commandLine) {
+        if (commandLine == null || commandLine.indexOf('\n') < 0) {
+            return Collections.singletonList(commandLine);
+        }
+        final List<String> lines = new ArrayList<>();
+        for (String line : commandLine.split("\\r?\\n")) {
+            if (!line.trim().isEmpty()) {
+                lines.add(line.trim());
+            }
+        }
+        return lines.size() > 1 ? lines : Collections.singletonList(commandLine);
+    }
 
-        LOG.log(Level.FINE, "Unmodified command line: " + commandLine);
-        LOG.log(Level.FINE, "Regex to kill: " + regexToKill);
-        LOG.log(Level.FINE, "Time allocated before kill: " + timeAllocated);
+    /** The compiled kill regexes, shared by all builds. */
+    KillPatterns getKillPatterns() {
+        KillPatterns patterns = killPatterns;
+        if (patterns == null) {
+            patterns = KillPatterns.compile(regexToKill);
+            killPatterns = patterns;
+        }
+        return patterns;
+    }
 
-        final EnvVars env = build.getEnvironment(listener);
+    /**
+     * The compiled kill regexes with those of the pattern sets, shared by all builds until the
+     * global configuration changes.
+     */
+    KillPatterns getAllKillPatterns(final PatternLibrary library) {
+        Resolved resolved = resolvedPatterns;
+        if (resolved == null || resolved.library != library) {
+            resolved = new Resolved(library, library.resolve(getKillPatterns(), patternSets));
+            resolvedPatterns = resolved;
+        }
+        return resolved.patterns;
+    }
 
-        String cmdLine = convertSeparator(commandLine, (launcher.isUnix() ? UNIX_SEP : WINDOWS_SEP));
-        LOG.log(Level.FINE, "File separators sanitized: " + cmdLine);
+    /** The idle timeout of the step, or the global default if it has none. */
+    String getIdleTimeoutLabel() {
+        return idleTimeout != null ? idleTimeout : DESCRIPTOR.getLibrary().getDefaultIdleTimeout();
+    }
 
-        cmdLine = env.expand(cmdLine);
+    /** Kill patterns resolved against one version of the global configuration. */
+    private static final class Resolved {
+        final PatternLibrary library;
+        final KillPatterns patterns;
 
-        LOG.log(Level.FINE, "Expanded build environment vars: " + cmdLine);
+        Resolved(final PatternLibrary library, final KillPatterns patterns) {
+            this.library = library;
+            this.patterns = patterns;
+        }
+    }
 
-        if (launcher.isUnix()) {
-            cmdLine = convertEnvVarsToUnix(cmdLine);
-        } else {
-            cmdLine = convertEnvVarsToWindows(cmdLine);
+    /** The compiled ready regexes, shared by all builds. */
+    KillPatterns getReadyPatterns() {
+        KillPatterns patterns = readyPatterns;
+        if (patterns == null) {
+            patterns = KillPatterns.compile(readyRegex);
+            readyPatterns = patterns;
         }
-        LOG.log(Level.FINE, "Environment variables sanitized: " + cmdLine);
+        return patterns;
+    }
 
-        ArgumentListBuilder args = new ArgumentListBuilder();
-        if (cmdLine != null) {
-            args.addTokenized((launcher.isUnix() && executeFromWorkingDir) ? "./" + cmdLine : cmdLine);
-            LOG.log(Level.FINE, "Execute from working directory: " + args.toStringWithQuote());
+    /**
+     * The time allocated to the step in milliseconds, 0 for no limit.
+     *
+     * @throws IllegalArgumentException if {@link #timeAllocated} is not a valid time limit.
+     */
+    long getTimeLimit() {
+        Long limit = timeLimit;
+        if (limit == null) {
+            limit = TimeLimit.parse(timeAllocated);
+            timeLimit = limit;
         }
+        return limit;
+    }
 
-        if (!launcher.isUnix()) {
-            args = args.toWindowsCommand();
-            LOG.log(Level.FINE, "Windows command: " + args.toStringWithQuote());
+    @Override
+    public Descriptor<Builder> getDescriptor() {
+        return DESCRIPTOR;
+    }
+
+    @Override
+    public boolean perform(final AbstractBuild<?, ?> build, final Launcher launcher, final BuildListener listener)
+            throws InterruptedException, IOException {
+        final XShellEvents.Span environment = XShellEvents.begin(XShellEvents.Phase.ENVIRONMENT);
+        final BuildEnvironment env = BuildEnvironment.of(build, listener);
+        environment.end(null);
+        try {
+            final XShellRun run = start(
+                    build,
+                    build.getWorkspace(),
+                    launcher.decorateFor(build.getBuiltOn()),
+                    listener,
+                    env.getEnvironment(),
+                    env.getBuildVariables());
+            final int exitCode = run.join();
+            if (run.isIdleTimedOut()) {
+                listener.error(Messages.XShell_IdleTimedOut(getIdleTimeoutLabel()));
+            }
+            return exitCode == 0 && !run.isTerminated();
+        } catch (final IOException e) {
+            Util.displayIOException(e, listener);
+            final String errorMessage = Messages.XShell_ExecFailed();
+            e.printStackTrace(listener.fatalError(errorMessage));
+            return false;
         }
+    }
 
-        env.putAll(build.getBuildVariables());
+    /**
+     * Launch the command lines of this builder.
+     *
+     * @param run the build the step belongs to.
+     * @param workspace the workspace, the base of a relative working dir.
+     * @param launcher launcher for the node the step runs on.
+     * @param listener where the output goes.
+     * @param env variables expanded in the command line.
+     * @param buildVariables additional variables given to the child but not expanded.
+     * @return the running command lines.
+     */
+    XShellRun start(
+            final Run<?, ?> run,
+            final FilePath workspace,
+            final Launcher launcher,
+            final TaskListener listener,
+            final EnvVars env,
+            final Map<String, String> buildVariables)
+            throws IOException {
+
+        LOG.log(Level.FINE, "Unmodified command line: {0}", commandLine);
+        LOG.log(Level.FINE, "Regex to kill: {0}", regexToKill);
+        LOG.log(Level.FINE, "Time allocated before kill: {0}", timeAllocated);
+
+        final XShellEvents.Span conversion = XShellEvents.begin(XShellEvents.Phase.CONVERSION);
+        final List<CommandTemplate> templates = getCommandTemplates(launcher.isUnix());
+        final List<ArgumentListBuilder> commands = new ArrayList<>(templates.size());
+        final String script = scriptMode ? toScript(templates.get(0), env, launcher.isUnix()) : null;
+        if (script != null) {
+            // Stands for the script in the cache key until the script is written.
+            commands.add(new ArgumentListBuilder(script));
+        } else {
+            for (CommandTemplate template : templates) {
+                commands.add(toArguments(template, env, launcher.isUnix()));
+            }
+        }
+        conversion.end(null);
+
+        final EnvVars childEnv = new EnvVars(env);
+        childEnv.putAll(buildVariables);
 
         // Determine the correct working directory
         String absWorkingDir;
@@ -129,99 +606,453 @@ public final class XShellBuilder extends Builder {
         if (new File(nonNullWorkingDir).isAbsolute()) {
             absWorkingDir = nonNullWorkingDir;
         } else {
-            absWorkingDir = build.getWorkspace() + (launcher.isUnix() ? UNIX_SEP : WINDOWS_SEP) + nonNullWorkingDir;
+            absWorkingDir = workspace + (launcher.isUnix() ? UNIX_SEP : WINDOWS_SEP) + nonNullWorkingDir;
+        }
+
+        LOG.log(Level.FINEST, "Environment variables: {0}", childEnv.entrySet());
+        LOG.log(Level.FINE, "Working directory: {0}", absWorkingDir);
+
+        final PatternLibrary library = DESCRIPTOR.getLibrary();
+        final boolean ownTimeLimit = Util.fixEmptyAndTrim(timeAllocated) != null;
+        final String timeLabel = ownTimeLimit ? timeAllocated : library.getDefaultTimeAllocated();
+        final String idleLabel = getIdleTimeoutLabel();
+        long timeAllowed;
+        try {
+            timeAllowed = ownTimeLimit ? getTimeLimit() : library.getDefaultTimeLimit();
+        } catch (IllegalArgumentException e) {
+            listener.getLogger().println("Ignoring time allocated: " + e.getMessage());
+            timeAllowed = 0;
+        }
+        long gracePeriod;
+        try {
+            gracePeriod = TimeLimit.parse(killGracePeriod);
+        } catch (IllegalArgumentException e) {
+            listener.getLogger().println("Ignoring kill grace period: " + e.getMessage());
+            gracePeriod = 0;
+        }
+        final long timeLimit = timeAllowed;
+        final long grace = gracePeriod;
+        long idleAllowed;
+        try {
+            idleAllowed = TimeLimit.parse(idleLabel);
+        } catch (IllegalArgumentException e) {
+            listener.getLogger().println("Ignoring idle timeout: " + e.getMessage());
+            idleAllowed = 0;
+        }
+        final long idleLimit = idleAllowed;
+        long readyAllowed;
+        try {
+            readyAllowed = TimeLimit.parse(readyTimeout);
+        } catch (IllegalArgumentException e) {
+            listener.getLogger().println("Ignoring ready timeout: " + e.getMessage());
+            readyAllowed = 0;
+        }
+        final long readyLimit = readyAllowed;
+
+        final List<String> unknownSets = library.unknown(patternSets);
+        if (!unknownSets.isEmpty()) {
+            listener.getLogger().println("[xshell] Ignoring unknown pattern sets: " + String.join(", ", unknownSets));
+        }
+        final KillPatterns patterns = getAllKillPatterns(library);
+        final KillPatterns ready = getReadyPatterns();
+        // A spool is written where the command runs, so that its output does not go to the controller
+        // and back; only the lines shown in the console are sent.
+        final boolean agentPath = (scanOnAgent || warmSession || spoolOutput) && launcher.getChannel() != null;
+        final boolean onAgent = agentPath && AgentEnvironment.isPlain(launcher);
+        if (agentPath && !onAgent) {
+            // The agent would launch the child with a plain launcher of its own, which would drop
+            // whatever the decorator does, such as running the child in a container.
+            listener.getLogger().println("[xshell] The launcher is decorated, so the command is launched through it"
+                    + " and its output is scanned on the controller");
+        }
+        if (onAgent && !ready.isEmpty()) {
+            listener.getLogger().println("[xshell] Scanning the output on the controller to see when it is ready");
+        }
+        final Charset charset = outputCharset(run, listener);
+        final ResultCache cache = cacheInputs != null || cacheOutputs != null
+                ? ResultCache.forWorkspace(workspace, run.getParent().getFullName(), cacheInputs, cacheOutputs)
+                : null;
+        final String cacheKey = cache != null ? cacheKey(cache, commands, childEnv, listener) : null;
+        if (cacheKey != null) {
+            final XShellRun restored = restore(cache, cacheKey, listener);
+            if (restored != null) {
+                return restored;
+            }
+        }
+        final ResultCache.Capture capture = cacheKey != null ? new ResultCache.Capture(listener.getLogger()) : null;
+        final OutputStream log = capture != null ? capture : listener.getLogger();
+        final boolean spoolOnAgent = spoolOutput && onAgent && ready.isEmpty();
+        final HeadTailOutputStream headTail =
+                !spoolOnAgent && (spoolOutput || consoleHeadLines > 0 || consoleTailLines > 0)
+                        ? new HeadTailOutputStream(log, consoleHeadLines, consoleTailLines, charset)
+                        : null;
+        final OutputStream console = headTail != null ? headTail : log;
+        final FilePath scriptFile = script != null ? writeScript(workspace, script, launcher.isUnix()) : null;
+        if (scriptFile != null) {
+            commands.set(
+                    0,
+                    launcher.isUnix()
+                            ? new ArgumentListBuilder("sh", scriptFile.getRemote())
+                            : new ArgumentListBuilder("cmd", "/c", "call", scriptFile.getRemote()));
         }
+        final Set<String> tools = agentTools(launcher);
+        final List<String> limits = resourceLimits(launcher, tools, listener);
+        if (!limits.isEmpty()) {
+            for (ArgumentListBuilder command : commands) {
+                command.prepend(limits.toArray(new String[0]));
+            }
+        }
+        final FilePath groupDir = ProcessGroup.ENABLED && tools != null && tools.contains("setsid")
+                ? spoolDirectory(workspace)
+                : null;
+        final boolean prefixed = commands.size() > 1;
+        final FilePath spoolDir = spoolOutput ? spoolDirectory(workspace) : null;
+        final Map<String, String> launchEnv =
+                AgentEnvironment.delta(childEnv, workspace, launcher);
 
-        LOG.log(Level.FINEST, "Environment variables: " + env.entrySet().toString());
-        LOG.log(Level.FINE, "Command line: " + args.toStringWithQuote());
-        LOG.log(Level.FINE, "Working directory: " + absWorkingDir);
+        return new XShellRun(listener, commands.size(), parallelism, failFast, console, index -> {
+                    final OutputStream shown = prefixed
+                            ? new PrefixedOutputStream(console, ("[" + (index + 1) + "] ").getBytes(charset))
+                            : console;
+                    final OutputStream folded = foldRepeats
+                            ? new RepeatFoldingOutputStream(shown, shown != listener.getLogger(), patterns, charset)
+                            : shown;
+                    final String cookie = UUID.randomUUID().toString();
+                    final FilePath spoolFile = spoolDir != null ? spoolDir.child(cookie + ".log.gz") : null;
+                    final OutputStream out = spoolFile != null && !spoolOnAgent
+                            ? new TeeOutputStream(
+                                    folded,
+                                    spool(
+                                            run,
+                                            listener,
+                                            spoolFile,
+                                            templates.get(index).getConverted(),
+                                            patterns,
+                                            charset))
+                            : folded;
+                    final EnvVars processEnv = new EnvVars(launchEnv);
+                    if (ProcessMonitor.isEnabled()) {
+                        processEnv.put(ProcessMonitor.COOKIE_VARIABLE, cookie);
+                    }
+                    final XShellMetrics metrics =
+                            new XShellMetrics(templates.get(index).getConverted(), System.currentTimeMillis());
 
-        Pattern r = Pattern.compile(this.regexToKill == null ? "" : this.regexToKill);
-        Long timeAllowed;
+                    final XShellProcess process = new XShellProcess(listener);
+                    if (scriptFile != null) {
+                        process.whenDone()
+                                .whenCompleteAsync(
+                                        (code, err) -> delete(scriptFile), Computer.threadPoolForRemoting);
+                    }
+                    process.record(run, metrics, new ProcessMonitor(launcher.getChannel(), cookie, metrics));
+                    final FilePath pidFile = groupDir != null ? groupDir.child(cookie + ".pid") : null;
+                    final ArgumentListBuilder args = pidFile != null
+                            ? commands.get(index).clone().prepend(ProcessGroup.prefix(pidFile.getRemote()))
+                            : commands.get(index);
+                    if (pidFile != null) {
+                        process.whenDone()
+                                .whenCompleteAsync((code, err) -> delete(pidFile), Computer.threadPoolForRemoting);
+                    }
+                    if (onAgent && ready.isEmpty()) {
+                        if (spoolOnAgent) {
+                            process.recordSpool(
+                                    spooled(run, listener, spoolFile, templates.get(index).getConverted(), charset));
+                        }
+                        process.startOnAgent(
+                                launcher.getChannel(),
+                                new AgentCommand(
+                                        args.toList(),
+                                        args.toMaskArray(),
+                                        processEnv,
+                                        absWorkingDir,
+                                        String.join("\n", patterns.getPatterns()),
+                                        charset,
+                                        timeLimit,
+                                        grace,
+                                        timeLabel,
+                                        idleLimit,
+                                        idleLabel,
+                                        cookie,
+                                        warmSession,
+                                        pidFile != null ? pidFile.getRemote() : null,
+                                        spoolOnAgent ? spoolFile.getRemote() : null,
+                                        consoleHeadLines,
+                                        consoleTailLines,
+                                        out),
+                                out);
+                        return process;
+                    }
+                    if (pidFile != null) {
+                        process.killGroup(launcher.getChannel(), pidFile.getRemote());
+                    }
+                    process.showMatchesIn(headTail);
+                    process.start(launcher.launch()
+                            .cmds(args)
+                            .envs(processEnv)
+                            .stdout(process.output(out, patterns, ready, keepRunning, charset))
+                            .pwd(absWorkingDir));
+                    process.limitTime(timeLimit, grace, timeLabel);
+                    process.limitIdle(idleLimit, grace, idleLabel);
+                    process.limitReady(readyLimit, grace, readyTimeout);
+                    return process;
+                })
+                .onSuccess(capture != null ? () -> save(cache, cacheKey, capture, listener) : null)
+                .start();
+    }
 
+    /** The result cache key of the step, or {@code null} if it cannot be computed. */
+    private String cacheKey(
+            final ResultCache cache,
+            final List<ArgumentListBuilder> commands,
+            final EnvVars env,
+            final TaskListener listener) {
         try {
-            timeAllowed = Long.parseLong(this.timeAllocated);
-        } catch (Exception e) {
-            timeAllowed = (long) 0;
+            return cache.key(ResultCache.describe(commands, workingDir, cacheEnv, env));
+        } catch (IOException e) {
+            listener.getLogger().println("[xshell] Not using the result cache: " + e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
+        return null;
+    }
 
+    /** Restore a cached result, or return {@code null} to run the step. */
+    private static XShellRun restore(final ResultCache cache, final String key, final TaskListener listener) {
         try {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            StreamBuildListener sbl = new StreamBuildListener(baos);
+            final ResultCache.Hit hit = cache.restore(key);
+            if (hit != null) {
+                listener.getLogger().write(hit.console);
+                listener.getLogger()
+                        .println("[xshell] Restored from the result cache " + key.substring(0, 12) + ", "
+                                + hit.files + " output files");
+                return XShellRun.completed(listener, hit.exitCode);
+            }
+        } catch (IOException e) {
+            listener.getLogger().println("[xshell] Not using the result cache: " + e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return null;
+    }
 
-            final Proc child = launcher.decorateFor(build.getBuiltOn())
-                    .launch()
-                    .cmds(args)
-                    .envs(env)
-                    .stdout(sbl)
-                    .pwd(absWorkingDir)
-                    .start();
+    /** Store the result of a successful step. */
+    private static void save(
+            final ResultCache cache,
+            final String key,
+            final ResultCache.Capture capture,
+            final TaskListener listener) {
+        final byte[] output = capture.getBytes();
+        if (output == null) {
+            listener.getLogger().println("[xshell] Output too long for the result cache");
+            return;
+        }
+        try {
+            cache.save(key, output);
+            listener.getLogger().println("[xshell] Stored in the result cache " + key.substring(0, 12));
+        } catch (IOException e) {
+            listener.getLogger().println("[xshell] Failed to store in the result cache: " + e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
-            Long startTime = System.currentTimeMillis();
+    /**
+     * The script of the step for a build: the block with its variables expanded and converted, run
+     * by {@code sh} on Unix and by {@code cmd} on Windows. With {@link #stopOnFailure}, a Unix
+     * script runs with {@code set -e} and a Windows script checks the exit code after each line
+     * that is not inside a parenthesized block.
+     *
+     * @return the script, or {@code null} if there is no command line.
+     */
+    private String toScript(final CommandTemplate template, final EnvVars env, final boolean unix) {
+        final String block = template.render(env);
+        if (block == null) {
+            return null;
+        }
+        final StringBuilder sb = new StringBuilder();
+        if (unix) {
+            sb.append("#!/bin/sh\n");
+            if (stopOnFailure) {
+                sb.append("set -e\n");
+            }
+            return sb.append(block).append('\n').toString();
+        }
+        int depth = 0;
+        for (String line : block.split("\\r?\\n")) {
+            sb.append(line).append("\r\n");
+            for (int i = 0; i < line.length(); i++) {
+                if (line.charAt(i) == '(') {
+                    depth++;
+                } else if (line.charAt(i) == ')') {
+                    depth = Math.max(0, depth - 1);
+                }
+            }
+            if (stopOnFailure && depth == 0 && !line.trim().isEmpty()) {
+                sb.append("@if %ERRORLEVEL% neq 0 exit /b %ERRORLEVEL%\r\n");
+            }
+        }
+        return sb.append("@exit /b %ERRORLEVEL%\r\n").toString();
+    }
+
+    /** Write the script of the step next to the workspace. */
+    private static FilePath writeScript(final FilePath workspace, final String script, final boolean unix)
+            throws IOException {
+        final FilePath dir = spoolDirectory(workspace);
+        try {
+            return dir.createTextTempFile("script", unix ? ".sh" : ".cmd", script, false);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing the script in " + dir, e);
+        }
+    }
+
+    private static void delete(final FilePath file) {
+        try {
+            file.delete();
+        } catch (IOException e) {
+            LOG.log(Level.FINE, e, () -> "Failed to delete " + file);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
+    /** The tools of a Linux node, or {@code null} if it is not running Linux. */
+    private static Set<String> agentTools(final Launcher launcher) throws IOException {
+        if (!launcher.isUnix()) {
+            return null;
+        }
+        try {
+            return ResourceLimits.tools(launcher.getChannel());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while looking up the tools of the agent", e);
+        }
+    }
+
+    /**
+     * The prefix that applies the resource limits of the step on the node, empty if there are none.
+     *
+     * @param tools the tools of the node, {@code null} if it is not running Linux.
+     */
+    private List<String> resourceLimits(final Launcher launcher, final Set<String> tools, final TaskListener listener) {
+        final ResourceLimits limits;
+        try {
+            limits = ResourceLimits.of(niceness, ioClass, addressSpaceLimit, maxOpenFiles, maxUserProcesses);
+        } catch (IllegalArgumentException e) {
+            listener.getLogger().println("Ignoring resource limits: " + e.getMessage());
+            return Collections.emptyList();
+        }
+        if (limits.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return limits.prefix(tools, listener.getLogger());
+    }
+
+    /** The charset of the child's output: the configured one, else the build's. */
+    private Charset outputCharset(final Run<?, ?> run, final TaskListener listener) {
+        if (outputCharset != null) {
             try {
-                while (child.isAlive()) {
-
-                    baos.flush();
-                    String s = baos.toString();
-                    baos.reset();
-
-                    listener.getLogger().print(s);
-                    listener.getLogger().flush();
-
-                    if ((this.regexToKill != null)
-                            && (this.regexToKill.length() > 0)
-                            && (r.matcher(s).find())) {
-                        LOG.log(Level.FINEST, "Matched failure in log");
-                        child.kill();
-                        listener.getLogger().println("Matched <" + this.regexToKill + "> in output. Terminated");
-                    } else if ((timeAllowed > 0) && ((System.currentTimeMillis() - startTime) / 1000) > timeAllowed) {
-                        LOG.log(Level.FINEST, "Timed out");
-                        child.kill();
-                        listener.getLogger().println("Timed out <" + this.timeAllocated + ">. Terminated");
-                    } else {
-                        Thread.sleep(2);
-                    }
-                }
-            } catch (InterruptedException intEx) {
-                LOG.log(Level.FINEST, "Aborted by user");
-                child.kill();
-                listener.getLogger().println("Aborted by User. Terminated");
-                throw (new InterruptedException("User Aborted"));
+                return Charset.forName(outputCharset);
+            } catch (IllegalArgumentException e) {
+                listener.getLogger().println("Ignoring unsupported charset: " + outputCharset);
             }
+        }
+        return run.getCharset();
+    }
 
-            baos.flush();
-            listener.getLogger().print(baos.toString());
-            listener.getLogger().flush();
-            return child.join() == 0;
-        } catch (final IOException e) {
-            Util.displayIOException(e, listener);
-            final String errorMessage = Messages.XShell_ExecFailed();
-            e.printStackTrace(listener.fatalError(errorMessage));
-            return false;
+    /** Directory for the spool and script files, next to the workspace so that it is wiped with it. */
+    private static FilePath spoolDirectory(final FilePath workspace) throws IOException {
+        final FilePath tmp = WorkspaceList.tempDir(workspace);
+        if (tmp == null) {
+            throw new IOException("No temporary directory for " + workspace);
         }
+        final FilePath dir = tmp.child("xshell");
+        try {
+            dir.mkdirs();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while creating " + dir, e);
+        }
+        return dir;
     }
 
-    public static String convertSeparator(String cmdLine, String newSeparator) {
-        String match = "[/" + Pattern.quote("\\") + "]";
-        String replacement = Matcher.quoteReplacement(newSeparator);
-
-        Pattern words = Pattern.compile("\\S+");
-        Pattern urls = Pattern.compile("(https*|ftp|git):");
-        StringBuffer sb = new StringBuffer();
-        Matcher m = words.matcher(cmdLine);
-        while (m.find()) {
-            String item = m.group();
-            if (!urls.matcher(item).find()) {
-                // Not sure if File.separator is right if executing on slave with OS different from
-                // master's one
-                // String cmdLine = commandLine.replaceAll("[/\\\\]", File.separator);
-                m.appendReplacement(sb, Matcher.quoteReplacement(item.replaceAll(match, replacement)));
+    /**
+     * Spool the full output of one command line from the controller, when it cannot be spooled by
+     * {@link AgentCommand} on the node. The output then goes to the controller and back to the node.
+     * The index is written next to the spool once the command is done, and the spool is recorded in
+     * the build.
+     */
+    private static OutputStream spool(
+            final Run<?, ?> run,
+            final TaskListener listener,
+            final FilePath file,
+            final String commandLine,
+            final KillPatterns patterns,
+            final Charset charset)
+            throws IOException {
+        final OutputStream stream;
+        try {
+            stream = file.write();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while creating " + file, e);
+        }
+        final SpoolOutputStream.Completion recorded = spooled(run, listener, file, commandLine, charset);
+        return new SpoolOutputStream(stream, patterns, charset, index -> {
+            try {
+                file.getParent()
+                        .child(file.getName() + ".idx")
+                        .write(index.format(), SpoolIndex.INDEX_CHARSET.name());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while writing the index of " + file, e);
             }
+            recorded.completed(index);
+        });
+    }
+
+    /** Record a complete spool in the build and show its summary in the console. */
+    private static SpoolOutputStream.Completion spooled(
+            final Run<?, ?> run,
+            final TaskListener listener,
+            final FilePath file,
+            final String commandLine,
+            final Charset charset) {
+        final Computer computer = file.toComputer();
+        final String node = computer != null ? computer.getName() : "";
+        return index -> {
+            XShellSpoolAction.add(
+                    run, new XShellSpoolAction.Spool(commandLine, node, file.getRemote(), charset, index));
+            listener.getLogger()
+                    .println("[xshell] Full output: " + index.getLines() + " lines, " + index.getBytes() + " bytes ("
+                            + index.getCompressedBytes() + " compressed) in " + file.getRemote());
+        };
+    }
+
+    /** The arguments of one command line for a build. */
+    private ArgumentListBuilder toArguments(final CommandTemplate template, final EnvVars env, final boolean unix) {
+        LOG.log(Level.FINE, "File separators sanitized: {0}", template.getConverted());
+
+        String cmdLine = template.render(env);
+        LOG.log(Level.FINE, "Environment variables expanded and sanitized: {0}", cmdLine);
+
+        final ArgumentListBuilder tokens = new ArgumentListBuilder();
+        if (cmdLine != null) {
+            tokens.addTokenized((unix && executeFromWorkingDir) ? "./" + cmdLine : cmdLine);
+            LOG.log(Level.FINE, () -> "Execute from working directory: " + tokens.toStringWithQuote());
+        }
+
+        final ArgumentListBuilder args = unix ? tokens : tokens.toWindowsCommand();
+        if (!unix) {
+            LOG.log(Level.FINE, () -> "Windows command: " + args.toStringWithQuote());
         }
-        m.appendTail(sb);
+        LOG.log(Level.FINE, () -> "Command line: " + args.toStringWithQuote());
+        return args;
+    }
 
-        return sb.toString();
+    public static String convertSeparator(String cmdLine, String newSeparator) {
+        // Not sure if File.separator is right if executing on slave with OS different from
+        // master's one
+        return CommandTemplate.convertSeparator(cmdLine, newSeparator);
     }
 
     /**
@@ -232,19 +1063,7 @@ public final class XShellBuilder extends Builder {
      * @return The command line with UNIX-style env vars.
      */
     public static String convertEnvVarsToUnix(String cmdLine) {
-        if (cmdLine == null) {
-            return null;
-        }
-
-        StringBuffer sb = new StringBuffer();
-
-        Matcher m = WIN_ENV_VAR_REGEX.matcher(cmdLine);
-        while (m.find()) {
-            m.appendReplacement(sb, "\\$$1");
-        }
-        m.appendTail(sb);
-
-        return sb.toString();
+        return CommandTemplate.convertEnvVarsToUnix(cmdLine);
     }
 
     /**
@@ -255,18 +1074,6 @@ public final class XShellBuilder extends Builder {
      * @return The command line with UNIX-style env vars.
      */
     public static String convertEnvVarsToWindows(String cmdLine) {
-        if (cmdLine == null) {
-            return null;
-        }
-
-        StringBuffer sb = new StringBuffer();
-
-        Matcher m = UNIX_ENV_VAR_REGEX.matcher(cmdLine);
-        while (m.find()) {
-            m.appendReplacement(sb, "%$1%");
-        }
-        m.appendTail(sb);
-
-        return sb.toString();
+        return CommandTemplate.convertEnvVarsToWindows(cmdLine);
     }
 }
@@ -1,29 +1,109 @@
 package hudson.plugins.xshell;
 
+import hudson.Util;
 import hudson.model.AbstractProject;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.Builder;
+import hudson.util.FormValidation;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.PatternSyntaxException;
 import net.sf.json.JSONObject;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest2;
 
 /**
  * Descriptor for XShell.
  *
+ * <p>Holds the global configuration: named pattern sets that steps refer to in addition to their
+ * own regexes, and default limits for steps that set none. The configuration is compiled into a
+ * {@link PatternLibrary} when it is loaded and each time it is saved.
+ *
  * @author Marco Ambu
  */
 public final class XShellDescriptor extends BuildStepDescriptor<Builder> {
 
+    private static final Logger LOG = Logger.getLogger(XShellDescriptor.class.getName());
+
+    private List<PatternSet> patternSets = new ArrayList<>();
+    private String defaultTimeAllocated;
+    private String defaultIdleTimeout;
+
+    private transient volatile PatternLibrary library = PatternLibrary.EMPTY;
+
     public XShellDescriptor() {
         super(XShellBuilder.class);
         load();
+        if (patternSets == null) {
+            patternSets = new ArrayList<>();
+        }
+        try {
+            library = PatternLibrary.build(patternSets, defaultTimeAllocated, defaultIdleTimeout);
+        } catch (IllegalArgumentException e) {
+            LOG.log(Level.WARNING, "Ignoring the invalid global xshell configuration", e);
+        }
     }
 
     @Override
-    public boolean configure(final StaplerRequest2 req, final JSONObject formData) {
+    public boolean configure(final StaplerRequest2 req, final JSONObject formData) throws FormException {
+        final List<PatternSet> oldSets = patternSets;
+        final String oldTime = defaultTimeAllocated;
+        final String oldIdle = defaultIdleTimeout;
+        patternSets = new ArrayList<>();
+        defaultTimeAllocated = null;
+        defaultIdleTimeout = null;
+        req.bindJSON(this, formData);
+        try {
+            library = PatternLibrary.build(patternSets, defaultTimeAllocated, defaultIdleTimeout);
+        } catch (IllegalArgumentException e) {
+            patternSets = oldSets;
+            defaultTimeAllocated = oldTime;
+            defaultIdleTimeout = oldIdle;
+            throw new FormException(e.getMessage(), "patternSets");
+        }
         save();
         return true;
     }
 
+    /** The compiled global configuration. */
+    PatternLibrary getLibrary() {
+        return library;
+    }
+
+    public List<PatternSet> getPatternSets() {
+        return Collections.unmodifiableList(patternSets);
+    }
+
+    @DataBoundSetter
+    public void setPatternSets(final List<PatternSet> patternSets) {
+        this.patternSets = patternSets != null ? new ArrayList<>(patternSets) : new ArrayList<>();
+    }
+
+    public String getDefaultTimeAllocated() {
+        return defaultTimeAllocated;
+    }
+
+    @DataBoundSetter
+    public void setDefaultTimeAllocated(final String defaultTimeAllocated) {
+        this.defaultTimeAllocated = Util.fixEmptyAndTrim(defaultTimeAllocated);
+    }
+
+    public String getDefaultIdleTimeout() {
+        return defaultIdleTimeout;
+    }
+
+    @DataBoundSetter
+    public void setDefaultIdleTimeout(final String defaultIdleTimeout) {
+        this.defaultIdleTimeout = Util.fixEmptyAndTrim(defaultIdleTimeout);
+    }
+
     @Override
     public String getHelpFile() {
         return "/plugin/xshell/help.html";
@@ -39,6 +119,117 @@ public final class XShellDescriptor extends BuildStepDescriptor<Builder> {
         return true;
     }
 
+    public FormValidation doCheckTimeAllocated(@QueryParameter final String value) {
+        return checkTimeLimit(value);
+    }
+
+    public FormValidation doCheckKillGracePeriod(@QueryParameter final String value) {
+        return checkTimeLimit(value);
+    }
+
+    public FormValidation doCheckIdleTimeout(@QueryParameter final String value) {
+        return checkTimeLimit(value);
+    }
+
+    public FormValidation doCheckDefaultTimeAllocated(@QueryParameter final String value) {
+        return checkTimeLimit(value);
+    }
+
+    public FormValidation doCheckDefaultIdleTimeout(@QueryParameter final String value) {
+        return checkTimeLimit(value);
+    }
+
+    public FormValidation doCheckPatterns(@QueryParameter final String value) {
+        try {
+            KillPatterns.compile(value);
+            return FormValidation.ok();
+        } catch (PatternSyntaxException e) {
+            return FormValidation.error(e.getDescription() + ": " + e.getPattern());
+        }
+    }
+
+    public FormValidation doCheckPatternSets(@QueryParameter final String value) {
+        final List<String> unknown = library.unknown(value);
+        return unknown.isEmpty()
+                ? FormValidation.ok()
+                : FormValidation.warning("Unknown pattern sets: " + String.join(", ", unknown));
+    }
+
+    public FormValidation doCheckReadyTimeout(@QueryParameter final String value) {
+        return checkTimeLimit(value);
+    }
+
+    public FormValidation doCheckOutputCharset(@QueryParameter final String value) {
+        final String name = Util.fixEmptyAndTrim(value);
+        try {
+            if (name == null || Charset.isSupported(name)) {
+                return FormValidation.ok();
+            }
+        } catch (IllegalArgumentException e) {
+            // An illegal name is not supported either.
+        }
+        return FormValidation.error("Unsupported charset: " + name);
+    }
+
+    public FormValidation doCheckNiceness(@QueryParameter final int value) {
+        try {
+            ResourceLimits.checkNiceness(value);
+            return FormValidation.ok();
+        } catch (IllegalArgumentException e) {
+            return FormValidation.error(e.getMessage());
+        }
+    }
+
+    public FormValidation doCheckIoClass(@QueryParameter final String value) {
+        try {
+            ResourceLimits.parseIoClass(value);
+            return FormValidation.ok();
+        } catch (IllegalArgumentException e) {
+            return FormValidation.error(e.getMessage());
+        }
+    }
+
+    public FormValidation doCheckAddressSpaceLimit(@QueryParameter final String value) {
+        try {
+            ResourceLimits.parseSize(value);
+            return FormValidation.ok();
+        } catch (IllegalArgumentException e) {
+            return FormValidation.error(e.getMessage());
+        }
+    }
+
+    static FormValidation checkTimeLimit(final String value) {
+        try {
+            TimeLimit.parse(value);
+            return FormValidation.ok();
+        } catch (IllegalArgumentException e) {
+            return FormValidation.error(e.getMessage());
+        }
+    }
+
+    /** A named list of kill regexes that steps can refer to. */
+    public static final class PatternSet implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String name;
+        private final String patterns;
+
+        @DataBoundConstructor
+        public PatternSet(final String name, final String patterns) {
+            this.name = Util.fixEmptyAndTrim(name);
+            this.patterns = patterns;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /** One regex per line. */
+        public String getPatterns() {
+            return patterns;
+        }
+    }
+
     @Override
     public XShellBuilder newInstance(final StaplerRequest2 req, final JSONObject formData) throws FormException {
         return req.bindJSON(XShellBuilder.class, formData);
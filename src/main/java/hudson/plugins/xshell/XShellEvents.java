@@ -0,0 +1,291 @@
+package hudson.plugins.xshell;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Java Flight Recorder events of xshell steps, and counters of where their time goes.
+ *
+ * <p>Every {@link Phase} of a step is counted and timed in this JVM, and is an event when a
+ * recording is running. The counters are striped adders, so steps on many executors do not contend
+ * for them; a recording gets their totals every minute as {@code hudson.plugins.xshell.Statistics}
+ * events. When nothing is recording, an event costs an allocation that the JIT usually removes and
+ * nothing else.
+ *
+ * <p>The output pump, the watchdog and kills on an agent report to the agent JVM, so a recording
+ * of the agent shows them when the output is scanned there.
+ */
+final class XShellEvents {
+
+    /** What is counted. */
+    enum Phase {
+        /** Computing the environment of the build. */
+        ENVIRONMENT,
+        /** Converting the separators and expanding the variables of the command lines. */
+        CONVERSION,
+        /** Starting a child. */
+        LAUNCH,
+        /** Forwarding and scanning the output, counted while the pump is busy with a chunk. */
+        OUTPUT,
+        /** Waiting for a child, from its start to its exit. */
+        JOIN,
+        /** Killing a child, from the request to the end of the kill. */
+        KILL,
+        /** A deadline firing, timed from when it was due. */
+        TIMEOUT;
+
+        private final LongAdder count = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+
+        String label() {
+            return name().toLowerCase(Locale.ENGLISH);
+        }
+
+        void add(final long elapsedNanos) {
+            count.increment();
+            nanos.add(elapsedNanos);
+        }
+
+        /** Number of times the phase ran in this JVM. */
+        long getCount() {
+            return count.sum();
+        }
+
+        /** Time spent in the phase in this JVM, in nanoseconds. */
+        long getNanos() {
+            return nanos.sum();
+        }
+    }
+
+    static {
+        FlightRecorder.addPeriodicEvent(StatisticsEvent.class, XShellEvents::statistics);
+    }
+
+    private XShellEvents() {}
+
+    /**
+     * Start timing a phase.
+     *
+     * @param phase {@link Phase#ENVIRONMENT}, {@link Phase#CONVERSION}, {@link Phase#LAUNCH} or
+     *     {@link Phase#JOIN}.
+     */
+    static Span begin(final Phase phase) {
+        return new Span(phase);
+    }
+
+    /**
+     * Record the output of a child once it has exited.
+     *
+     * @param busyNanos time the pump spent forwarding and scanning the output.
+     */
+    static void output(final String command, final long bytes, final long lines, final long busyNanos) {
+        Phase.OUTPUT.add(busyNanos);
+        final OutputEvent event = new OutputEvent();
+        if (event.shouldCommit()) {
+            event.command = command;
+            event.bytes = bytes;
+            event.lines = lines;
+            event.busy = busyNanos;
+            event.commit();
+        }
+    }
+
+    /**
+     * Record a deadline that fired.
+     *
+     * @param idle whether it is an idle timeout.
+     * @param timeoutMillis the time allowed.
+     * @param delayNanos time from when the deadline was due until it fired.
+     */
+    static void timeout(final boolean idle, final long timeoutMillis, final long delayNanos) {
+        Phase.TIMEOUT.add(delayNanos);
+        final TimeoutEvent event = new TimeoutEvent();
+        if (event.shouldCommit()) {
+            event.idle = idle;
+            event.timeout = timeoutMillis;
+            event.delay = delayNanos;
+            event.commit();
+        }
+    }
+
+    /**
+     * Start timing a kill.
+     *
+     * @param reason why the child is killed, as shown in the console.
+     * @param force whether the child is killed without a chance to stop.
+     */
+    static KillSpan beginKill(final String reason, final boolean force) {
+        return new KillSpan(reason, force);
+    }
+
+    private static void statistics() {
+        for (Phase phase : Phase.values()) {
+            final StatisticsEvent event = new StatisticsEvent();
+            event.phase = phase.label();
+            event.count = phase.getCount();
+            event.time = phase.getNanos();
+            event.commit();
+        }
+    }
+
+    /** A phase being timed. */
+    static final class Span {
+        private final Phase phase;
+        private final PhaseEvent event = new PhaseEvent();
+        private final long start = System.nanoTime();
+
+        private Span(final Phase phase) {
+            this.phase = phase;
+            event.begin();
+        }
+
+        /**
+         * The phase is over.
+         *
+         * @param command the command line it was for, {@code null} if it is for the whole step.
+         */
+        void end(final String command) {
+            phase.add(System.nanoTime() - start);
+            event.end();
+            if (event.shouldCommit()) {
+                event.phase = phase.label();
+                event.command = command;
+                event.commit();
+            }
+        }
+    }
+
+    /** A kill being timed. */
+    static final class KillSpan {
+        private final KillEvent event = new KillEvent();
+        private final long start = System.nanoTime();
+
+        private KillSpan(final String reason, final boolean force) {
+            event.begin();
+            event.reason = reason;
+            event.force = force;
+        }
+
+        /** Time since the kill was requested, in milliseconds. */
+        long millis() {
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        }
+
+        /**
+         * The kill is over.
+         *
+         * @param report what a process group kill did, {@code null} for the generic kill.
+         */
+        void end(final ProcessGroup.Report report) {
+            Phase.KILL.add(System.nanoTime() - start);
+            event.end();
+            if (event.shouldCommit()) {
+                if (report != null) {
+                    event.processGroup = report.pgid;
+                    event.signal = report.signal;
+                }
+                event.commit();
+            }
+        }
+    }
+
+    @Name("hudson.plugins.xshell.Phase")
+    @Label("XShell Phase")
+    @Description("A phase of an xshell step")
+    @Category({"Jenkins", "XShell"})
+    @StackTrace(false)
+    static final class PhaseEvent extends Event {
+        @Label("Phase")
+        String phase;
+
+        @Label("Command Line")
+        String command;
+    }
+
+    @Name("hudson.plugins.xshell.Output")
+    @Label("XShell Output")
+    @Description("The output of a child that has exited")
+    @Category({"Jenkins", "XShell"})
+    @StackTrace(false)
+    static final class OutputEvent extends Event {
+        @Label("Command Line")
+        String command;
+
+        @Label("Bytes")
+        long bytes;
+
+        @Label("Lines")
+        long lines;
+
+        @Label("Busy")
+        @Description("Time spent forwarding and scanning the output")
+        @Timespan(Timespan.NANOSECONDS)
+        long busy;
+    }
+
+    @Name("hudson.plugins.xshell.Kill")
+    @Label("XShell Kill")
+    @Description("The kill of a child, from the request until it is done")
+    @Category({"Jenkins", "XShell"})
+    @StackTrace(false)
+    static final class KillEvent extends Event {
+        @Label("Reason")
+        String reason;
+
+        @Label("Forced")
+        boolean force;
+
+        @Label("Process Group")
+        long processGroup;
+
+        @Label("Signal")
+        String signal;
+    }
+
+    @Name("hudson.plugins.xshell.Timeout")
+    @Label("XShell Timeout")
+    @Description("A deadline of a child that fired")
+    @Category({"Jenkins", "XShell"})
+    @StackTrace(false)
+    static final class TimeoutEvent extends Event {
+        @Label("Idle")
+        boolean idle;
+
+        @Label("Timeout")
+        @Timespan(Timespan.MILLISECONDS)
+        long timeout;
+
+        @Label("Delay")
+        @Description("Time from when the deadline was due until it fired")
+        @Timespan(Timespan.NANOSECONDS)
+        long delay;
+    }
+
+    @Name("hudson.plugins.xshell.Statistics")
+    @Label("XShell Statistics")
+    @Description("Totals of a phase of xshell steps since this JVM started")
+    @Category({"Jenkins", "XShell"})
+    @StackTrace(false)
+    @Period("60 s")
+    static final class StatisticsEvent extends Event {
+        @Label("Phase")
+        String phase;
+
+        @Label("Count")
+        long count;
+
+        @Label("Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long time;
+    }
+}
@@ -0,0 +1,152 @@
+package hudson.plugins.xshell;
+
+import java.io.Serializable;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Resource usage of one command line of an xshell step.
+ *
+ * <p>Process figures come from {@link ProcessSampler} and are only available on Linux agents when
+ * {@link ProcessMonitor} is enabled; they are the peaks seen by the periodic samples, so a child
+ * shorter than one sampling interval may have none. Output figures are counted by the output pump
+ * on every platform.
+ */
+@ExportedBean(defaultVisibility = 2)
+public final class XShellMetrics implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String commandLine;
+    private final long startTime;
+    private long durationMillis;
+    private Integer exitCode;
+    private boolean terminated;
+    private boolean idleTimedOut;
+    private int samples;
+    private long cpuMillis;
+    private long peakRssBytes;
+    private long readBytes;
+    private long writeBytes;
+    private int peakThreads;
+    private int peakProcesses;
+    private long outputBytes;
+    private long outputLines;
+
+    XShellMetrics(final String commandLine, final long startTime) {
+        this.commandLine = commandLine;
+        this.startTime = startTime;
+    }
+
+    /** Record a sample of the process tree, keeping the peaks. */
+    synchronized void sampled(final ProcessSampler.Sample sample) {
+        samples++;
+        cpuMillis = Math.max(cpuMillis, sample.cpuMillis);
+        peakRssBytes = Math.max(peakRssBytes, sample.rssBytes);
+        readBytes = Math.max(readBytes, sample.readBytes);
+        writeBytes = Math.max(writeBytes, sample.writeBytes);
+        peakThreads = Math.max(peakThreads, sample.threads);
+        peakProcesses = Math.max(peakProcesses, sample.processes);
+    }
+
+    /** Record that the child was terminated because it stopped producing output. */
+    synchronized void idleTimedOut() {
+        this.idleTimedOut = true;
+    }
+
+    /** Record the end of the child. */
+    synchronized void exited(
+            final long endTime, final Integer exitCode, final boolean terminated, final long bytes, final long lines) {
+        this.durationMillis = endTime - startTime;
+        this.exitCode = exitCode;
+        this.terminated = terminated;
+        this.outputBytes = bytes;
+        this.outputLines = lines;
+    }
+
+    @Exported
+    public String getCommandLine() {
+        return commandLine;
+    }
+
+    @Exported
+    public long getStartTime() {
+        return startTime;
+    }
+
+    @Exported
+    public synchronized long getDurationMillis() {
+        return durationMillis;
+    }
+
+    @Exported
+    public synchronized Integer getExitCode() {
+        return exitCode;
+    }
+
+    @Exported
+    public synchronized boolean isTerminated() {
+        return terminated;
+    }
+
+    @Exported
+    public synchronized boolean isIdleTimedOut() {
+        return idleTimedOut;
+    }
+
+    /** Number of process samples taken, 0 if none could be taken on the agent. */
+    @Exported
+    public synchronized int getSamples() {
+        return samples;
+    }
+
+    @Exported
+    public synchronized long getCpuMillis() {
+        return cpuMillis;
+    }
+
+    @Exported
+    public synchronized long getPeakRssBytes() {
+        return peakRssBytes;
+    }
+
+    @Exported
+    public synchronized long getReadBytes() {
+        return readBytes;
+    }
+
+    @Exported
+    public synchronized long getWriteBytes() {
+        return writeBytes;
+    }
+
+    @Exported
+    public synchronized int getPeakThreads() {
+        return peakThreads;
+    }
+
+    @Exported
+    public synchronized int getPeakProcesses() {
+        return peakProcesses;
+    }
+
+    @Exported
+    public synchronized long getOutputBytes() {
+        return outputBytes;
+    }
+
+    @Exported
+    public synchronized long getOutputLines() {
+        return outputLines;
+    }
+
+    @Exported
+    public synchronized long getOutputBytesPerSecond() {
+        return durationMillis > 0 ? outputBytes * 1000 / durationMillis : 0;
+    }
+
+    @Exported
+    public synchronized long getOutputLinesPerSecond() {
+        return durationMillis > 0 ? outputLines * 1000 / durationMillis : 0;
+    }
+}
@@ -0,0 +1,68 @@
+package hudson.plugins.xshell;
+
+import hudson.model.Run;
+import java.util.ArrayList;
+import java.util.List;
+import jenkins.model.RunAction2;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Resource usage of the xshell steps of a build, shown on its own page and exported through the
+ * remote API at {@code xshell-metrics/api/json}.
+ */
+@ExportedBean
+public final class XShellMetricsAction implements RunAction2 {
+
+    private final List<XShellMetrics> commands = new ArrayList<>();
+    private transient Run<?, ?> run;
+
+    /** Attach the metrics of a command line to a build. */
+    static void add(final Run<?, ?> run, final XShellMetrics metrics) {
+        XShellMetricsAction action;
+        synchronized (run) {
+            action = run.getAction(XShellMetricsAction.class);
+            if (action == null) {
+                action = new XShellMetricsAction();
+                run.addAction(action);
+            }
+        }
+        synchronized (action) {
+            action.commands.add(metrics);
+        }
+    }
+
+    public Run<?, ?> getRun() {
+        return run;
+    }
+
+    @Override
+    public void onAttached(final Run<?, ?> r) {
+        this.run = r;
+    }
+
+    @Override
+    public void onLoad(final Run<?, ?> r) {
+        this.run = r;
+    }
+
+    @Exported(inline = true)
+    public synchronized List<XShellMetrics> getCommands() {
+        return new ArrayList<>(commands);
+    }
+
+    @Override
+    public String getIconFileName() {
+        return "clock.png";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return Messages.XShell_MetricsDisplayName();
+    }
+
+    @Override
+    public String getUrlName() {
+        return "xshell-metrics";
+    }
+}
@@ -0,0 +1,241 @@
+package hudson.plugins.xshell;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Output pump for the child process.
+ *
+ * <p>The launcher writes the child's output into this stream from its own copier thread, which
+ * blocks while the child is quiet. Every chunk is forwarded to the build log as soon as it arrives
+ * and fed to a streaming scanner for the kill patterns, so no thread has to poll the child for
+ * output and a match split over two chunks is still found.
+ *
+ * <p>The bytes go to the log unchanged. Only when there are kill patterns is the output decoded,
+ * by one stateful decoder into a reused buffer, so a character split between two chunks is decoded
+ * whole and no string is built per chunk.
+ *
+ * <p>A second set of patterns can report that the child is ready. From then on the pump is usually
+ * detached: the output is still read, so that the child never blocks on a full pipe, but it is
+ * neither forwarded nor scanned.
+ */
+final class XShellOutputStream extends OutputStream {
+
+    /** Called once, from the copier thread, when a kill pattern matches. */
+    interface MatchListener {
+        void matched(String pattern);
+    }
+
+    private final OutputStream out;
+    private final KillPatterns.Scanner scanner;
+    private final KillPatterns.Scanner readyScanner;
+    private final CharsetDecoder decoder;
+    private final CharBuffer chars;
+
+    /** Bytes at the end of the last chunk that do not make a whole character yet. */
+    private final ByteBuffer carry;
+
+    private final MatchListener matchListener;
+    private final MatchListener readyListener;
+    private boolean matched;
+    private boolean ready;
+    private boolean detached;
+    private long bytes;
+    private long lines;
+    private long busyNanos;
+    private volatile long lastOutput = System.nanoTime();
+
+    /**
+     * @param out where the output is forwarded to, usually the build log.
+     * @param killPatterns patterns that trigger the match listener.
+     * @param charset charset used to decode the output for matching.
+     * @param matchListener notified the first time the output matches.
+     */
+    XShellOutputStream(
+            final OutputStream out,
+            final KillPatterns killPatterns,
+            final Charset charset,
+            final MatchListener matchListener) {
+        this(out, killPatterns, KillPatterns.NONE, charset, matchListener, null);
+    }
+
+    /**
+     * @param out where the output is forwarded to, usually the build log.
+     * @param killPatterns patterns that trigger the match listener.
+     * @param readyPatterns patterns that trigger the ready listener.
+     * @param charset charset used to decode the output for matching.
+     * @param matchListener notified the first time the output matches a kill pattern.
+     * @param readyListener notified the first time the output matches a ready pattern, unless a
+     *     kill pattern matched first.
+     */
+    XShellOutputStream(
+            final OutputStream out,
+            final KillPatterns killPatterns,
+            final KillPatterns readyPatterns,
+            final Charset charset,
+            final MatchListener matchListener,
+            final MatchListener readyListener) {
+        this.out = out;
+        this.scanner = killPatterns.isEmpty() ? null : killPatterns.newScanner();
+        this.readyScanner = readyPatterns.isEmpty() ? null : readyPatterns.newScanner();
+        if (scanner != null || readyScanner != null) {
+            this.decoder = charset.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            this.chars = CharBuffer.allocate(8192);
+            this.carry = ByteBuffer.allocate(16);
+        } else {
+            this.decoder = null;
+            this.chars = null;
+            this.carry = null;
+        }
+        this.matchListener = matchListener;
+        this.readyListener = readyListener;
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(final byte[] b, final int off, final int len) throws IOException {
+        final long start = System.nanoTime();
+        lastOutput = start;
+        if (!detached) {
+            out.write(b, off, len);
+            out.flush();
+        }
+
+        bytes += len;
+        for (int i = off; i < off + len; i++) {
+            if (b[i] == '\n') {
+                lines++;
+            }
+        }
+
+        if (decoder != null && !matched && !ready && !detached) {
+            decode(b, off, len);
+            prompt();
+        }
+        busyNanos += System.nanoTime() - start;
+    }
+
+    /** Decode a chunk, completing the character left over from the previous one first. */
+    private void decode(final byte[] b, final int off, final int len) {
+        int start = off;
+        int length = len;
+        if (carry.position() > 0) {
+            final int take = Math.min(length, carry.remaining());
+            carry.put(b, start, take);
+            carry.flip();
+            scan(carry);
+            final int left = carry.remaining();
+            if (left > take) {
+                // Still not a whole character.
+                carry.compact();
+                return;
+            }
+            carry.clear();
+            start += take - left;
+            length -= take - left;
+        }
+        final ByteBuffer in = ByteBuffer.wrap(b, start, length);
+        scan(in);
+        if (in.hasRemaining()) {
+            carry.put(in);
+        }
+    }
+
+    private void scan(final ByteBuffer in) {
+        CoderResult result;
+        do {
+            result = decoder.decode(in, chars, false);
+            chars.flip();
+            if (scanner == null || readyScanner == null) {
+                feed(chars);
+            } else {
+                // Line by line, so that whichever kind of pattern matches first wins.
+                final int length = chars.remaining();
+                int start = 0;
+                for (int i = 0; i < length && !matched && !ready; i++) {
+                    if (chars.charAt(i) == '\n' || i == length - 1) {
+                        feed(chars.subSequence(start, i + 1));
+                        start = i + 1;
+                    }
+                }
+            }
+            chars.clear();
+        } while (result.isOverflow());
+    }
+
+    private void feed(final CharSequence text) {
+        final String pattern = matched || ready || scanner == null ? null : scanner.feed(text);
+        final String readyPattern =
+                matched || ready || pattern != null || readyScanner == null ? null : readyScanner.feed(text);
+        report(pattern, readyPattern);
+    }
+
+    /** Match the line left open at the end of a chunk, which may be a prompt waiting for input. */
+    private void prompt() {
+        final String pattern = matched || ready || scanner == null ? null : scanner.flush();
+        final String readyPattern =
+                matched || ready || pattern != null || readyScanner == null ? null : readyScanner.flush();
+        report(pattern, readyPattern);
+    }
+
+    private void report(final String pattern, final String readyPattern) {
+        if (pattern != null) {
+            matched = true;
+            matchListener.matched(pattern);
+        } else if (readyPattern != null) {
+            ready = true;
+            readyListener.matched(readyPattern);
+        }
+    }
+
+    /**
+     * Stop forwarding and scanning the output. Once this returns, nothing more is written to the
+     * stream the output was forwarded to.
+     */
+    synchronized void detach() {
+        detached = true;
+    }
+
+    /** Number of bytes written so far. */
+    synchronized long getBytes() {
+        return bytes;
+    }
+
+    /** {@link System#nanoTime()} of the last output, or of the creation of the pump. */
+    long getLastOutput() {
+        return lastOutput;
+    }
+
+    /** Nanoseconds spent forwarding and scanning the output so far. */
+    synchronized long getBusyNanos() {
+        return busyNanos;
+    }
+
+    /** Number of complete lines written so far. */
+    synchronized long getLines() {
+        return lines;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        // The build log belongs to the build, only flush it.
+        flush();
+    }
+}
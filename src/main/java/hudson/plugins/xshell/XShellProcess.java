@@ -0,0 +1,596 @@
+package hudson.plugins.xshell;
+
+import hudson.Launcher;
+import hudson.Proc;
+import hudson.model.Computer;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.util.Timer;
+
+/**
+ * A running child of an xshell step, with its output pump, kill patterns and deadline.
+ *
+ * <p>Shared by the freestyle builder, which waits for the child with {@link #join()}, and the
+ * Pipeline step, which is called back through {@link #whenDone()} without any thread waiting.
+ *
+ * <p>With ready patterns, the step is done as soon as the child reports it is ready: {@link #join()}
+ * and {@link #whenDone()} report exit code 0 while the child is either shut down or left running in
+ * the background until the end of the build.
+ *
+ * <p>A child launched in its own process group with {@link ProcessGroup} is killed through its
+ * group, and the time the kill took is shown in the console.
+ */
+final class XShellProcess {
+
+    private static final Logger LOG = Logger.getLogger(XShellProcess.class.getName());
+
+    /** First and longest interval between checks for the exit of a child, in milliseconds. */
+    static final long POLL_MIN = 10;
+
+    static final long POLL_MAX = 1000;
+
+    private final TaskListener listener;
+    private final AtomicBoolean requested = new AtomicBoolean();
+    private final AtomicBoolean killed = new AtomicBoolean();
+    private volatile String killReason;
+    private volatile Proc child;
+    private volatile XShellWatchdog.Deadline deadline;
+    private volatile XShellWatchdog.Deadline idleDeadline;
+    private volatile XShellWatchdog.Deadline readyDeadline;
+    private final AtomicBoolean ready = new AtomicBoolean();
+    private final AtomicBoolean readyHandled = new AtomicBoolean();
+    private boolean readiness;
+    private boolean keepRunning;
+    private final AtomicBoolean idleTimedOut = new AtomicBoolean();
+    private volatile OutputStream console;
+    private HeadTailOutputStream headTail;
+    private volatile XShellOutputStream pump;
+    private volatile AgentCommand.Handle agent;
+    private VirtualChannel groupChannel;
+    private String pidFile;
+    private final AtomicBoolean exited = new AtomicBoolean();
+    private Run<?, ?> run;
+    private XShellMetrics metrics;
+    private ProcessMonitor monitor;
+    private SpoolOutputStream.Completion spooled;
+    private CompletableFuture<Integer> done;
+    private volatile XShellEvents.Span joinSpan;
+
+    XShellProcess(final TaskListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * The stream to give the launcher as the child's output. Forwards to the console and
+     * terminates the child when one of the patterns matches.
+     *
+     * @param console the build log, or a console policy in front of it that is closed when the
+     *     child exits.
+     */
+    OutputStream output(final OutputStream console, final KillPatterns patterns, final Charset charset) {
+        return output(console, patterns, KillPatterns.NONE, false, charset);
+    }
+
+    /**
+     * The stream to give the launcher as the child's output, which also reports the child ready
+     * when one of the ready patterns matches.
+     *
+     * @param console the build log, or a console policy in front of it that is closed when the
+     *     child exits or is ready.
+     * @param keepRunning whether a ready child is left running until the end of the build rather
+     *     than shut down.
+     */
+    OutputStream output(
+            final OutputStream console,
+            final KillPatterns patterns,
+            final KillPatterns readyPatterns,
+            final boolean keepRunning,
+            final Charset charset) {
+        this.console = console;
+        this.readiness = !readyPatterns.isEmpty();
+        this.keepRunning = keepRunning;
+        pump = new XShellOutputStream(
+                console,
+                patterns,
+                readyPatterns,
+                charset,
+                pattern -> {
+                    showMatch();
+                    terminate("Matched <" + pattern + "> in output. Terminated");
+                },
+                this::ready);
+        return pump;
+    }
+
+    /**
+     * Have a console policy that elides lines show those that match a kill pattern. Must be called
+     * before {@link #output}.
+     */
+    void showMatchesIn(final HeadTailOutputStream policy) {
+        this.headTail = policy;
+    }
+
+    private void showMatch() {
+        final HeadTailOutputStream policy = headTail;
+        if (policy != null) {
+            try {
+                policy.matched();
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Failed to show the matching line", e);
+            }
+        }
+    }
+
+    /**
+     * Record the resource usage of the child in the build once it has exited. Must be called
+     * before {@link #start}.
+     *
+     * @param run the build to attach the metrics to.
+     * @param metrics the record to fill.
+     * @param monitor samples the child while it runs.
+     */
+    void record(final Run<?, ?> run, final XShellMetrics metrics, final ProcessMonitor monitor) {
+        this.run = run;
+        this.metrics = metrics;
+        this.monitor = monitor;
+    }
+
+    /**
+     * Record the spool that {@link AgentCommand} writes on the agent, once the child has exited.
+     * Must be called before {@link #startOnAgent}.
+     *
+     * @param spooled receives the index of the spool.
+     */
+    void recordSpool(final SpoolOutputStream.Completion spooled) {
+        this.spooled = spooled;
+    }
+
+    /**
+     * Kill the child through its process group. Must be called before {@link
+     * #start(Launcher.ProcStarter)}, which must launch the command line with the prefix of {@link
+     * ProcessGroup}.
+     *
+     * @param channel channel to the agent, {@code null} for the controller.
+     * @param pidFile the pid file given to {@link ProcessGroup#prefix}.
+     */
+    void killGroup(final VirtualChannel channel, final String pidFile) {
+        this.groupChannel = channel;
+        this.pidFile = pidFile;
+    }
+
+    /** Start the child. */
+    void start(final Launcher.ProcStarter starter) throws IOException {
+        final XShellEvents.Span launch = XShellEvents.begin(XShellEvents.Phase.LAUNCH);
+        final Proc proc = starter.start();
+        launch.end(commandLine());
+        started(proc);
+    }
+
+    /**
+     * Start the child on its agent, which then scans the output and enforces the time limit
+     * itself. Used instead of {@link #output}, {@link #start(Launcher.ProcStarter)} and {@link
+     * #limitTime}.
+     *
+     * @param channel channel to the agent.
+     * @param command the child with its patterns and time limit.
+     * @param console the console the command writes to, closed when the child exits.
+     */
+    void startOnAgent(final VirtualChannel channel, final AgentCommand command, final OutputStream console)
+            throws IOException {
+        this.console = console;
+        final XShellEvents.Span launch = XShellEvents.begin(XShellEvents.Phase.LAUNCH);
+        final AgentCommand.Handle handle = command.start(channel);
+        launch.end(commandLine());
+        agent = handle;
+        started(handle);
+    }
+
+    private void started(final Proc proc) {
+        joinSpan = XShellEvents.begin(XShellEvents.Phase.JOIN);
+        child = proc;
+        if (monitor != null) {
+            monitor.start();
+        }
+        if (requested.get()) {
+            kill();
+        } else if (ready.get()) {
+            handleReady();
+        }
+    }
+
+    /**
+     * Terminate the child when it runs out of time.
+     *
+     * @param timeLimit time allocated in milliseconds, 0 for no limit.
+     * @param gracePeriod time after the termination until it is killed again, 0 for never.
+     * @param label the time allocated as configured, for the console.
+     */
+    void limitTime(final long timeLimit, final long gracePeriod, final String label) {
+        if (timeLimit <= 0) {
+            return;
+        }
+        deadline = XShellWatchdog.schedule(timeLimit, gracePeriod, new XShellWatchdog.Target() {
+            @Override
+            public void terminate() {
+                XShellProcess.this.terminate("Timed out <" + label + ">. Terminated");
+            }
+
+            @Override
+            public void kill() {
+                forceKill("Still running " + TimeLimit.format(gracePeriod) + " after termination. Killed");
+            }
+        });
+    }
+
+    /**
+     * Terminate the child when it stops producing output. Must be called after {@link #output}.
+     *
+     * @param idleTimeout quiet time in milliseconds, 0 for no limit.
+     * @param gracePeriod time after the termination until it is killed again, 0 for never.
+     * @param label the idle timeout as configured, for the console.
+     */
+    void limitIdle(final long idleTimeout, final long gracePeriod, final String label) {
+        final XShellOutputStream p = pump;
+        if (idleTimeout <= 0 || p == null) {
+            return;
+        }
+        idleDeadline = XShellWatchdog.scheduleIdle(
+                Timer.get(), idleTimeout, gracePeriod, p::getLastOutput, new XShellWatchdog.Target() {
+                    @Override
+                    public void terminate() {
+                        if (!isTerminated()) {
+                            idleTimedOut.set(true);
+                        }
+                        XShellProcess.this.terminate("No output for <" + label + ">. Terminated");
+                    }
+
+                    @Override
+                    public void kill() {
+                        forceKill("Still running " + TimeLimit.format(gracePeriod) + " after termination. Killed");
+                    }
+                });
+    }
+
+    /**
+     * Terminate the child when it is not ready in time. Must be called after {@link #output}.
+     *
+     * @param readyTimeout time allowed to get ready in milliseconds, 0 for no limit.
+     * @param gracePeriod time after the termination until it is killed again, 0 for never.
+     * @param label the ready timeout as configured, for the console.
+     */
+    void limitReady(final long readyTimeout, final long gracePeriod, final String label) {
+        if (readyTimeout <= 0 || !readiness) {
+            return;
+        }
+        readyDeadline = XShellWatchdog.schedule(readyTimeout, gracePeriod, new XShellWatchdog.Target() {
+            @Override
+            public void terminate() {
+                XShellProcess.this.terminate("Not ready after <" + label + ">. Terminated");
+            }
+
+            @Override
+            public void kill() {
+                forceKill("Still running " + TimeLimit.format(gracePeriod) + " after termination. Killed");
+            }
+        });
+        if (ready.get()) {
+            readyDeadline.cancel();
+        }
+    }
+
+    /**
+     * Called by the pump, on the copier thread, when a ready pattern matches. The step completes
+     * with exit code 0 and the child no longer writes to the console.
+     */
+    private void ready(final String pattern) {
+        if (requested.get() || !ready.compareAndSet(false, true)) {
+            return;
+        }
+        cancel(deadline);
+        cancel(idleDeadline);
+        cancel(readyDeadline);
+        pump.detach();
+        closeConsole(takeConsole());
+        listener.getLogger().println("Matched <" + pattern + "> in output. Ready");
+        listener.getLogger()
+                .println(
+                        keepRunning
+                                ? "[xshell] Keeping the command running until the end of the build"
+                                : "[xshell] Shutting the command down");
+        listener.getLogger().flush();
+        if (child != null) {
+            handleReady();
+        }
+    }
+
+    /** Complete the step of a ready child, once it is both ready and started. */
+    private void handleReady() {
+        if (!readyHandled.compareAndSet(false, true)) {
+            return;
+        }
+        // Completed on the timer, not on the copier thread, which must go on reading the output.
+        final CompletableFuture<Integer> future = whenDone();
+        Timer.get().submit(() -> future.complete(0));
+        if (keepRunning) {
+            BackgroundCommands.add(run, this);
+        } else {
+            submitKill(false, "Ready");
+        }
+    }
+
+    /** Stop a child left running in the background at the end of its build. */
+    void stopInBackground(final TaskListener buildListener) {
+        if (!exited.get() && child != null) {
+            buildListener.getLogger().println("[xshell] Stopping the background command started by xshell");
+            submitKill(false, "End of build");
+        }
+    }
+
+    /**
+     * Wait for the child to exit, or to be ready. If the waiting thread is interrupted, the child
+     * is killed.
+     *
+     * @return the exit code of the child, 0 once it is ready.
+     * @throws InterruptedException if the step was aborted.
+     */
+    int join() throws IOException, InterruptedException {
+        if (readiness) {
+            try {
+                return whenDone().get();
+            } catch (InterruptedException intEx) {
+                abort();
+                throw (new InterruptedException("User Aborted"));
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException(e.getCause());
+            }
+        }
+        Integer exitCode = null;
+        try {
+            exitCode = child.join();
+            return exitCode;
+        } catch (InterruptedException intEx) {
+            abort();
+            throw (new InterruptedException("User Aborted"));
+        } finally {
+            exited(exitCode);
+        }
+    }
+
+    /**
+     * The exit code of the child, once it has exited.
+     *
+     * <p>{@link Proc} offers no completion callback, so the shared timer checks whether the child
+     * is still alive, every {@link #POLL_MIN} milliseconds at first and less and less often up to
+     * every {@link #POLL_MAX} milliseconds. No thread waits for the child: each check is a short
+     * task on the remoting pool, since it may ask the agent, and {@link Proc#join()} is only called
+     * once the child is gone, to collect its exit code.
+     */
+    synchronized CompletableFuture<Integer> whenDone() {
+        if (done == null) {
+            done = new CompletableFuture<>();
+            poll(done, POLL_MIN);
+        }
+        return done;
+    }
+
+    private void poll(final CompletableFuture<Integer> future, final long delay) {
+        Timer.get()
+                .schedule(
+                        () -> Computer.threadPoolForRemoting.submit(() -> check(future, delay)),
+                        delay,
+                        TimeUnit.MILLISECONDS);
+    }
+
+    private void check(final CompletableFuture<Integer> future, final long delay) {
+        Integer exitCode = null;
+        try {
+            if (child.isAlive()) {
+                poll(future, Math.min(delay * 2, POLL_MAX));
+                return;
+            }
+            exitCode = child.join();
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            exited(null);
+            future.completeExceptionally(e);
+            return;
+        }
+        exited(exitCode);
+        // A ready child may be killed before the step completes; its exit code is not the step's.
+        future.complete(ready.get() ? 0 : exitCode);
+    }
+
+    /** Kill the child because the step was aborted. */
+    void abort() throws IOException, InterruptedException {
+        if (ready.get()) {
+            return;
+        }
+        LOG.log(Level.FINEST, "Aborted by user");
+        requested.set(true);
+        killNow(child, false, XShellEvents.beginKill("Aborted by User", false));
+        listener.getLogger().println("Aborted by User. Terminated");
+    }
+
+    /** Whether the child was, or is being, terminated by a pattern, a deadline or an abort. */
+    boolean isTerminated() {
+        if (requested.get()) {
+            return true;
+        }
+        final AgentCommand.Handle a = agent;
+        final AgentCommand.Outcome outcome = a != null ? a.getOutcomeNow() : null;
+        return outcome != null && outcome.terminated;
+    }
+
+    /** Whether the child was terminated because it stopped producing output. */
+    boolean isIdleTimedOut() {
+        if (idleTimedOut.get()) {
+            return true;
+        }
+        final AgentCommand.Handle a = agent;
+        final AgentCommand.Outcome outcome = a != null ? a.getOutcomeNow() : null;
+        return outcome != null && outcome.idleTimedOut;
+    }
+
+    /** Terminate the child at most once, unless it is ready. */
+    void terminate(final String message) {
+        if (ready.get()) {
+            return;
+        }
+        if (requested.compareAndSet(false, true)) {
+            killReason = message;
+            LOG.log(Level.FINEST, message);
+            listener.getLogger().println(message);
+            if (child != null) {
+                kill();
+            }
+        }
+    }
+
+    /** Kill again a child that survived its termination. */
+    private void forceKill(final String message) {
+        if (ready.get()) {
+            return;
+        }
+        LOG.log(Level.FINEST, message);
+        listener.getLogger().println(message);
+        if (child != null) {
+            submitKill(true, message);
+        }
+    }
+
+    private void kill() {
+        if (killed.compareAndSet(false, true)) {
+            submitKill(false, killReason);
+        }
+    }
+
+    /**
+     * Kill requests come from the output pump and the timer, so the kill itself is handed to the
+     * shared timer pool rather than run on the requesting thread, which may be the very thread the
+     * launcher needs to finish copying the output. A group kill waits for the group to go away,
+     * so it goes to the remoting pool instead.
+     *
+     * @param force whether to skip {@code SIGTERM}, for a child that survived its termination.
+     * @param reason why the child is killed, for the flight recorder.
+     */
+    private void submitKill(final boolean force, final String reason) {
+        final Proc proc = child;
+        final XShellEvents.KillSpan span = XShellEvents.beginKill(reason, force);
+        (pidFile != null ? Computer.threadPoolForRemoting : Timer.get()).submit(() -> {
+            try {
+                killNow(proc, force, span);
+            } catch (IOException | InterruptedException e) {
+                LOG.log(Level.WARNING, "Failed to kill the child process", e);
+            }
+        });
+    }
+
+    /**
+     * Kill the child through its process group if it has one, else with the generic kill.
+     *
+     * @param span times the kill from its request.
+     */
+    private void killNow(final Proc proc, final boolean force, final XShellEvents.KillSpan span)
+            throws IOException, InterruptedException {
+        final ProcessGroup.Report report = pidFile != null ? ProcessGroup.kill(groupChannel, pidFile, force) : null;
+        if (report == null) {
+            proc.kill();
+            span.end(null);
+            return;
+        }
+        final String message = report.describe(span.millis());
+        span.end(report);
+        LOG.log(Level.FINE, message);
+        if (!ready.get()) {
+            listener.getLogger().println(message);
+        }
+    }
+
+    private void exited(final Integer exitCode) {
+        if (!exited.compareAndSet(false, true)) {
+            return;
+        }
+        cancel(deadline);
+        cancel(idleDeadline);
+        cancel(readyDeadline);
+        closeConsole(takeConsole());
+        if (!ready.get()) {
+            listener.getLogger().flush();
+        }
+        if (monitor != null) {
+            monitor.stop();
+        }
+        final String command = commandLine();
+        final XShellEvents.Span span = joinSpan;
+        if (span != null) {
+            span.end(command);
+        }
+        final XShellOutputStream p = pump;
+        final AgentCommand.Handle a = agent;
+        final AgentCommand.Outcome outcome = a != null ? a.getOutcomeNow() : null;
+        long bytes = 0;
+        long lines = 0;
+        if (p != null) {
+            bytes = p.getBytes();
+            lines = p.getLines();
+            XShellEvents.output(command, bytes, lines, p.getBusyNanos());
+        } else if (outcome != null) {
+            bytes = outcome.bytes;
+            lines = outcome.lines;
+            XShellEvents.output(command, bytes, lines, outcome.outputNanos);
+            if (spooled != null && outcome.spoolIndex != null) {
+                try {
+                    spooled.completed(SpoolIndex.parse(outcome.spoolIndex));
+                } catch (IOException e) {
+                    LOG.log(Level.WARNING, "Failed to record the spooled output", e);
+                }
+            }
+        }
+        if (metrics != null) {
+            if (isIdleTimedOut()) {
+                metrics.idleTimedOut();
+            }
+            metrics.exited(System.currentTimeMillis(), exitCode, isTerminated(), bytes, lines);
+            XShellMetricsAction.add(run, metrics);
+        }
+    }
+
+    /** The command line for the flight recorder, {@code null} if unknown. */
+    private String commandLine() {
+        return metrics != null ? metrics.getCommandLine() : null;
+    }
+
+    private static void cancel(final XShellWatchdog.Deadline d) {
+        if (d != null) {
+            d.cancel();
+        }
+    }
+
+    private synchronized OutputStream takeConsole() {
+        final OutputStream c = console;
+        console = null;
+        return c;
+    }
+
+    private void closeConsole(final OutputStream c) {
+        if (c != null && c != listener.getLogger()) {
+            try {
+                c.close();
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Failed to complete the console output", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package hudson.plugins.xshell;
+
+import hudson.model.Computer;
+import hudson.model.TaskListener;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The command lines of one step, run with a limited parallelism.
+ *
+ * <p>A single command line is just its {@link XShellProcess}. Several command lines are launched up
+ * to {@code parallelism} at a time; each completion launches the next one, so no thread waits for
+ * the group. The exit code of the group is the first non-zero exit code of its commands.
+ */
+final class XShellRun {
+
+    private static final Logger LOG = Logger.getLogger(XShellRun.class.getName());
+
+    /** Launches one of the command lines. */
+    interface Starter {
+        /**
+         * @param index the index of the command line.
+         * @return the started child.
+         */
+        XShellProcess start(int index) throws IOException;
+    }
+
+    /** Called when all command lines succeeded, before the run completes. */
+    interface Recorder {
+        void succeeded();
+    }
+
+    private final TaskListener listener;
+    private final int count;
+    private final int parallelism;
+    private final boolean failFast;
+    private final OutputStream console;
+    private final Starter starter;
+    private final CompletableFuture<Integer> done = new CompletableFuture<>();
+    private final List<XShellProcess> running = new ArrayList<>();
+    private XShellProcess single;
+    private int next;
+    private int failures;
+    private int exitCode;
+    private boolean terminated;
+    private boolean idleTimedOut;
+    private boolean stopping;
+    private Throwable error;
+    private Recorder recorder;
+    private CompletableFuture<Integer> recorded;
+
+    /**
+     * @param listener the build log.
+     * @param count number of command lines.
+     * @param parallelism most command lines running at the same time.
+     * @param failFast whether the first failure terminates the others.
+     * @param console shared console that is closed when all commands are done.
+     * @param starter launches a command line.
+     */
+    XShellRun(
+            final TaskListener listener,
+            final int count,
+            final int parallelism,
+            final boolean failFast,
+            final OutputStream console,
+            final Starter starter) {
+        this.listener = listener;
+        this.count = count;
+        this.parallelism = Math.max(1, parallelism);
+        this.failFast = failFast;
+        this.console = console;
+        this.starter = starter;
+    }
+
+    /**
+     * A run that is already complete, such as one restored from the result cache.
+     *
+     * @param listener the build log.
+     * @param exitCode the exit code of the group.
+     */
+    static XShellRun completed(final TaskListener listener, final int exitCode) {
+        final XShellRun run = new XShellRun(listener, 0, 1, false, listener.getLogger(), null);
+        run.done.complete(exitCode);
+        return run;
+    }
+
+    /**
+     * Record the outcome before the run completes, so that nothing else in the build can change
+     * the workspace in between. Must be called before {@link #join()} or {@link #whenDone()}.
+     */
+    XShellRun onSuccess(final Recorder recorder) {
+        this.recorder = recorder;
+        return this;
+    }
+
+    /** Launch the first command lines. */
+    XShellRun start() throws IOException {
+        if (count == 1) {
+            single = starter.start(0);
+            return this;
+        }
+        synchronized (this) {
+            try {
+                while (next < count && running.size() < parallelism) {
+                    launchNext();
+                }
+            } catch (IOException e) {
+                stopping = true;
+                terminateRunning("Launch of another command failed. Terminated");
+                throw e;
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Wait for all command lines.
+     *
+     * @return the exit code of the group.
+     * @throws InterruptedException if the step was aborted.
+     */
+    int join() throws IOException, InterruptedException {
+        if (single != null) {
+            return record(single.join());
+        }
+        try {
+            return record(done.get());
+        } catch (InterruptedException intEx) {
+            abort();
+            throw (new InterruptedException("User Aborted"));
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /** The exit code of the group, once all command lines are done. */
+    synchronized CompletableFuture<Integer> whenDone() {
+        final CompletableFuture<Integer> result = single != null ? single.whenDone() : done;
+        if (recorder == null) {
+            return result;
+        }
+        if (recorded == null) {
+            recorded = result.thenApplyAsync(this::record, Computer.threadPoolForRemoting);
+        }
+        return recorded;
+    }
+
+    private int record(final int exitCode) {
+        if (recorder != null && exitCode == 0 && !isTerminated()) {
+            recorder.succeeded();
+        }
+        return exitCode;
+    }
+
+    /** Kill all children because the step was aborted. */
+    void abort() throws IOException, InterruptedException {
+        if (single != null) {
+            single.abort();
+            return;
+        }
+        final List<XShellProcess> children;
+        synchronized (this) {
+            stopping = true;
+            terminated = true;
+            children = new ArrayList<>(running);
+        }
+        for (XShellProcess p : children) {
+            p.abort();
+        }
+    }
+
+    /** Whether any command line was terminated by a pattern, a deadline or an abort. */
+    synchronized boolean isTerminated() {
+        return single != null ? single.isTerminated() : terminated;
+    }
+
+    /** Whether any command line was terminated because it stopped producing output. */
+    synchronized boolean isIdleTimedOut() {
+        return single != null ? single.isIdleTimedOut() : idleTimedOut;
+    }
+
+    /** Must hold the lock. */
+    private void launchNext() throws IOException {
+        final XShellProcess p = starter.start(next++);
+        running.add(p);
+        p.whenDone().whenCompleteAsync((code, err) -> finished(p, code, err), Computer.threadPoolForRemoting);
+    }
+
+    private void finished(final XShellProcess p, final Integer code, final Throwable err) {
+        final String summary;
+        synchronized (this) {
+            running.remove(p);
+            final boolean failed = err != null || p.isTerminated() || code != 0;
+            if (err != null && error == null) {
+                error = err;
+            }
+            if (p.isTerminated()) {
+                terminated = true;
+            }
+            if (p.isIdleTimedOut()) {
+                idleTimedOut = true;
+            }
+            if (code != null && code != 0 && exitCode == 0) {
+                exitCode = code;
+            }
+            if (failed) {
+                failures++;
+                if (failFast && !stopping) {
+                    stopping = true;
+                    terminateRunning("Another command failed. Terminated");
+                }
+            }
+            while (!stopping && next < count && running.size() < parallelism) {
+                try {
+                    launchNext();
+                } catch (IOException e) {
+                    error = e;
+                    stopping = true;
+                    terminateRunning("Launch of another command failed. Terminated");
+                }
+            }
+            if (!running.isEmpty() || (next < count && !stopping)) {
+                return;
+            }
+            final int skipped = count - next;
+            summary = "[xshell] " + (count - failures - skipped) + " of " + count + " commands succeeded"
+                    + (skipped > 0 ? ", " + skipped + " not started" : "");
+        }
+        complete(summary);
+    }
+
+    /** Must hold the lock. */
+    private void terminateRunning(final String message) {
+        for (XShellProcess other : running) {
+            other.terminate(message);
+        }
+    }
+
+    private void complete(final String summary) {
+        if (console != listener.getLogger()) {
+            try {
+                console.close();
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Failed to complete the console output", e);
+            }
+        }
+        listener.getLogger().println(summary);
+        final Throwable e;
+        final int code;
+        synchronized (this) {
+            e = error;
+            code = exitCode;
+        }
+        if (e != null) {
+            done.completeExceptionally(e);
+        } else {
+            done.complete(code);
+        }
+    }
+}
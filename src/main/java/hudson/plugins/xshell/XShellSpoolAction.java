@@ -0,0 +1,220 @@
+package hudson.plugins.xshell;
+
+import hudson.FilePath;
+import hudson.model.Computer;
+import hudson.model.Item;
+import hudson.model.Run;
+import hudson.remoting.VirtualChannel;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import jenkins.MasterToSlaveFileCallable;
+import jenkins.model.Jenkins;
+import jenkins.model.RunAction2;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerResponse2;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+import org.kohsuke.stapler.verb.GET;
+
+/**
+ * The spooled output of the xshell steps of a build.
+ *
+ * <p>The spool files stay on the node that ran the step, next to its workspace. A range of lines is
+ * read on that node through the sparse index, so only the blocks that hold it are decompressed and
+ * sent back, as {@code xshell-output/lines?spool=0&from=100&count=50}.
+ */
+@ExportedBean
+public final class XShellSpoolAction implements RunAction2 {
+
+    private final List<Spool> spools = new ArrayList<>();
+    private transient Run<?, ?> run;
+
+    /** Attach a completed spool to a build. */
+    static void add(final Run<?, ?> run, final Spool spool) {
+        XShellSpoolAction action;
+        synchronized (run) {
+            action = run.getAction(XShellSpoolAction.class);
+            if (action == null) {
+                action = new XShellSpoolAction();
+                run.addAction(action);
+            }
+        }
+        synchronized (action) {
+            action.spools.add(spool);
+        }
+    }
+
+    public Run<?, ?> getRun() {
+        return run;
+    }
+
+    @Override
+    public void onAttached(final Run<?, ?> r) {
+        this.run = r;
+    }
+
+    @Override
+    public void onLoad(final Run<?, ?> r) {
+        this.run = r;
+    }
+
+    @Exported(inline = true)
+    public synchronized List<Spool> getSpools() {
+        return new ArrayList<>(spools);
+    }
+
+    /** Send a range of lines of a spool as plain text. */
+    @GET
+    public void doLines(
+            final StaplerResponse2 rsp,
+            @QueryParameter final int spool,
+            @QueryParameter final long from,
+            @QueryParameter final int count)
+            throws IOException, InterruptedException {
+        run.checkPermission(Item.READ);
+        final Spool s;
+        synchronized (this) {
+            if (spool < 0 || spool >= spools.size()) {
+                rsp.sendError(404);
+                return;
+            }
+            s = spools.get(spool);
+        }
+        final FilePath file = s.getFile();
+        if (file == null) {
+            rsp.sendError(503, "Node " + s.node + " is offline");
+            return;
+        }
+        final String text = file.act(new ReadLines(Math.max(0, from), count > 0 ? count : 100, s.charset));
+        rsp.setContentType("text/plain;charset=" + s.charset);
+        rsp.getWriter().write(text);
+    }
+
+    @Override
+    public String getIconFileName() {
+        return "document.png";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return Messages.XShell_SpoolDisplayName();
+    }
+
+    @Override
+    public String getUrlName() {
+        return "xshell-output";
+    }
+
+    /** Where the full output of one command line is spooled, and its summary. */
+    @ExportedBean(defaultVisibility = 2)
+    public static final class Spool implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String commandLine;
+        private final String node;
+        private final String path;
+        private final String charset;
+        private final long lines;
+        private final long bytes;
+        private final long compressedBytes;
+        private final List<Long> matches;
+
+        Spool(
+                final String commandLine,
+                final String node,
+                final String path,
+                final Charset charset,
+                final SpoolIndex index) {
+            this.commandLine = commandLine;
+            this.node = node;
+            this.path = path;
+            this.charset = charset.name();
+            this.lines = index.getLines();
+            this.bytes = index.getBytes();
+            this.compressedBytes = index.getCompressedBytes();
+            this.matches = new ArrayList<>(index.getMatches());
+        }
+
+        /** The spool file, or {@code null} if its node is offline. */
+        FilePath getFile() {
+            final Computer computer = Jenkins.get().getComputer(node);
+            final VirtualChannel channel = computer != null ? computer.getChannel() : null;
+            return channel != null ? new FilePath(channel, path) : null;
+        }
+
+        @Exported
+        public String getCommandLine() {
+            return commandLine;
+        }
+
+        @Exported
+        public String getNode() {
+            return node;
+        }
+
+        @Exported
+        public String getPath() {
+            return path;
+        }
+
+        @Exported
+        public long getLines() {
+            return lines;
+        }
+
+        @Exported
+        public long getBytes() {
+            return bytes;
+        }
+
+        @Exported
+        public long getCompressedBytes() {
+            return compressedBytes;
+        }
+
+        /** Zero based numbers of the lines that matched a kill pattern. */
+        @Exported
+        public List<Long> getMatches() {
+            return matches;
+        }
+    }
+
+    /** Reads a range of lines on the node that holds the spool. */
+    private static final class ReadLines extends MasterToSlaveFileCallable<String> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final long from;
+        private final int count;
+        private final String charset;
+
+        ReadLines(final long from, final int count, final String charset) {
+            this.from = from;
+            this.count = count;
+            this.charset = charset;
+        }
+
+        @Override
+        public String invoke(final File spool, final VirtualChannel channel) throws IOException {
+            final SpoolIndex index;
+            try (Reader in = new InputStreamReader(
+                    Files.newInputStream(indexFile(spool).toPath()), SpoolIndex.INDEX_CHARSET)) {
+                index = SpoolIndex.parse(in);
+            }
+            return index.read(spool, from, count, Charset.forName(charset));
+        }
+    }
+
+    /** The index that belongs to a spool file. */
+    static File indexFile(final File spool) {
+        return new File(spool.getPath() + ".idx");
+    }
+}
@@ -0,0 +1,593 @@
+package hudson.plugins.xshell;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.AbortException;
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Util;
+import hudson.model.Computer;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.jenkinsci.plugins.workflow.steps.Step;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+/**
+ * The {@code xshell} Pipeline step.
+ *
+ * <p>Runs one or more command lines with the same separator and variable conversion, kill regexes and time
+ * limits as {@link XShellBuilder}. The step execution is asynchronous: it hands the launch to the
+ * remoting pool and returns, and the step completes when the child exits, with no thread waiting
+ * for it meanwhile.
+ */
+public final class XShellStep extends Step {
+
+    private final String commandLine;
+    private String workingDir;
+    private boolean executeFromWorkingDir;
+    private String regexToKill;
+    private String timeAllocated;
+    private String patternSets;
+    private String killGracePeriod;
+    private String idleTimeout;
+    private String outputCharset;
+    private int consoleHeadLines;
+    private int consoleTailLines;
+    private boolean foldRepeats;
+    private boolean commandPerLine;
+    private int parallelism = 1;
+    private boolean failFast;
+    private boolean spoolOutput;
+    private boolean scanOnAgent;
+    private boolean warmSession;
+    private String cacheInputs;
+    private String cacheOutputs;
+    private String cacheEnv;
+    private int niceness;
+    private String ioClass;
+    private String addressSpaceLimit;
+    private int maxOpenFiles;
+    private int maxUserProcesses;
+    private boolean scriptMode;
+    private boolean stopOnFailure;
+    private String readyRegex;
+    private String readyTimeout;
+    private boolean keepRunning;
+
+    @DataBoundConstructor
+    public XShellStep(final String commandLine) {
+        this.commandLine = Util.fixEmptyAndTrim(commandLine);
+    }
+
+    public String getCommandLine() {
+        return commandLine;
+    }
+
+    public String getWorkingDir() {
+        return workingDir;
+    }
+
+    @DataBoundSetter
+    public void setWorkingDir(final String workingDir) {
+        this.workingDir = Util.fixEmptyAndTrim(workingDir);
+    }
+
+    public boolean isExecuteFromWorkingDir() {
+        return executeFromWorkingDir;
+    }
+
+    @DataBoundSetter
+    public void setExecuteFromWorkingDir(final boolean executeFromWorkingDir) {
+        this.executeFromWorkingDir = executeFromWorkingDir;
+    }
+
+    public String getRegexToKill() {
+        return regexToKill;
+    }
+
+    @DataBoundSetter
+    public void setRegexToKill(final String regexToKill) {
+        this.regexToKill = Util.fixEmpty(regexToKill);
+    }
+
+    public String getTimeAllocated() {
+        return timeAllocated;
+    }
+
+    @DataBoundSetter
+    public void setTimeAllocated(final String timeAllocated) {
+        this.timeAllocated = Util.fixEmptyAndTrim(timeAllocated);
+    }
+
+    public String getPatternSets() {
+        return patternSets;
+    }
+
+    @DataBoundSetter
+    public void setPatternSets(final String patternSets) {
+        this.patternSets = Util.fixEmptyAndTrim(patternSets);
+    }
+
+    public String getKillGracePeriod() {
+        return killGracePeriod;
+    }
+
+    @DataBoundSetter
+    public void setKillGracePeriod(final String killGracePeriod) {
+        this.killGracePeriod = Util.fixEmptyAndTrim(killGracePeriod);
+    }
+
+    public String getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    @DataBoundSetter
+    public void setIdleTimeout(final String idleTimeout) {
+        this.idleTimeout = Util.fixEmptyAndTrim(idleTimeout);
+    }
+
+    public String getOutputCharset() {
+        return outputCharset;
+    }
+
+    @DataBoundSetter
+    public void setOutputCharset(final String outputCharset) {
+        this.outputCharset = Util.fixEmptyAndTrim(outputCharset);
+    }
+
+    public int getConsoleHeadLines() {
+        return consoleHeadLines;
+    }
+
+    @DataBoundSetter
+    public void setConsoleHeadLines(final int consoleHeadLines) {
+        this.consoleHeadLines = Math.max(0, consoleHeadLines);
+    }
+
+    public int getConsoleTailLines() {
+        return consoleTailLines;
+    }
+
+    @DataBoundSetter
+    public void setConsoleTailLines(final int consoleTailLines) {
+        this.consoleTailLines = Math.max(0, consoleTailLines);
+    }
+
+    public boolean isFoldRepeats() {
+        return foldRepeats;
+    }
+
+    @DataBoundSetter
+    public void setFoldRepeats(final boolean foldRepeats) {
+        this.foldRepeats = foldRepeats;
+    }
+
+    public boolean isCommandPerLine() {
+        return commandPerLine;
+    }
+
+    @DataBoundSetter
+    public void setCommandPerLine(final boolean commandPerLine) {
+        this.commandPerLine = commandPerLine;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    @DataBoundSetter
+    public void setParallelism(final int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    public boolean isFailFast() {
+        return failFast;
+    }
+
+    @DataBoundSetter
+    public void setFailFast(final boolean failFast) {
+        this.failFast = failFast;
+    }
+
+    public boolean isSpoolOutput() {
+        return spoolOutput;
+    }
+
+    @DataBoundSetter
+    public void setSpoolOutput(final boolean spoolOutput) {
+        this.spoolOutput = spoolOutput;
+    }
+
+    public boolean isScanOnAgent() {
+        return scanOnAgent;
+    }
+
+    @DataBoundSetter
+    public void setScanOnAgent(final boolean scanOnAgent) {
+        this.scanOnAgent = scanOnAgent;
+    }
+
+    public boolean isWarmSession() {
+        return warmSession;
+    }
+
+    @DataBoundSetter
+    public void setWarmSession(final boolean warmSession) {
+        this.warmSession = warmSession;
+    }
+
+    public String getCacheInputs() {
+        return cacheInputs;
+    }
+
+    @DataBoundSetter
+    public void setCacheInputs(final String cacheInputs) {
+        this.cacheInputs = Util.fixEmptyAndTrim(cacheInputs);
+    }
+
+    public String getCacheOutputs() {
+        return cacheOutputs;
+    }
+
+    @DataBoundSetter
+    public void setCacheOutputs(final String cacheOutputs) {
+        this.cacheOutputs = Util.fixEmptyAndTrim(cacheOutputs);
+    }
+
+    public String getCacheEnv() {
+        return cacheEnv;
+    }
+
+    @DataBoundSetter
+    public void setCacheEnv(final String cacheEnv) {
+        this.cacheEnv = Util.fixEmptyAndTrim(cacheEnv);
+    }
+
+    public int getNiceness() {
+        return niceness;
+    }
+
+    @DataBoundSetter
+    public void setNiceness(final int niceness) {
+        this.niceness = niceness;
+    }
+
+    public String getIoClass() {
+        return ioClass;
+    }
+
+    @DataBoundSetter
+    public void setIoClass(final String ioClass) {
+        this.ioClass = Util.fixEmptyAndTrim(ioClass);
+    }
+
+    public String getAddressSpaceLimit() {
+        return addressSpaceLimit;
+    }
+
+    @DataBoundSetter
+    public void setAddressSpaceLimit(final String addressSpaceLimit) {
+        this.addressSpaceLimit = Util.fixEmptyAndTrim(addressSpaceLimit);
+    }
+
+    public int getMaxOpenFiles() {
+        return maxOpenFiles;
+    }
+
+    @DataBoundSetter
+    public void setMaxOpenFiles(final int maxOpenFiles) {
+        this.maxOpenFiles = Math.max(0, maxOpenFiles);
+    }
+
+    public int getMaxUserProcesses() {
+        return maxUserProcesses;
+    }
+
+    @DataBoundSetter
+    public void setMaxUserProcesses(final int maxUserProcesses) {
+        this.maxUserProcesses = Math.max(0, maxUserProcesses);
+    }
+
+    public boolean isScriptMode() {
+        return scriptMode;
+    }
+
+    @DataBoundSetter
+    public void setScriptMode(final boolean scriptMode) {
+        this.scriptMode = scriptMode;
+    }
+
+    public boolean isStopOnFailure() {
+        return stopOnFailure;
+    }
+
+    @DataBoundSetter
+    public void setStopOnFailure(final boolean stopOnFailure) {
+        this.stopOnFailure = stopOnFailure;
+    }
+
+    public String getReadyRegex() {
+        return readyRegex;
+    }
+
+    @DataBoundSetter
+    public void setReadyRegex(final String readyRegex) {
+        this.readyRegex = Util.fixEmptyAndTrim(readyRegex);
+    }
+
+    public String getReadyTimeout() {
+        return readyTimeout;
+    }
+
+    @DataBoundSetter
+    public void setReadyTimeout(final String readyTimeout) {
+        this.readyTimeout = Util.fixEmptyAndTrim(readyTimeout);
+    }
+
+    public boolean isKeepRunning() {
+        return keepRunning;
+    }
+
+    @DataBoundSetter
+    public void setKeepRunning(final boolean keepRunning) {
+        this.keepRunning = keepRunning;
+    }
+
+    /**
+     * Every field of the step, to find the builder of a step configured the same way. Must list
+     * every option passed on by {@link #toBuilder()}.
+     */
+    List<Object> configuration() {
+        return Arrays.asList(
+                commandLine,
+                workingDir,
+                executeFromWorkingDir,
+                regexToKill,
+                timeAllocated,
+                patternSets,
+                killGracePeriod,
+                idleTimeout,
+                outputCharset,
+                consoleHeadLines,
+                consoleTailLines,
+                foldRepeats,
+                commandPerLine,
+                parallelism,
+                failFast,
+                spoolOutput,
+                scanOnAgent,
+                warmSession,
+                cacheInputs,
+                cacheOutputs,
+                cacheEnv,
+                niceness,
+                ioClass,
+                addressSpaceLimit,
+                maxOpenFiles,
+                maxUserProcesses,
+                scriptMode,
+                stopOnFailure,
+                readyRegex,
+                readyTimeout,
+                keepRunning);
+    }
+
+    /** A new builder that runs this step; it holds the cached conversions. */
+    XShellBuilder toBuilder() {
+        final XShellBuilder builder =
+                new XShellBuilder(commandLine, workingDir, executeFromWorkingDir, regexToKill, timeAllocated);
+        builder.setPatternSets(patternSets);
+        builder.setKillGracePeriod(killGracePeriod);
+        builder.setIdleTimeout(idleTimeout);
+        builder.setOutputCharset(outputCharset);
+        builder.setConsoleHeadLines(consoleHeadLines);
+        builder.setConsoleTailLines(consoleTailLines);
+        builder.setFoldRepeats(foldRepeats);
+        builder.setCommandPerLine(commandPerLine);
+        builder.setParallelism(parallelism);
+        builder.setFailFast(failFast);
+        builder.setSpoolOutput(spoolOutput);
+        builder.setScanOnAgent(scanOnAgent);
+        builder.setWarmSession(warmSession);
+        builder.setCacheInputs(cacheInputs);
+        builder.setCacheOutputs(cacheOutputs);
+        builder.setCacheEnv(cacheEnv);
+        builder.setNiceness(niceness);
+        builder.setIoClass(ioClass);
+        builder.setAddressSpaceLimit(addressSpaceLimit);
+        builder.setMaxOpenFiles(maxOpenFiles);
+        builder.setMaxUserProcesses(maxUserProcesses);
+        builder.setScriptMode(scriptMode);
+        builder.setStopOnFailure(stopOnFailure);
+        builder.setReadyRegex(readyRegex);
+        builder.setReadyTimeout(readyTimeout);
+        builder.setKeepRunning(keepRunning);
+        return builder;
+    }
+
+    @Override
+    public StepExecution start(final StepContext context) throws Exception {
+        return new Execution(context, ((DescriptorImpl) getDescriptor()).builder(this));
+    }
+
+    /**
+     * Launches the child and completes the step from the child's exit.
+     *
+     * <p>The launch and the abort talk to the agent, so they run on the remoting pool rather than on
+     * the CPS VM thread, which only hands them over.
+     *
+     * <p>The children of the step carry a cookie in their environment, which is kept with the step,
+     * so that the processes it left running can still be found and killed when the step cannot be
+     * resumed after a restart of the controller.
+     */
+    private static final class Execution extends StepExecution {
+
+        private static final long serialVersionUID = 1L;
+
+        private static final Logger LOG = Logger.getLogger(Execution.class.getName());
+
+        /** The variable that the process tree killer of Jenkins looks for. */
+        static final String COOKIE_VARIABLE = "JENKINS_NODE_COOKIE";
+
+        private final String cookie = UUID.randomUUID().toString();
+
+        private final transient XShellBuilder builder;
+        private transient XShellRun run;
+        private transient boolean stopped;
+
+        Execution(final StepContext context, final XShellBuilder builder) {
+            super(context);
+            this.builder = builder;
+        }
+
+        @Override
+        public boolean start() throws Exception {
+            final StepContext context = getContext();
+            final Run<?, ?> build = context.get(Run.class);
+            final FilePath workspace = context.get(FilePath.class);
+            final Launcher launcher = context.get(Launcher.class);
+            final TaskListener listener = context.get(TaskListener.class);
+            final EnvVars env = context.get(EnvVars.class);
+            Computer.threadPoolForRemoting.submit(() -> launch(build, workspace, launcher, listener, env));
+            return false;
+        }
+
+        private void launch(
+                final Run<?, ?> build,
+                final FilePath workspace,
+                final Launcher launcher,
+                final TaskListener listener,
+                final EnvVars env) {
+            final StepContext context = getContext();
+            final XShellRun r;
+            try {
+                workspace.mkdirs();
+                r = builder.start(
+                        build, workspace, launcher, listener, env, Collections.singletonMap(COOKIE_VARIABLE, cookie));
+            } catch (IOException | InterruptedException | RuntimeException e) {
+                context.onFailure(e);
+                return;
+            }
+            final boolean abort;
+            synchronized (this) {
+                run = r;
+                abort = stopped;
+            }
+            if (abort) {
+                abort(r);
+                return;
+            }
+            r.whenDone().whenComplete((exitCode, error) -> {
+                if (error != null) {
+                    context.onFailure(error);
+                } else if (r.isIdleTimedOut()) {
+                    context.onFailure(new AbortException(Messages.XShell_IdleTimedOut(builder.getIdleTimeoutLabel())));
+                } else if (r.isTerminated()) {
+                    context.onFailure(new AbortException(Messages.XShell_Terminated()));
+                } else if (exitCode != 0) {
+                    context.onFailure(new AbortException(Messages.XShell_ExitCode(exitCode)));
+                } else {
+                    context.onSuccess(null);
+                }
+            });
+        }
+
+        @Override
+        public void stop(@NonNull final Throwable cause) throws Exception {
+            final XShellRun r;
+            synchronized (this) {
+                stopped = true;
+                r = run;
+            }
+            if (r != null) {
+                Computer.threadPoolForRemoting.submit(() -> abort(r));
+            }
+            getContext().onFailure(cause);
+        }
+
+        private static void abort(final XShellRun r) {
+            try {
+                r.abort();
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Failed to abort the xshell step", e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void onResume() {
+            Computer.threadPoolForRemoting.submit(() -> {
+                try {
+                    final Launcher launcher = getContext().get(Launcher.class);
+                    if (launcher != null) {
+                        launcher.kill(Collections.singletonMap(COOKIE_VARIABLE, cookie));
+                    }
+                } catch (IOException e) {
+                    LOG.log(Level.WARNING, "Failed to kill the processes of the xshell step", e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                getContext().onFailure(new AbortException(Messages.XShell_CannotResume()));
+            });
+        }
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends StepDescriptor {
+
+        /** Number of step configurations whose builders are kept. */
+        private static final int MAX_BUILDERS = 100;
+
+        /**
+         * Builders of the step configurations run lately. A Pipeline creates a new step for every
+         * call, so the conversions and patterns cached by a builder are only reused across calls
+         * through here.
+         */
+        private final Map<List<Object>, XShellBuilder> builders =
+                Collections.synchronizedMap(new LinkedHashMap<List<Object>, XShellBuilder>(16, 0.75f, true) {
+                    private static final long serialVersionUID = 1L;
+
+                    @Override
+                    protected boolean removeEldestEntry(final Map.Entry<List<Object>, XShellBuilder> eldest) {
+                        return size() > MAX_BUILDERS;
+                    }
+                });
+
+        /** The builder of a step, shared with the steps configured the same way. */
+        XShellBuilder builder(final XShellStep step) {
+            return builders.computeIfAbsent(step.configuration(), k -> step.toBuilder());
+        }
+
+        @Override
+        public Set<? extends Class<?>> getRequiredContext() {
+            return Set.of(Run.class, FilePath.class, Launcher.class, TaskListener.class, EnvVars.class);
+        }
+
+        @Override
+        public String getFunctionName() {
+            return "xshell";
+        }
+
+        @NonNull
+        @Override
+        public String getDisplayName() {
+            return Messages.XShell_DisplayName();
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package hudson.plugins.xshell;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.util.Timer;
+
+/**
+ * Enforces the time limits of all running steps from the shared Jenkins timer.
+ *
+ * <p>A step registers its deadline once; the deadline costs a queue entry while it waits and fires
+ * exactly once. When it fires the target gets a soft termination, and if it is still running after
+ * the grace period it is killed.
+ */
+final class XShellWatchdog {
+
+    private static final Logger LOG = Logger.getLogger(XShellWatchdog.class.getName());
+
+    /** What the watchdog terminates. Called from a timer thread. */
+    interface Target {
+        /** The deadline has passed: ask the child to stop. */
+        void terminate();
+
+        /** The child is still running after the grace period: kill it. */
+        void kill();
+    }
+
+    private XShellWatchdog() {}
+
+    /**
+     * Register a deadline.
+     *
+     * @param timeoutMillis time from now until the target is terminated, must be positive.
+     * @param graceMillis time from the termination until the target is killed, 0 to only terminate.
+     * @param target what to terminate.
+     * @return the registration, to be cancelled when the child exits.
+     */
+    static Deadline schedule(final long timeoutMillis, final long graceMillis, final Target target) {
+        return schedule(Timer.get(), timeoutMillis, graceMillis, target);
+    }
+
+    /**
+     * Register an idle deadline, which only fires once there was no activity for the whole timeout.
+     *
+     * <p>The deadline is not polled: when it comes due it checks the time of the last activity, and
+     * if there was some, it is rescheduled to the end of the new quiet period.
+     *
+     * @param scheduler where the deadline waits, such as the Jenkins timer or a scheduler in an
+     *     agent JVM.
+     * @param idleMillis quiet time until the target is terminated, must be positive.
+     * @param graceMillis time from the termination until the target is killed, 0 to only terminate.
+     * @param lastActivity {@link System#nanoTime()} of the last activity.
+     * @param target what to terminate.
+     * @return the registration, to be cancelled when the child exits.
+     */
+    static Deadline scheduleIdle(
+            final ScheduledExecutorService scheduler,
+            final long idleMillis,
+            final long graceMillis,
+            final LongSupplier lastActivity,
+            final Target target) {
+        return new Deadline(scheduler, idleMillis, graceMillis, lastActivity, target);
+    }
+
+    /**
+     * Register a deadline on another scheduler, such as one in an agent JVM.
+     *
+     * @see #schedule(long, long, Target)
+     */
+    static Deadline schedule(
+            final ScheduledExecutorService scheduler,
+            final long timeoutMillis,
+            final long graceMillis,
+            final Target target) {
+        return new Deadline(scheduler, timeoutMillis, graceMillis, null, target);
+    }
+
+    /** A registered deadline. */
+    static final class Deadline {
+        private final ScheduledExecutorService scheduler;
+        private final long timeoutMillis;
+        private final long graceMillis;
+        private final LongSupplier lastActivity;
+        private final Target target;
+        private volatile boolean cancelled;
+        private volatile ScheduledFuture<?> pending;
+
+        /** {@link System#nanoTime()} when the deadline is due. */
+        private volatile long due;
+
+        private Deadline(
+                final ScheduledExecutorService scheduler,
+                final long timeoutMillis,
+                final long graceMillis,
+                final LongSupplier lastActivity,
+                final Target target) {
+            this.scheduler = scheduler;
+            this.timeoutMillis = timeoutMillis;
+            this.graceMillis = graceMillis;
+            this.lastActivity = lastActivity;
+            this.target = target;
+            this.due = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            this.pending = scheduler.schedule(this::expired, timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+
+        private void expired() {
+            if (cancelled) {
+                return;
+            }
+            final long now = System.nanoTime();
+            if (lastActivity != null) {
+                final long last = lastActivity.getAsLong();
+                final long quietMillis = TimeUnit.NANOSECONDS.toMillis(now - last);
+                if (quietMillis < timeoutMillis) {
+                    due = last + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+                    pending = scheduler.schedule(this::expired, timeoutMillis - quietMillis, TimeUnit.MILLISECONDS);
+                    return;
+                }
+                due = last + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            }
+            XShellEvents.timeout(lastActivity != null, timeoutMillis, Math.max(0, now - due));
+            try {
+                target.terminate();
+            } catch (RuntimeException e) {
+                LOG.log(Level.WARNING, "Failed to terminate the step", e);
+            }
+            if (graceMillis > 0 && !cancelled) {
+                pending = scheduler.schedule(this::graceExpired, graceMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        private void graceExpired() {
+            if (!cancelled) {
+                target.kill();
+            }
+        }
+
+        /** The child has exited; nothing more will fire. */
+        void cancel() {
+            cancelled = true;
+            pending.cancel(false);
+        }
+    }
+}
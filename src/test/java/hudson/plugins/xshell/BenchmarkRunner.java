@@ -0,0 +1,36 @@
+package hudson.plugins.xshell;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the JMH benchmarks. Skipped by the regular build, run it with {@code mvn test -Dbenchmark}.
+ *
+ * <p>The GC profiler reports the bytes allocated per operation next to the throughput, and the
+ * results are written as JSON to {@code target/jmh-report.json} so they can be compared between
+ * releases.
+ */
+class BenchmarkRunner {
+
+    @Test
+    @EnabledIfSystemProperty(named = "benchmark.run", matches = "true")
+    void runJmhBenchmarks() throws Exception {
+        Options options = new OptionsBuilder()
+                .include(CommandLineBenchmark.class.getName() + ".*")
+                .include(OutputBenchmark.class.getName() + ".*")
+                .warmupIterations(3)
+                .measurementIterations(5)
+                .forks(2)
+                .shouldFailOnError(true)
+                .addProfiler(GCProfiler.class)
+                .resultFormat(ResultFormatType.JSON)
+                .result(System.getProperty("benchmark.report", "target/jmh-report.json"))
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,93 @@
+package hudson.plugins.xshell;
+
+import hudson.EnvVars;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmark the command line conversions done for every build.
+ *
+ * <p>The command lines mix paths in both styles, URLs and variables in both syntaxes, as found in
+ * the command lines of large matrix jobs. Run with {@code mvn test -Dbenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class CommandLineBenchmark {
+
+    /** Number of arguments on the command line. */
+    @Param({"8", "64", "512"})
+    public int arguments;
+
+    private String commandLine;
+    private String windowsCommandLine;
+    private EnvVars env;
+    private CommandTemplate unixTemplate;
+    private CommandTemplate windowsTemplate;
+
+    @Setup
+    public void setUp() {
+        StringBuilder sb = new StringBuilder("tools/bin/package");
+        env = new EnvVars();
+        for (int i = 0; i < arguments; i++) {
+            switch (i % 4) {
+                case 0:
+                    sb.append(" --input=$WORKSPACE/src/module").append(i).append("/main.c");
+                    break;
+                case 1:
+                    sb.append(" --mirror=https://repo.example.com/releases/module").append(i);
+                    break;
+                case 2:
+                    sb.append(" --define=%DEFINE_").append(i).append("%");
+                    break;
+                default:
+                    sb.append(" out\\module").append(i).append("\\${BUILD_NUMBER}.tar.gz");
+                    break;
+            }
+            env.put("DEFINE_" + i, "value" + i);
+        }
+        env.put("WORKSPACE", "/var/lib/jenkins/workspace/matrix/label/linux");
+        env.put("BUILD_NUMBER", "4711");
+        commandLine = sb.toString();
+        windowsCommandLine = XShellBuilder.convertSeparator(commandLine, XShellBuilder.WINDOWS_SEP);
+        unixTemplate = new CommandTemplate(commandLine, true);
+        windowsTemplate = new CommandTemplate(commandLine, false);
+    }
+
+    @Benchmark
+    public String convertSeparatorToUnix() {
+        return XShellBuilder.convertSeparator(commandLine, XShellBuilder.UNIX_SEP);
+    }
+
+    @Benchmark
+    public String convertSeparatorToWindows() {
+        return XShellBuilder.convertSeparator(commandLine, XShellBuilder.WINDOWS_SEP);
+    }
+
+    @Benchmark
+    public String convertEnvVarsToUnix() {
+        return XShellBuilder.convertEnvVarsToUnix(windowsCommandLine);
+    }
+
+    @Benchmark
+    public String convertEnvVarsToWindows() {
+        return XShellBuilder.convertEnvVarsToWindows(commandLine);
+    }
+
+    @Benchmark
+    public String renderUnixTemplate() {
+        return unixTemplate.render(env);
+    }
+
+    @Benchmark
+    public String renderWindowsTemplate() {
+        return windowsTemplate.render(env);
+    }
+}
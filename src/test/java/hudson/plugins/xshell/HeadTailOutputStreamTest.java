@@ -0,0 +1,84 @@
+package hudson.plugins.xshell;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test the head and tail console policy.
+ */
+class HeadTailOutputStreamTest {
+
+    private static String filter(int head, int tail, int matchingLine, int lines) throws IOException {
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        HeadTailOutputStream out = new HeadTailOutputStream(log, head, tail, StandardCharsets.UTF_8);
+        for (int i = 1; i <= lines; i++) {
+            out.write(("line " + i + "\n").getBytes(StandardCharsets.UTF_8));
+            if (i == matchingLine) {
+                // As the output pump does once it has scanned the line.
+                out.matched();
+            }
+        }
+        out.close();
+        return log.toString(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void testShortOutputIsKept() throws IOException {
+        assertThat(filter(2, 2, 0, 4), is("line 1\nline 2\nline 3\nline 4\n"));
+    }
+
+    @Test
+    void testHeadAndTail() throws IOException {
+        assertThat(
+                filter(2, 2, 0, 10),
+                is("line 1\nline 2\n[xshell] ... 6 lines (42 bytes) elided ...\nline 9\nline 10\n"));
+    }
+
+    @Test
+    void testHeadOnly() throws IOException {
+        assertThat(filter(1, 0, 0, 3), is("line 1\n[xshell] ... 2 lines (14 bytes) elided ...\n"));
+    }
+
+    @Test
+    void testMatchingLineIsKept() throws IOException {
+        assertThat(
+                filter(1, 1, 5, 8),
+                is("line 1\n[xshell] ... 3 lines (21 bytes) elided ...\nline 5\n"
+                        + "[xshell] ... 2 lines (14 bytes) elided ...\nline 8\n"));
+    }
+
+    @Test
+    void testMatchingPromptIsKept() throws IOException {
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        HeadTailOutputStream out = new HeadTailOutputStream(log, 0, 0, StandardCharsets.UTF_8);
+        out.write("Password: ".getBytes(StandardCharsets.UTF_8));
+        out.matched();
+        out.close();
+        assertThat(log.toString(StandardCharsets.UTF_8), is("Password: "));
+    }
+
+    @Test
+    void testLongLineIsCut() throws IOException {
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        HeadTailOutputStream out = new HeadTailOutputStream(log, 0, 1, StandardCharsets.UTF_8);
+        byte[] chunk = new byte[1000];
+        Arrays.fill(chunk, (byte) 'x');
+        for (int i = 0; i < 100; i++) {
+            out.write(chunk);
+        }
+        out.write("\n".getBytes(StandardCharsets.UTF_8));
+        out.close();
+        String expected = "x".repeat(100_000 % HeadTailOutputStream.LINE_LIMIT) + "\n";
+        assertThat(
+                log.toString(StandardCharsets.UTF_8),
+                is("[xshell] ... " + 100_000 / HeadTailOutputStream.LINE_LIMIT + " lines ("
+                        + 100_000 / HeadTailOutputStream.LINE_LIMIT * HeadTailOutputStream.LINE_LIMIT
+                        + " bytes) elided ...\n" + expected));
+    }
+}
@@ -0,0 +1,117 @@
+package hudson.plugins.xshell;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.regex.PatternSyntaxException;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test the streaming kill pattern matcher.
+ */
+class KillPatternsTest {
+
+    @Test
+    void testNoPatterns() {
+        assertThat(KillPatterns.compile(null).isEmpty(), is(true));
+        assertThat(KillPatterns.compile(" \n ").isEmpty(), is(true));
+        assertThat(KillPatterns.NONE.newScanner().feed("anything\n"), is(nullValue()));
+    }
+
+    @Test
+    void testMatchSplitAcrossChunks() {
+        KillPatterns.Scanner scanner = KillPatterns.compile("xyzzy.*grue").newScanner();
+        assertThat(scanner.feed("hello xyz"), is(nullValue()));
+        assertThat(scanner.feed("zy ate the gr"), is(nullValue()));
+        assertThat(scanner.feed("ue\nbye\n"), is("xyzzy.*grue"));
+    }
+
+    @Test
+    void testNoMatchAcrossLines() {
+        KillPatterns.Scanner scanner = KillPatterns.compile("xyzzy.*grue").newScanner();
+        assertThat(scanner.feed("xyzzy\n"), is(nullValue()));
+        assertThat(scanner.feed("grue\n"), is(nullValue()));
+    }
+
+    @Test
+    void testUnterminatedLine() {
+        KillPatterns.Scanner scanner = KillPatterns.compile("^Password:").newScanner();
+        assertThat(scanner.feed("Pass"), is(nullValue()));
+        assertThat(scanner.flush(), is(nullValue()));
+        assertThat(scanner.feed("word: "), is(nullValue()));
+        assertThat(scanner.flush(), is("^Password:"));
+    }
+
+    @Test
+    void testLineMatchedOnlyWhenComplete() {
+        KillPatterns.Scanner scanner = KillPatterns.compile("foo$").newScanner();
+        for (char c : "foobar".toCharArray()) {
+            assertThat(scanner.feed(String.valueOf(c)), is(nullValue()));
+            assertThat(scanner.flush(), is(nullValue()));
+        }
+        assertThat(scanner.feed("\n"), is(nullValue()));
+        assertThat(scanner.feed("foo"), is(nullValue()));
+        assertThat(scanner.feed("\n"), is("foo$"));
+    }
+
+    @Test
+    void testSeveralPatterns() {
+        KillPatterns patterns = KillPatterns.compile("(Out)(Of)Memory\nSegmentation fault\n");
+        assertThat(patterns.getPatterns().size(), is(2));
+        assertThat(patterns.find("java.lang.OutOfMemoryError"), is("(Out)(Of)Memory"));
+        assertThat(patterns.find("Segmentation fault (core dumped)"), is("Segmentation fault"));
+        assertThat(patterns.find("all good"), is(nullValue()));
+    }
+
+    @Test
+    void testBackReference() {
+        KillPatterns patterns = KillPatterns.compile("none\n(ab)\\1");
+        assertThat(patterns.find("xxababxx"), is("(ab)\\1"));
+        assertThat(patterns.find("xxabxx"), is(nullValue()));
+    }
+
+    @Test
+    void testPatternsThatCannotBeCombined() {
+        KillPatterns quoted = KillPatterns.compile("\\Qa+b\nSegmentation fault");
+        assertThat(quoted.find("1 a+b 2"), is("\\Qa+b"));
+        assertThat(quoted.find("Segmentation fault"), is("Segmentation fault"));
+        KillPatterns named = KillPatterns.compile("(?<code>E\\d+)\n(?<code>W\\d+)");
+        assertThat(named.find("W42"), is("(?<code>W\\d+)"));
+        KillPatterns comment = KillPatterns.compile("(?x) panic # kernel\nabort");
+        assertThat(comment.find("abort"), is("abort"));
+    }
+
+    @Test
+    void testInvalidPatternReportedAlone() {
+        PatternSyntaxException e = assertThrows(PatternSyntaxException.class,
+                () -> KillPatterns.compile("fine\nbro(ken"));
+        assertThat(e.getPattern(), is("bro(ken"));
+    }
+
+    @Test
+    void testLongLineKeepsOverlap() {
+        KillPatterns.Scanner scanner = KillPatterns.compile("needle").newScanner();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < KillPatterns.MAX_LINE_LENGTH + 10; i++) {
+            sb.append('x');
+        }
+        assertThat(scanner.feed(sb), is(nullValue()));
+        assertThat(scanner.feed("nee"), is(nullValue()));
+        assertThat(scanner.feed("dle"), is(nullValue()));
+        assertThat(scanner.feed("\n"), is("needle"));
+    }
+
+    @Test
+    void testNoLineStartAfterCut() {
+        KillPatterns.Scanner scanner = KillPatterns.compile("^error").newScanner();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < KillPatterns.MAX_LINE_LENGTH + 10; i++) {
+            sb.append('x');
+        }
+        assertThat(scanner.feed(sb), is(nullValue()));
+        assertThat(scanner.feed("error\n"), is(nullValue()));
+        assertThat(scanner.feed("error\n"), is("^error"));
+    }
+}
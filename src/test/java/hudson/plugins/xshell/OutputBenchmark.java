@@ -0,0 +1,83 @@
+package hudson.plugins.xshell;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmark the output path: forwarding the child's output to the log and scanning it for the kill
+ * regexes.
+ *
+ * <p>One operation pushes 1 MiB of build output through the pump in chunks of the given size, the
+ * way the launcher delivers it. Small chunks stand for a child that prints slowly, large ones for a
+ * child that floods its output. Run with {@code mvn test -Dbenchmark}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class OutputBenchmark {
+
+    private static final int OUTPUT_SIZE = 1024 * 1024;
+
+    private static final String[] KILL_PATTERNS = {
+        "java\\.lang\\.OutOfMemoryError",
+        "Segmentation fault",
+        "license server (down|unavailable)",
+        "^FATAL:",
+        "No space left on device",
+        "Connection refused",
+        "Killed by signal \\d+",
+        "xyzzy.*grue"
+    };
+
+    /** Size of the chunks written by the launcher. */
+    @Param({"64", "4096", "65536"})
+    public int chunkSize;
+
+    /** Number of kill regexes configured. */
+    @Param({"0", "1", "8"})
+    public int patterns;
+
+    private byte[] output;
+    private KillPatterns killPatterns;
+
+    @Setup
+    public void setUp() {
+        StringBuilder sb = new StringBuilder(OUTPUT_SIZE + 128);
+        int line = 0;
+        while (sb.length() < OUTPUT_SIZE) {
+            sb.append("[INFO] Compiling module ")
+                    .append(line % 97)
+                    .append(" source file src/main/java/org/example/Generated")
+                    .append(line++)
+                    .append(".java\n");
+        }
+        output = sb.substring(0, OUTPUT_SIZE).getBytes(StandardCharsets.UTF_8);
+        StringBuilder regexes = new StringBuilder();
+        for (int i = 0; i < patterns; i++) {
+            regexes.append(KILL_PATTERNS[i]).append('\n');
+        }
+        killPatterns = KillPatterns.compile(regexes.toString());
+    }
+
+    @Benchmark
+    public void forwardAndScan() throws IOException {
+        XShellOutputStream out = new XShellOutputStream(
+                OutputStream.nullOutputStream(), killPatterns, StandardCharsets.UTF_8, pattern -> {
+                    throw new IllegalStateException("Unexpected match of " + pattern);
+                });
+        for (int off = 0; off < output.length; off += chunkSize) {
+            out.write(output, off, Math.min(chunkSize, output.length - off));
+        }
+        out.close();
+    }
+}
@@ -0,0 +1,63 @@
+package hudson.plugins.xshell;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test the global pattern sets.
+ */
+class PatternLibraryTest {
+
+    private final PatternLibrary library = PatternLibrary.build(
+            List.of(
+                    new XShellDescriptor.PatternSet("OOM", "OutOfMemoryError\nCannot allocate memory"),
+                    new XShellDescriptor.PatternSet("segfault", "Segmentation fault")),
+            "2h",
+            "15m");
+
+    @Test
+    void testOwnPatternsOnly() {
+        KillPatterns own = KillPatterns.compile("xyzzy");
+        assertThat(library.resolve(own, null), is(sameInstance(own)));
+        assertThat(library.resolve(KillPatterns.NONE, " "), is(sameInstance(KillPatterns.NONE)));
+    }
+
+    @Test
+    void testSingleSetIsShared() {
+        KillPatterns oom = library.resolve(KillPatterns.NONE, "OOM");
+        assertThat(library.resolve(KillPatterns.NONE, "OOM, OOM"), is(sameInstance(oom)));
+        assertThat(oom.find("java.lang.OutOfMemoryError: Java heap space"), is("OutOfMemoryError"));
+    }
+
+    @Test
+    void testOwnPatternsComeFirst() {
+        KillPatterns all = library.resolve(KillPatterns.compile("fatal"), "segfault OOM unknown");
+        assertThat(all.getPatterns(), is(List.of(
+                "fatal", "Segmentation fault", "OutOfMemoryError", "Cannot allocate memory")));
+        assertThat(library.unknown("segfault OOM unknown"), is(List.of("unknown")));
+    }
+
+    @Test
+    void testDefaults() {
+        assertThat(library.getDefaultTimeAllocated(), is("2h"));
+        assertThat(library.getDefaultTimeLimit(), is(7_200_000L));
+        assertThat(library.getDefaultIdleTimeout(), is("15m"));
+        assertThat(PatternLibrary.EMPTY.getDefaultTimeLimit(), is(0L));
+    }
+
+    @Test
+    void testInvalid() {
+        assertThrows(IllegalArgumentException.class, () -> PatternLibrary.build(
+                List.of(new XShellDescriptor.PatternSet("a", "x"), new XShellDescriptor.PatternSet("a", "y")),
+                null,
+                null));
+        assertThrows(IllegalArgumentException.class, () -> PatternLibrary.build(
+                List.of(new XShellDescriptor.PatternSet("bad", "(unclosed")), null, null));
+        assertThrows(IllegalArgumentException.class, () -> PatternLibrary.build(List.of(), "soon", null));
+    }
+}
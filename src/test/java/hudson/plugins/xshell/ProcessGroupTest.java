@@ -0,0 +1,58 @@
+package hudson.plugins.xshell;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Test killing a child through its process group.
+ */
+@EnabledOnOs(OS.LINUX)
+class ProcessGroupTest {
+
+    @Test
+    void testKillGroup(@TempDir Path dir) throws Exception {
+        final String pidFile = dir.resolve("child.pid").toString();
+        final List<String> cmds = new ArrayList<>(Arrays.asList(ProcessGroup.prefix(pidFile)));
+        cmds.addAll(Arrays.asList("sh", "-c", "sleep 60 & sleep 60 & echo started; wait"));
+        final Process child = new ProcessBuilder(cmds).start();
+        assertThat(child.getInputStream().read(), is((int) 's'));
+
+        final ProcessGroup.Report report = ProcessGroup.kill(null, pidFile, false);
+        assertThat(report.pgid, is(child.pid()));
+        assertThat(report.signal, is("SIGTERM"));
+        assertThat(report.gone, is(true));
+        assertThat(child.waitFor(10, TimeUnit.SECONDS), is(true));
+    }
+
+    @Test
+    void testExitCodeOfGroupLeader(@TempDir Path dir) throws Exception {
+        // Started by another setsid, the setsid of the prefix leads a group already, so it forks.
+        final List<String> cmds = new ArrayList<>(Arrays.asList("setsid"));
+        cmds.addAll(Arrays.asList(ProcessGroup.prefix(dir.resolve("child.pid").toString())));
+        cmds.addAll(Arrays.asList("sh", "-c", "sleep 1; exit 7"));
+        final Process child = new ProcessBuilder(cmds).start();
+        assertThat(child.waitFor(10, TimeUnit.SECONDS), is(true));
+        assertThat(child.exitValue(), is(7));
+    }
+
+    @Test
+    void testDisabledByDefault() {
+        assertThat(ProcessGroup.ENABLED, is(false));
+    }
+
+    @Test
+    void testNoPidFile(@TempDir Path dir) throws Exception {
+        assertThat(ProcessGroup.kill(null, dir.resolve("none.pid").toString(), false), is(nullValue()));
+    }
+}
@@ -0,0 +1,69 @@
+package hudson.plugins.xshell;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test the console policy that folds repeated lines.
+ */
+class RepeatFoldingOutputStreamTest {
+
+    private static String fold(String regexToKill, String... chunks) throws IOException {
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        RepeatFoldingOutputStream out = new RepeatFoldingOutputStream(
+                log, true, KillPatterns.compile(regexToKill), StandardCharsets.UTF_8);
+        for (String chunk : chunks) {
+            out.write(chunk.getBytes(StandardCharsets.UTF_8));
+        }
+        out.close();
+        return log.toString(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void testDifferentLinesAreKept() throws IOException {
+        assertThat(fold(null, "a\nb\na\n"), is("a\nb\na\n"));
+    }
+
+    @Test
+    void testNumbersAreFolded() throws IOException {
+        assertThat(
+                fold(null, "start\n", "line 1\nline 2\nline 3\nline 10\n", "done\n"),
+                is("start\nline 1\n[xshell] ... 2 similar lines (14 bytes) folded ...\nline 10\ndone\n"));
+    }
+
+    @Test
+    void testSingleRepeatIsKept() throws IOException {
+        assertThat(fold(null, "try 1\ntry 2\n"), is("try 1\ntry 2\n"));
+    }
+
+    @Test
+    void testProgressUpdates() throws IOException {
+        assertThat(
+                fold(null, "10%\r20%\r", "30%\r", "\n40%\r\nok\n"),
+                is("10%\r[xshell] ... 2 similar lines (9 bytes) folded ...\n40%\r\nok\n"));
+    }
+
+    @Test
+    void testLinesSplitAcrossWrites() throws IOException {
+        assertThat(fold(null, "wait", "ing 1\nwaiting 2\nwai", "ting 3"), is("waiting 1\n"
+                + "[xshell] ... 1 similar lines (10 bytes) folded ...\nwaiting 3"));
+    }
+
+    @Test
+    void testMatchingLineIsKept() throws IOException {
+        assertThat(
+                fold("error 3", "error 1\nerror 2\nerror 3\nerror 4\nerror 5\n"),
+                is("error 1\nerror 2\nerror 3\n[xshell] ... 1 similar lines (8 bytes) folded ...\nerror 5\n"));
+    }
+
+    @Test
+    void testLongLinesAreNotFolded() throws IOException {
+        String line = "x".repeat(RepeatFoldingOutputStream.LINE_LIMIT) + "\n";
+        assertThat(fold(null, line, line, line), is(line + line + line));
+    }
+}
@@ -0,0 +1,60 @@
+package hudson.plugins.xshell;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test parsing of resource limits.
+ */
+class ResourceLimitsTest {
+
+    @Test
+    void testNoLimits() {
+        assertThat(ResourceLimits.of(0, null, " ", 0, 0).isEmpty(), is(true));
+        assertThat(ResourceLimits.of(10, null, null, 0, 0).isEmpty(), is(false));
+    }
+
+    @Test
+    void testSizes() {
+        assertThat(ResourceLimits.parseSize(null), is(0L));
+        assertThat(ResourceLimits.parseSize("4096"), is(4096L));
+        assertThat(ResourceLimits.parseSize("512k"), is(512L * 1024));
+        assertThat(ResourceLimits.parseSize("512MB"), is(512L * 1024 * 1024));
+        assertThat(ResourceLimits.parseSize("4 g"), is(4L * 1024 * 1024 * 1024));
+    }
+
+    @Test
+    void testIoClasses() {
+        assertThat(ResourceLimits.parseIoClass(""), is(nullValue()));
+        assertThat(ResourceLimits.parseIoClass("Idle"), is("idle"));
+        assertThat(ResourceLimits.parseIoClass("best-effort"), is("best-effort"));
+    }
+
+    @Test
+    void testInvalid() {
+        assertThrows(IllegalArgumentException.class, () -> ResourceLimits.parseSize("lots"));
+        assertThrows(IllegalArgumentException.class, () -> ResourceLimits.parseSize("99999999t"));
+        assertThrows(IllegalArgumentException.class, () -> ResourceLimits.parseIoClass("realtime"));
+        assertThrows(IllegalArgumentException.class, () -> ResourceLimits.of(20, null, null, 0, 0));
+    }
+
+    @Test
+    void testUserProcessCapWarns() {
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        List<String> prefix = ResourceLimits.of(0, null, "4g", 0, 500)
+                .prefix(Collections.singleton("prlimit"), new PrintStream(log, true, StandardCharsets.UTF_8));
+        assertThat(prefix, is(Arrays.asList("prlimit", "--as=4294967296", "--nproc=500", "--")));
+        assertThat(log.toString(StandardCharsets.UTF_8), containsString("not only those of this step"));
+    }
+}
@@ -0,0 +1,59 @@
+package hudson.plugins.xshell;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import hudson.Proc;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Test running commands in a warm shell session.
+ */
+@EnabledOnOs(OS.LINUX)
+class ShellSessionTest {
+
+    private static String run(Path dir, Map<String, String> envs, String... cmds) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        List<String> command = Arrays.asList(cmds);
+        Proc proc = ShellSession.launch(command, envs, dir.toString(), out);
+        assertThat(proc.join(), is(0));
+        return out.toString(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void testBackgroundOutputStaysWithItsCommand(@TempDir Path dir) throws Exception {
+        String first = run(dir, Collections.emptyMap(), "sh", "-c", "echo first; (sleep 1; echo late) &");
+        String second = run(dir, Collections.emptyMap(), "echo", "second");
+        assertThat(first, is("first\nlate\n"));
+        assertThat(second, is("second\n"));
+    }
+
+    @Test
+    void testVariablesExpandedLikeLauncher(@TempDir Path dir) throws Exception {
+        String path = run(dir, Map.of("PATH+EXTRA", "/opt/extra/bin"), "sh", "-c", "echo $PATH");
+        assertThat(path, is("/opt/extra/bin:" + System.getenv("PATH") + "\n"));
+        String home = run(dir, Map.of("XSHELL_TEST", "${HOME}/x"), "sh", "-c", "echo $XSHELL_TEST");
+        assertThat(home, is(System.getenv("HOME") + "/x\n"));
+        assertThat(run(dir, Collections.emptyMap(), "sh", "-c", "echo $XSHELL_TEST"), not(containsString("/x")));
+    }
+
+    @Test
+    void testNotAliveOnceDone(@TempDir Path dir) throws Exception {
+        Proc proc = ShellSession.launch(Arrays.asList("echo", "done"), Collections.emptyMap(), dir.toString(),
+                new ByteArrayOutputStream());
+        assertThat(proc.join(), is(0));
+        assertThat(proc.isAlive(), is(false));
+    }
+}
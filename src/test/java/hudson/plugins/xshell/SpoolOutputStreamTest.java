@@ -0,0 +1,87 @@
+package hudson.plugins.xshell;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Test the compressed, line-indexed spool.
+ */
+class SpoolOutputStreamTest {
+
+    @TempDir
+    File tmp;
+
+    private SpoolIndex index;
+
+    private File spool(String regexToKill, int lines) throws IOException {
+        File file = new File(tmp, "spool.log.gz");
+        try (SpoolOutputStream out = new SpoolOutputStream(
+                new FileOutputStream(file),
+                KillPatterns.compile(regexToKill),
+                StandardCharsets.UTF_8,
+                i -> index = SpoolIndex.parse(i.format()))) {
+            for (int i = 0; i < lines; i++) {
+                out.write(((i % 10000 == 42 ? "ERROR " : "line ") + i + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        return file;
+    }
+
+    @Test
+    void testSpoolIsPlainGzip() throws IOException {
+        File file = spool(null, 50000);
+        assertThat(index.getBlocks(), greaterThan(1));
+        try (InputStream in = new GZIPInputStream(new FileInputStream(file))) {
+            String text = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            assertThat(text.startsWith("line 0\nline 1\n"), is(true));
+            assertThat(text.endsWith("line 49999\n"), is(true));
+            assertThat((long) text.length(), is(index.getBytes()));
+        }
+        assertThat(index.getLines(), is(50000L));
+        assertThat(index.getCompressedBytes(), is(file.length()));
+    }
+
+    @Test
+    void testReadRange() throws IOException {
+        File file = spool(null, 50000);
+        assertThat(index.read(file, 0, 2, StandardCharsets.UTF_8), is("line 0\nline 1\n"));
+        assertThat(index.read(file, 31000, 3, StandardCharsets.UTF_8), is("line 31000\nline 31001\nline 31002\n"));
+        assertThat(index.read(file, 49999, 10, StandardCharsets.UTF_8), is("line 49999\n"));
+        assertThat(index.read(file, 60000, 10, StandardCharsets.UTF_8), is(""));
+    }
+
+    @Test
+    void testMatchesAreIndexed() throws IOException {
+        File file = spool("^ERROR", 30000);
+        assertThat(index.getMatches(), is(Arrays.asList(42L, 10042L, 20042L)));
+        assertThat(index.read(file, 10042, 1, StandardCharsets.UTF_8), is("ERROR 10042\n"));
+    }
+
+    @Test
+    void testLongLineSpansBlocks() throws IOException {
+        File file = new File(tmp, "long.log.gz");
+        byte[] longLine = new byte[3 * SpoolOutputStream.MAX_BLOCK_SIZE];
+        Arrays.fill(longLine, (byte) 'x');
+        try (SpoolOutputStream out = new SpoolOutputStream(
+                new FileOutputStream(file), KillPatterns.NONE, StandardCharsets.UTF_8, i -> index = i)) {
+            out.write("first\n".getBytes(StandardCharsets.UTF_8));
+            out.write(longLine);
+            out.write("\nlast".getBytes(StandardCharsets.UTF_8));
+        }
+        assertThat(index.getLines(), is(3L));
+        assertThat(index.read(file, 1, 1, StandardCharsets.UTF_8).length(), is(longLine.length + 1));
+        assertThat(index.read(file, 2, 1, StandardCharsets.UTF_8), is("last"));
+    }
+}
@@ -0,0 +1,50 @@
+package hudson.plugins.xshell;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test parsing of time limits.
+ */
+class TimeLimitTest {
+
+    @Test
+    void testNoLimit() {
+        assertThat(TimeLimit.parse(null), is(0L));
+        assertThat(TimeLimit.parse(" "), is(0L));
+        assertThat(TimeLimit.parse("0"), is(0L));
+    }
+
+    @Test
+    void testPlainSeconds() {
+        assertThat(TimeLimit.parse("37"), is(37_000L));
+    }
+
+    @Test
+    void testUnits() {
+        assertThat(TimeLimit.parse("90s"), is(90_000L));
+        assertThat(TimeLimit.parse("15m"), is(900_000L));
+        assertThat(TimeLimit.parse("2H"), is(7_200_000L));
+        assertThat(TimeLimit.parse("1h 30m"), is(5_400_000L));
+        assertThat(TimeLimit.parse("250ms"), is(250L));
+    }
+
+    @Test
+    void testInvalid() {
+        assertThrows(IllegalArgumentException.class, () -> TimeLimit.parse("ten minutes"));
+        assertThrows(IllegalArgumentException.class, () -> TimeLimit.parse("-5"));
+        assertThrows(IllegalArgumentException.class, () -> TimeLimit.parse("99999999999999999999"));
+        assertThrows(IllegalArgumentException.class, () -> TimeLimit.parse("9999999999999999h"));
+        assertThrows(IllegalArgumentException.class, () -> TimeLimit.parse("9223372036854775s 9223372036854775s"));
+    }
+
+    @Test
+    void testFormat() {
+        assertThat(TimeLimit.format(7_200_000L), is("2h"));
+        assertThat(TimeLimit.format(90_000L), is("90s"));
+        assertThat(TimeLimit.format(250L), is("250ms"));
+    }
+}
@@ -1,7 +1,12 @@
 package hudson.plugins.xshell;
 
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
 import hudson.model.FreeStyleBuild;
 import hudson.model.FreeStyleProject;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
 import org.junit.jupiter.api.Test;
 import org.jvnet.hudson.test.Issue;
 import org.jvnet.hudson.test.JenkinsRule;
@@ -44,4 +49,29 @@ class UpgradeTest {
         j.assertLogContains(arguments, build);
         j.assertLogContains("SUCCESS", build);
     }
+
+    /**
+     * A command line broken over several lines was one command before command lines could run one
+     * per line. A job saved by an earlier version keeps running it as one command, with the line
+     * breaks taken as spaces.
+     */
+    @Test
+    void testMultiLineCommandLineIsOneCommand(JenkinsRule j) throws Exception {
+        final String xml = "<project><builders><hudson.plugins.xshell.XShellBuilder>"
+                + "<commandLine>echo one\ntwo\nthree</commandLine>"
+                + "<workingDir></workingDir>"
+                + "<executeFromWorkingDir>false</executeFromWorkingDir>"
+                + "<regexToKill></regexToKill>"
+                + "<timeAllocated></timeAllocated>"
+                + "</hudson.plugins.xshell.XShellBuilder></builders></project>";
+        FreeStyleProject project = (FreeStyleProject) j.jenkins.createProjectFromXML(
+                "multi-line", new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+        XShellBuilder builder = project.getBuildersList().get(XShellBuilder.class);
+        assertThat(builder.isCommandPerLine(), is(false));
+
+        FreeStyleBuild build = j.buildAndAssertSuccess(project);
+
+        j.assertLogContains("one two three", build);
+        j.assertLogNotContains("commands succeeded", build);
+    }
 }
@@ -1,24 +1,39 @@
 package hudson.plugins.xshell;
 
+import static org.hamcrest.CoreMatchers.containsString;
 import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
 import static org.hamcrest.CoreMatchers.nullValue;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import hudson.EnvVars;
 import hudson.Launcher;
 import hudson.model.AbstractBuild;
 import hudson.model.BuildListener;
+import hudson.model.EnvironmentContributingAction;
+import hudson.model.FreeStyleBuild;
 import hudson.model.FreeStyleProject;
+import hudson.model.InvisibleAction;
+import hudson.model.Run;
 import hudson.model.StreamBuildListener;
+import hudson.slaves.EnvironmentVariablesNodeProperty;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
+import java.util.List;
 import java.util.Random;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.TestInfo;
+import org.junit.jupiter.api.condition.EnabledOnOs;
+import org.junit.jupiter.api.condition.OS;
 import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestBuilder;
 import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
 
 /**
@@ -126,6 +141,334 @@ class XShellBuilderTest {
         assertTrue(builder.perform(build, launcher, listener), "Failed in perform");
     }
 
+    @Test
+    void testPerformKilledByRegex(TestInfo info) throws Exception {
+        FreeStyleProject project = rule.createFreeStyleProject(
+                "job-" + info.getTestMethod().orElseThrow().getName());
+        Launcher launcher = rule.createLocalLauncher();
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        BuildListener listener = new StreamBuildListener(outputStream, StandardCharsets.UTF_8);
+        AbstractBuild build = project.scheduleBuild2(0).get();
+        builder = new XShellBuilder("echo xyzzy ate the grue", workingDir, executeFromWorkingDir, "xyzzy.*grue", null);
+        assertFalse(builder.perform(build, launcher, listener), "Not killed by regex");
+        String log = outputStream.toString(StandardCharsets.UTF_8);
+        assertThat(log, containsString("xyzzy ate the grue"));
+        assertThat(log, containsString("Matched <xyzzy.*grue> in output. Terminated"));
+    }
+
+    @Test
+    void testPerformKilledByRegexOnAgent(TestInfo info) throws Exception {
+        FreeStyleProject project = rule.createFreeStyleProject(
+                "job-" + info.getTestMethod().orElseThrow().getName());
+        Launcher launcher = rule.createLocalLauncher();
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        BuildListener listener = new StreamBuildListener(outputStream, StandardCharsets.UTF_8);
+        AbstractBuild build = project.scheduleBuild2(0).get();
+        builder = new XShellBuilder("echo xyzzy ate the grue", workingDir, executeFromWorkingDir, "xyzzy.*grue", null);
+        builder.setScanOnAgent(true);
+        assertFalse(builder.perform(build, launcher, listener), "Not killed by regex");
+        String log = outputStream.toString(StandardCharsets.UTF_8);
+        assertThat(log, containsString("xyzzy ate the grue"));
+        assertThat(log, containsString("Matched <xyzzy.*grue> in output. Terminated"));
+    }
+
+    @Test
+    @EnabledOnOs(OS.LINUX)
+    void testPerformOnAgentKeepsLauncherDecorator(TestInfo info) throws Exception {
+        FreeStyleProject project = rule.createFreeStyleProject(
+                "job-" + info.getTestMethod().orElseThrow().getName());
+        Launcher launcher = rule.createLocalLauncher().decorateByPrefix("env", "XSHELL_DECORATED=yes");
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        BuildListener listener = new StreamBuildListener(outputStream, StandardCharsets.UTF_8);
+        AbstractBuild build = project.scheduleBuild2(0).get();
+        builder = new XShellBuilder("env", workingDir, executeFromWorkingDir, null, null);
+        builder.setScanOnAgent(true);
+        builder.setWarmSession(true);
+        assertTrue(builder.perform(build, launcher, listener), "Failed in perform");
+        String log = outputStream.toString(StandardCharsets.UTF_8);
+        assertThat(log, containsString("XSHELL_DECORATED=yes"));
+        assertThat(log, containsString("[xshell] The launcher is decorated"));
+    }
+
+    @Test
+    void testPerformKeepsTimeLimitWithBadGracePeriod(TestInfo info) throws Exception {
+        FreeStyleProject project = rule.createFreeStyleProject(
+                "job-" + info.getTestMethod().orElseThrow().getName());
+        Launcher launcher = rule.createLocalLauncher();
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        BuildListener listener = new StreamBuildListener(outputStream, StandardCharsets.UTF_8);
+        AbstractBuild build = project.scheduleBuild2(0).get();
+        builder = new XShellBuilder("sleep 60", workingDir, executeFromWorkingDir, null, "2s");
+        builder.setKillGracePeriod("soon");
+        long start = System.currentTimeMillis();
+        assertFalse(builder.perform(build, launcher, listener), "Not terminated by the time limit");
+        assertThat(System.currentTimeMillis() - start < 30_000, is(true));
+        String log = outputStream.toString(StandardCharsets.UTF_8);
+        assertThat(log, containsString("Ignoring kill grace period"));
+        assertThat(log, containsString("Timed out <2s>. Terminated"));
+    }
+
+    @Test
+    void testPerformInWarmSession(TestInfo info) throws Exception {
+        FreeStyleProject project = rule.createFreeStyleProject(
+                "job-" + info.getTestMethod().orElseThrow().getName());
+        Launcher launcher = rule.createLocalLauncher();
+        builder = new XShellBuilder("echo warm", workingDir, executeFromWorkingDir, null, null);
+        builder.setWarmSession(true);
+        for (int i = 0; i < 2; i++) {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            BuildListener listener = new StreamBuildListener(outputStream, StandardCharsets.UTF_8);
+            AbstractBuild build = project.scheduleBuild2(0).get();
+            assertTrue(builder.perform(build, launcher, listener), "Failed in perform");
+            assertThat(outputStream.toString(StandardCharsets.UTF_8), containsString("warm"));
+        }
+    }
+
+    @Test
+    void testPerformRestoredFromCache(TestInfo info) throws Exception {
+        FreeStyleProject project = rule.createFreeStyleProject(
+                "job-" + info.getTestMethod().orElseThrow().getName());
+        Launcher launcher = rule.createLocalLauncher();
+        builder = new XShellBuilder("echo cached", workingDir, executeFromWorkingDir, null, null);
+        builder.setCacheInputs("**/*.in");
+        String[] logs = new String[2];
+        for (int i = 0; i < 2; i++) {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            BuildListener listener = new StreamBuildListener(outputStream, StandardCharsets.UTF_8);
+            AbstractBuild build = project.scheduleBuild2(0).get();
+            assertTrue(builder.perform(build, launcher, listener), "Failed in perform");
+            logs[i] = outputStream.toString(StandardCharsets.UTF_8);
+        }
+        assertThat(logs[0], containsString("Stored in the result cache"));
+        assertThat(logs[1], containsString("cached"));
+        assertThat(logs[1], containsString("Restored from the result cache"));
+    }
+
+    @Test
+    void testPerformScript(TestInfo info) throws Exception {
+        FreeStyleProject project = rule.createFreeStyleProject(
+                "job-" + info.getTestMethod().orElseThrow().getName());
+        Launcher launcher = rule.createLocalLauncher();
+        builder = new XShellBuilder("GREETING=one\necho $GREETING\nfalse\necho three", workingDir, false, null, null);
+        builder.setScriptMode(true);
+        for (boolean stopOnFailure : new boolean[] {false, true}) {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            BuildListener listener = new StreamBuildListener(outputStream, StandardCharsets.UTF_8);
+            AbstractBuild build = project.scheduleBuild2(0).get();
+            builder.setStopOnFailure(stopOnFailure);
+            assertThat(builder.perform(build, launcher, listener), is(!stopOnFailure));
+            String log = outputStream.toString(StandardCharsets.UTF_8);
+            assertThat(log, containsString("one"));
+            assertThat(log.contains("three"), is(!stopOnFailure));
+        }
+    }
+
+    @Test
+    @EnabledOnOs(OS.LINUX)
+    void testPerformKillsProcessGroup(TestInfo info) throws Exception {
+        FreeStyleProject project = rule.createFreeStyleProject(
+                "job-" + info.getTestMethod().orElseThrow().getName());
+        Launcher launcher = rule.createLocalLauncher();
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        BuildListener listener = new StreamBuildListener(outputStream, StandardCharsets.UTF_8);
+        AbstractBuild build = project.scheduleBuild2(0).get();
+        builder = new XShellBuilder(
+                "sleep 60 &\necho xyzzy ate the grue\nwait", workingDir, false, "xyzzy.*grue", null);
+        builder.setScriptMode(true);
+        ProcessGroup.ENABLED = true;
+        long start = System.nanoTime();
+        try {
+            assertFalse(builder.perform(build, launcher, listener), "Not killed by regex");
+        } finally {
+            ProcessGroup.ENABLED = false;
+        }
+        assertThat(System.nanoTime() - start < 30_000_000_000L, is(true));
+        String log = outputStream.toString(StandardCharsets.UTF_8);
+        assertThat(log, containsString("Matched <xyzzy.*grue> in output. Terminated"));
+        assertThat(log, containsString("Killed process group"));
+    }
+
+    @Test
+    void testPerformUntilReady(TestInfo info) throws Exception {
+        FreeStyleProject project = rule.createFreeStyleProject(
+                "job-" + info.getTestMethod().orElseThrow().getName());
+        Launcher launcher = rule.createLocalLauncher();
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        BuildListener listener = new StreamBuildListener(outputStream, StandardCharsets.UTF_8);
+        AbstractBuild build = project.scheduleBuild2(0).get();
+        builder = new XShellBuilder(
+                "sh -c \"echo listening on 8080; sleep 60\"", workingDir, executeFromWorkingDir, null, null);
+        builder.setReadyRegex("listening on \\d+");
+        long start = System.currentTimeMillis();
+        assertTrue(builder.perform(build, launcher, listener), "Failed in perform");
+        assertThat(System.currentTimeMillis() - start < 30_000, is(true));
+        String log = outputStream.toString(StandardCharsets.UTF_8);
+        assertThat(log, containsString("listening on 8080"));
+        assertThat(log, containsString("Matched <listening on \\d+> in output. Ready"));
+
+        outputStream = new ByteArrayOutputStream();
+        listener = new StreamBuildListener(outputStream, StandardCharsets.UTF_8);
+        builder = new XShellBuilder("sleep 60", workingDir, executeFromWorkingDir, null, null);
+        builder.setReadyRegex("listening on");
+        builder.setReadyTimeout("1s");
+        assertFalse(builder.perform(build, launcher, listener), "Not terminated when not ready");
+        assertThat(outputStream.toString(StandardCharsets.UTF_8), containsString("Not ready after <1s>. Terminated"));
+    }
+
+    @Test
+    void testPerformParallelCommandLines(TestInfo info) throws Exception {
+        FreeStyleProject project = rule.createFreeStyleProject(
+                "job-" + info.getTestMethod().orElseThrow().getName());
+        Launcher launcher = rule.createLocalLauncher();
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        BuildListener listener = new StreamBuildListener(outputStream, StandardCharsets.UTF_8);
+        AbstractBuild build = project.scheduleBuild2(0).get();
+        builder = new XShellBuilder("echo one\necho two\necho three", workingDir, executeFromWorkingDir, null, null);
+        builder.setCommandPerLine(true);
+        builder.setParallelism(2);
+        assertTrue(builder.perform(build, launcher, listener), "Failed in perform");
+        String log = outputStream.toString(StandardCharsets.UTF_8);
+        assertThat(log, containsString("[1] one"));
+        assertThat(log, containsString("[2] two"));
+        assertThat(log, containsString("[3] three"));
+        assertThat(log, containsString("3 of 3 commands succeeded"));
+    }
+
+    @Test
+    @EnabledOnOs(OS.LINUX)
+    void testPerformKeepsEnvironment(TestInfo info) throws Exception {
+        FreeStyleProject project = rule.createFreeStyleProject(
+                "job-" + info.getTestMethod().orElseThrow().getName());
+        EnvironmentVariablesNodeProperty property = new EnvironmentVariablesNodeProperty(
+                new EnvironmentVariablesNodeProperty.Entry("HOME", "/xshell/home"));
+        rule.jenkins.getGlobalNodeProperties().add(property);
+        try {
+            ValueAction action = new ValueAction();
+            project.getBuildersList().add(new ValueBuilder(action, "one"));
+            project.getBuildersList().add(new XShellBuilder("env", workingDir, executeFromWorkingDir, null, null));
+            project.getBuildersList().add(new ValueBuilder(action, "two"));
+            project.getBuildersList().add(new XShellBuilder("env", workingDir, executeFromWorkingDir, null, null));
+            FreeStyleBuild build = rule.buildAndAssertSuccess(project);
+            String log = JenkinsRule.getLog(build);
+            // A variable of the build that differs from the agent's reaches the child, and so does
+            // one that the child inherits from the agent.
+            String home = "HOME=/xshell/home\n";
+            assertThat(log.indexOf(home) != log.lastIndexOf(home), is(true));
+            String path = "PATH=" + System.getenv("PATH") + "\n";
+            assertThat(log.indexOf(path) != log.lastIndexOf(path), is(true));
+            // A value changed in place between the steps is seen by the second one.
+            String one = "XSHELL_VALUE=one\n";
+            String two = "XSHELL_VALUE=two\n";
+            assertThat(log.indexOf(one) >= 0 && log.indexOf(one) == log.lastIndexOf(one), is(true));
+            assertThat(log.indexOf(two) > log.indexOf(one) && log.indexOf(two) == log.lastIndexOf(two), is(true));
+        } finally {
+            rule.jenkins.getGlobalNodeProperties().remove(property);
+        }
+    }
+
+    /** An action whose variable is changed in place by the steps of a build. */
+    private static final class ValueAction extends InvisibleAction implements EnvironmentContributingAction {
+        private volatile String value;
+
+        @Override
+        public void buildEnvironment(Run<?, ?> run, EnvVars env) {
+            env.put("XSHELL_VALUE", value);
+        }
+    }
+
+    /** Sets the value of a {@link ValueAction}, adding it to the build the first time. */
+    private static final class ValueBuilder extends TestBuilder {
+        private final transient ValueAction action;
+        private final String value;
+
+        ValueBuilder(ValueAction action, String value) {
+            this.action = action;
+            this.value = value;
+        }
+
+        @Override
+        public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) {
+            action.value = value;
+            if (build.getAction(ValueAction.class) == null) {
+                build.addAction(action);
+            }
+            return true;
+        }
+    }
+
+    @Test
+    void testPerformRecordsMetrics(TestInfo info) throws Exception {
+        FreeStyleProject project = rule.createFreeStyleProject(
+                "job-" + info.getTestMethod().orElseThrow().getName());
+        Launcher launcher = rule.createLocalLauncher();
+        OutputStream outputStream = new ByteArrayOutputStream();
+        BuildListener listener = new StreamBuildListener(outputStream, StandardCharsets.UTF_8);
+        AbstractBuild build = project.scheduleBuild2(0).get();
+        builder = new XShellBuilder("echo metrics", workingDir, executeFromWorkingDir, null, null);
+        assertTrue(builder.perform(build, launcher, listener), "Failed in perform");
+        XShellMetricsAction action = build.getAction(XShellMetricsAction.class);
+        assertThat(action.getCommands().size(), is(1));
+        XShellMetrics metrics = action.getCommands().get(0);
+        assertThat(metrics.getCommandLine(), is("echo metrics"));
+        assertThat(metrics.getExitCode(), is(0));
+        assertThat(metrics.getOutputLines(), is(1L));
+        assertThat(metrics.getOutputBytes(), greaterThanOrEqualTo(8L));
+    }
+
+    @Test
+    @EnabledOnOs(OS.LINUX)
+    void testPerformSamplesOnlyWhenEnabled(TestInfo info) throws Exception {
+        FreeStyleProject project = rule.createFreeStyleProject(
+                "job-" + info.getTestMethod().orElseThrow().getName());
+        Launcher launcher = rule.createLocalLauncher();
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        BuildListener listener = new StreamBuildListener(outputStream, StandardCharsets.UTF_8);
+        AbstractBuild build = project.scheduleBuild2(0).get();
+        builder = new XShellBuilder(
+                "sleep 2; echo \"id=<$" + ProcessMonitor.COOKIE_VARIABLE + ">\"", workingDir, false, null, null);
+        builder.setScriptMode(true);
+        assertTrue(builder.perform(build, launcher, listener), "Failed in perform");
+        assertThat(outputStream.toString(StandardCharsets.UTF_8), containsString("id=<>"));
+        assertThat(build.getAction(XShellMetricsAction.class).getCommands().get(0).getSamples(), is(0));
+
+        outputStream.reset();
+        ProcessMonitor.INTERVAL = 200;
+        try {
+            assertTrue(builder.perform(build, launcher, listener), "Failed in perform");
+        } finally {
+            ProcessMonitor.INTERVAL = 0;
+        }
+        assertThat(outputStream.toString(StandardCharsets.UTF_8), not(containsString("id=<>")));
+        List<XShellMetrics> commands = build.getAction(XShellMetricsAction.class).getCommands();
+        assertThat(commands.get(commands.size() - 1).getSamples(), greaterThanOrEqualTo(1));
+    }
+
+    @Test
+    @EnabledOnOs(OS.LINUX)
+    void testPerformSpoolsOnAgent(TestInfo info) throws Exception {
+        FreeStyleProject project = rule.createFreeStyleProject(
+                "job-" + info.getTestMethod().orElseThrow().getName());
+        Launcher launcher = rule.createLocalLauncher();
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        BuildListener listener = new StreamBuildListener(outputStream, StandardCharsets.UTF_8);
+        AbstractBuild build = project.scheduleBuild2(0).get();
+        builder = new XShellBuilder("seq 1 100", workingDir, false, "^50$", null);
+        builder.setSpoolOutput(true);
+        builder.setConsoleHeadLines(2);
+        builder.setConsoleTailLines(2);
+        assertFalse(builder.perform(build, launcher, listener), "Not killed by regex");
+        String log = outputStream.toString(StandardCharsets.UTF_8);
+        assertThat(log, containsString("\n1\n2\n"));
+        assertThat(log, containsString("[xshell] ... "));
+        assertThat(log, containsString("\n49\n50\n"));
+        assertThat(log, containsString("Matched <^50$> in output. Terminated"));
+        XShellSpoolAction.Spool spool = build.getAction(XShellSpoolAction.class).getSpools().get(0);
+        assertThat(spool.getLines(), greaterThanOrEqualTo(50L));
+        assertThat(spool.getMatches().get(0), is(49L));
+        assertThat(log, containsString("[xshell] Full output: " + spool.getLines() + " lines"));
+        assertTrue(new File(spool.getPath() + ".idx").isFile(), "No index next to the spool");
+    }
+
     @Test
     void testConvertSeparator() {
         String newSeparator = "/";
@@ -0,0 +1,51 @@
+package hudson.plugins.xshell;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.nio.file.Path;
+import java.util.List;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Test the flight recorder events and counters.
+ */
+class XShellEventsTest {
+
+    @Test
+    void testPhaseCountedAndRecorded(@TempDir Path dir) throws Exception {
+        final long count = XShellEvents.Phase.CONVERSION.getCount();
+        final Path file = dir.resolve("xshell.jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable("hudson.plugins.xshell.Phase");
+            recording.enable("hudson.plugins.xshell.Kill");
+            recording.start();
+            XShellEvents.begin(XShellEvents.Phase.CONVERSION).end("echo hello");
+            XShellEvents.beginKill("Timed out <1s>. Terminated", false)
+                    .end(new ProcessGroup.Report(42, "SIGTERM", true));
+            recording.stop();
+            recording.dump(file);
+        }
+        assertThat(XShellEvents.Phase.CONVERSION.getCount(), is(count + 1));
+
+        final List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+        assertThat(events.size(), is(2));
+        final RecordedEvent phase = events.stream()
+                .filter(e -> e.getEventType().getName().equals("hudson.plugins.xshell.Phase"))
+                .findFirst()
+                .orElseThrow();
+        assertThat(phase.getString("phase"), is("conversion"));
+        assertThat(phase.getString("command"), is("echo hello"));
+        final RecordedEvent kill = events.stream()
+                .filter(e -> e.getEventType().getName().equals("hudson.plugins.xshell.Kill"))
+                .findFirst()
+                .orElseThrow();
+        assertThat(kill.getString("reason"), is("Timed out <1s>. Terminated"));
+        assertThat(kill.getLong("processGroup"), is(42L));
+        assertThat(kill.getString("signal"), is("SIGTERM"));
+    }
+}
@@ -0,0 +1,220 @@
+package hudson.plugins.xshell;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import hudson.console.ConsoleLogFilter;
+import hudson.console.LineTransformationOutputStream;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Result;
+import hudson.model.Run;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.condition.EnabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+import org.junit.jupiter.api.io.TempDir;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestExtension;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+
+/**
+ * Load test: many freestyle jobs with an xshell step running at the same time. Skipped by the
+ * regular build, run it with {@code mvn test -Dloadtest}.
+ *
+ * <p>A third of the jobs print timestamped lines at a steady rate, a third print a line that
+ * matches the kill regex and a third run out of time. The console of every build goes through a
+ * filter that notes when each timestamped line arrives, which gives the latency from the child's
+ * write to the console, and the time between a match or a deadline and the end of the child, which
+ * gives the kill latency. The controller's CPU time and heap are sampled during the run.
+ *
+ * <p>The size of the run is set with the system properties {@code loadtest.jobs} (default 200),
+ * {@code loadtest.lines} (lines per job, default 50) and {@code loadtest.interval} (seconds
+ * between lines, default 0.02). The report is only written to the file named by {@code
+ * loadtest.report}, not printed.
+ */
+@WithJenkins
+@EnabledOnOs(OS.LINUX)
+class XShellLoadTest {
+
+    private static final int JOBS = Integer.getInteger("loadtest.jobs", 200);
+    private static final int LINES = Integer.getInteger("loadtest.lines", 50);
+    private static final String INTERVAL = System.getProperty("loadtest.interval", "0.02");
+    private static final String TIME_ALLOCATED = "2s";
+
+    /** Latencies in milliseconds, recorded by the console filter. */
+    static final Queue<Long> OUTPUT_LATENCIES = new ConcurrentLinkedQueue<>();
+
+    /** Time the child printed its kill line, by build. */
+    static final Map<String, Long> MATCHED_AT = new ConcurrentHashMap<>();
+
+    @Test
+    @EnabledIfSystemProperty(named = "loadtest.run", matches = "true")
+    void testConcurrentSteps(JenkinsRule rule, @TempDir Path dir) throws Exception {
+        final Path script = dir.resolve("emit.sh");
+        Files.write(
+                script,
+                ("i=0\n"
+                                + "while [ \"$i\" -lt \"$1\" ]; do\n"
+                                + "  echo \"tick $(date +%s%3N)\"\n"
+                                + "  sleep \"$2\"\n"
+                                + "  i=$((i + 1))\n"
+                                + "done\n"
+                                + "if [ -n \"$3\" ]; then echo \"$3 $(date +%s%3N)\"; sleep 60; fi\n")
+                        .getBytes(StandardCharsets.US_ASCII));
+        rule.jenkins.setNumExecutors(JOBS);
+
+        final List<FreeStyleProject> projects = new ArrayList<>(JOBS);
+        for (int i = 0; i < JOBS; i++) {
+            final FreeStyleProject project = rule.createFreeStyleProject("load-" + i);
+            final String emit = "sh " + script + " " + LINES + " " + INTERVAL;
+            final XShellBuilder builder;
+            switch (i % 3) {
+                case 0:
+                    builder = new XShellBuilder(emit, null, false, null, null);
+                    break;
+                case 1:
+                    builder = new XShellBuilder(emit + " FATAL", null, false, "^FATAL", null);
+                    break;
+                default:
+                    builder = new XShellBuilder(emit + " stalled", null, false, null, TIME_ALLOCATED);
+                    break;
+            }
+            project.getBuildersList().add(builder);
+            projects.add(project);
+        }
+
+        final Sampler sampler = new Sampler();
+        final long start = System.nanoTime();
+        final List<Future<FreeStyleBuild>> builds = new ArrayList<>(JOBS);
+        for (FreeStyleProject project : projects) {
+            builds.add(project.scheduleBuild2(0));
+        }
+        final List<Long> killLatencies = new ArrayList<>();
+        final List<Long> deadlineLatencies = new ArrayList<>();
+        for (int i = 0; i < JOBS; i++) {
+            final FreeStyleBuild build = builds.get(i).get(10, TimeUnit.MINUTES);
+            final XShellMetrics metrics =
+                    build.getAction(XShellMetricsAction.class).getCommands().get(0);
+            final long end = metrics.getStartTime() + metrics.getDurationMillis();
+            switch (i % 3) {
+                case 0:
+                    rule.assertBuildStatus(Result.SUCCESS, build);
+                    assertThat(metrics.getOutputLines(), is((long) LINES));
+                    break;
+                case 1:
+                    rule.assertBuildStatus(Result.FAILURE, build);
+                    assertThat(build.getLog(), containsString("Matched <^FATAL> in output"));
+                    killLatencies.add(end - MATCHED_AT.get(build.getExternalizableId()));
+                    break;
+                default:
+                    rule.assertBuildStatus(Result.FAILURE, build);
+                    assertThat(metrics.isTerminated(), is(true));
+                    deadlineLatencies.add(end - metrics.getStartTime() - TimeLimit.parse(TIME_ALLOCATED));
+                    break;
+            }
+        }
+        final long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        sampler.stop();
+
+        final String report = "{\n"
+                + "  \"jobs\": " + JOBS + ",\n"
+                + "  \"linesPerJob\": " + LINES + ",\n"
+                + "  \"elapsedMillis\": " + elapsedMillis + ",\n"
+                + "  \"stepsPerSecond\": " + String.format("%.2f", JOBS * 1000.0 / elapsedMillis) + ",\n"
+                + "  \"controllerCpuCores\": " + String.format("%.2f", sampler.cpuCores(elapsedMillis)) + ",\n"
+                + "  \"controllerPeakHeapBytes\": " + sampler.peakHeap.get() + ",\n"
+                + "  \"outputLatencyMillis\": " + percentiles(new ArrayList<>(OUTPUT_LATENCIES)) + ",\n"
+                + "  \"regexKillLatencyMillis\": " + percentiles(killLatencies) + ",\n"
+                + "  \"deadlineKillLatencyMillis\": " + percentiles(deadlineLatencies) + "\n"
+                + "}\n";
+        final Path file = Paths.get(System.getProperty("loadtest.report", "target/loadtest-report.json"));
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        Files.write(file, report.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String percentiles(final List<Long> values) {
+        if (values.isEmpty()) {
+            return "{}";
+        }
+        Collections.sort(values);
+        return "{\"p50\": " + values.get(values.size() / 2)
+                + ", \"p95\": " + values.get((int) (values.size() * 0.95))
+                + ", \"p99\": " + values.get((int) (values.size() * 0.99))
+                + ", \"max\": " + values.get(values.size() - 1)
+                + ", \"count\": " + values.size() + "}";
+    }
+
+    /** Samples the CPU time and heap of the controller. */
+    private static final class Sampler {
+        private final com.sun.management.OperatingSystemMXBean os =
+                (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+        private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        private final long cpuStart = os.getProcessCpuTime();
+        private final AtomicLong peakHeap = new AtomicLong();
+        private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+
+        Sampler() {
+            timer.scheduleAtFixedRate(
+                    () -> peakHeap.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max),
+                    0,
+                    200,
+                    TimeUnit.MILLISECONDS);
+        }
+
+        /** Average number of cores the controller kept busy. */
+        double cpuCores(final long elapsedMillis) {
+            return (os.getProcessCpuTime() - cpuStart) / 1e6 / elapsedMillis;
+        }
+
+        void stop() {
+            timer.shutdownNow();
+        }
+    }
+
+    /** Notes when the timestamped lines of the children reach the console. */
+    @TestExtension("testConcurrentSteps")
+    public static final class LatencyFilter extends ConsoleLogFilter implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public OutputStream decorateLogger(final Run build, final OutputStream logger) {
+            final String id = build.getExternalizableId();
+            return new LineTransformationOutputStream.Delegating(logger) {
+                @Override
+                protected void eol(final byte[] b, final int len) throws IOException {
+                    final long now = System.currentTimeMillis();
+                    out.write(b, 0, len);
+                    final String line = new String(b, 0, len, StandardCharsets.US_ASCII).trim();
+                    if (line.startsWith("tick ")) {
+                        OUTPUT_LATENCIES.add(now - Long.parseLong(line.substring(5)));
+                    } else if (line.startsWith("FATAL ")) {
+                        MATCHED_AT.put(id, Long.parseLong(line.substring(6)));
+                    }
+                }
+            };
+        }
+    }
+}
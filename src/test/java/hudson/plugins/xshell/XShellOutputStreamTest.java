@@ -0,0 +1,79 @@
+package hudson.plugins.xshell;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test the output pump.
+ */
+class XShellOutputStreamTest {
+
+    @Test
+    void testBytesArePassedThrough() throws IOException {
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        XShellOutputStream out = new XShellOutputStream(
+                log, KillPatterns.compile("never"), StandardCharsets.UTF_8, pattern -> {});
+        byte[] bytes = {(byte) 0xff, 'a', (byte) 0xc3, '\n'};
+        out.write(bytes);
+        assertThat(log.toByteArray(), is(bytes));
+        assertThat(out.getBytes(), is(4L));
+        assertThat(out.getLines(), is(1L));
+    }
+
+    @Test
+    void testCharacterSplitBetweenChunks() throws IOException {
+        List<String> matches = new ArrayList<>();
+        XShellOutputStream out = new XShellOutputStream(
+                new ByteArrayOutputStream(),
+                KillPatterns.compile("fatal: déjà vu"),
+                StandardCharsets.UTF_8,
+                matches::add);
+        byte[] bytes = "fatal: déjà vu\n".getBytes(StandardCharsets.UTF_8);
+        for (byte b : bytes) {
+            out.write(new byte[] {b}, 0, 1);
+        }
+        assertThat(matches, is(List.of("fatal: déjà vu")));
+    }
+
+    @Test
+    void testNoDecodingWithoutPatterns() throws IOException {
+        String[] matched = new String[1];
+        XShellOutputStream out = new XShellOutputStream(
+                new ByteArrayOutputStream(),
+                KillPatterns.NONE,
+                StandardCharsets.UTF_8,
+                pattern -> matched[0] = pattern);
+        out.write("anything\n".getBytes(StandardCharsets.UTF_8));
+        assertThat(matched[0], is(nullValue()));
+    }
+
+    @Test
+    void testEarliestOfKillAndReadyWins() throws IOException {
+        List<String> killed = new ArrayList<>();
+        List<String> ready = new ArrayList<>();
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        XShellOutputStream out = new XShellOutputStream(
+                log,
+                KillPatterns.compile("FATAL"),
+                KillPatterns.compile("listening on \\d+"),
+                StandardCharsets.UTF_8,
+                killed::add,
+                ready::add);
+        out.write("starting\nlisten".getBytes(StandardCharsets.UTF_8));
+        out.write("ing on 80\nFATAL after\n".getBytes(StandardCharsets.UTF_8));
+        out.detach();
+        out.write("more\n".getBytes(StandardCharsets.UTF_8));
+        assertThat(killed, is(List.of()));
+        assertThat(ready, is(List.of("listening on \\d+")));
+        assertThat(log.toString(StandardCharsets.UTF_8), is("starting\nlistening on 80\nFATAL after\n"));
+        assertThat(out.getLines(), is(4L));
+    }
+}
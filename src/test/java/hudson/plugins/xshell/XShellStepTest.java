@@ -0,0 +1,81 @@
+package hudson.plugins.xshell;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import hudson.model.Result;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+
+/**
+ * Test the xshell Pipeline step.
+ */
+@WithJenkins
+class XShellStepTest {
+
+    @Test
+    void testEcho(JenkinsRule j) throws Exception {
+        WorkflowJob job = j.createProject(WorkflowJob.class);
+        job.setDefinition(new CpsFlowDefinition("node { xshell 'echo hello from xshell' }", true));
+        WorkflowRun run = j.buildAndAssertSuccess(job);
+        j.assertLogContains("hello from xshell", run);
+    }
+
+    @Test
+    void testKilledByRegex(JenkinsRule j) throws Exception {
+        WorkflowJob job = j.createProject(WorkflowJob.class);
+        job.setDefinition(new CpsFlowDefinition(
+                "node { xshell commandLine: 'echo xyzzy ate the grue', regexToKill: 'xyzzy.*grue' }", true));
+        WorkflowRun run = j.buildAndAssertStatus(Result.FAILURE, job);
+        j.assertLogContains("Matched <xyzzy.*grue> in output. Terminated", run);
+    }
+
+    @Test
+    void testBuilderSharedBetweenCalls(JenkinsRule j) throws Exception {
+        XShellStep.DescriptorImpl descriptor = j.jenkins.getDescriptorByType(XShellStep.DescriptorImpl.class);
+        XShellStep first = new XShellStep("echo one");
+        XShellStep second = new XShellStep("echo one");
+        XShellStep other = new XShellStep("echo one");
+        other.setRegexToKill("one");
+        assertThat(descriptor.builder(first), is(sameInstance(descriptor.builder(second))));
+        assertThat(descriptor.builder(first), is(not(sameInstance(descriptor.builder(other)))));
+    }
+
+    @Test
+    void testSequentialCalls(JenkinsRule j) throws Exception {
+        WorkflowJob job = j.createProject(WorkflowJob.class);
+        job.setDefinition(new CpsFlowDefinition(
+                "node { for (int i = 0; i < 3; i++) { xshell \"echo call $i\" } }", true));
+        WorkflowRun run = j.buildAndAssertSuccess(job);
+        j.assertLogContains("call 0", run);
+        j.assertLogContains("call 2", run);
+    }
+
+    @Test
+    void testLimitsClamped(JenkinsRule j) {
+        XShellStep step = new XShellStep("echo one");
+        step.setConsoleHeadLines(-1);
+        step.setConsoleTailLines(-1);
+        step.setParallelism(0);
+        assertThat(step.getConsoleHeadLines(), is(0));
+        assertThat(step.getConsoleTailLines(), is(0));
+        assertThat(step.getParallelism(), is(1));
+    }
+
+    @Test
+    @EnabledOnOs(OS.LINUX)
+    void testChildCarriesCookie(JenkinsRule j) throws Exception {
+        WorkflowJob job = j.createProject(WorkflowJob.class);
+        job.setDefinition(new CpsFlowDefinition("node { xshell 'env' }", true));
+        WorkflowRun run = j.buildAndAssertSuccess(job);
+        j.assertLogContains("JENKINS_NODE_COOKIE=", run);
+    }
+}
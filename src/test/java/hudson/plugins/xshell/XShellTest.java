@@ -24,6 +24,13 @@ class XShellTest {
         assertEquals("mycmd a/b", s);
     }
 
+    @Test
+    void testConvertSeparatorKeepsUrls(JenkinsRule jenkinsRule) {
+        String s = XShellBuilder.convertSeparator(
+                "curl -o out/a.txt https://example.com/a.txt git:repo/x ftp://host/f", XShellBuilder.WINDOWS_SEP);
+        assertEquals("curl -o out\\a.txt https://example.com/a.txt git:repo/x ftp://host/f", s);
+    }
+
     @Test
     void testEnvVarUnixToWin(JenkinsRule jenkinsRule) {
         String s = XShellBuilder.convertEnvVarsToWindows("mycmd $VAR");
@@ -0,0 +1,60 @@
+package hudson.plugins.xshell;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test the idle deadlines of the watchdog.
+ */
+class XShellWatchdogTest {
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+    @AfterEach
+    void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    private static XShellWatchdog.Target target(CountDownLatch terminated) {
+        return new XShellWatchdog.Target() {
+            @Override
+            public void terminate() {
+                terminated.countDown();
+            }
+
+            @Override
+            public void kill() {}
+        };
+    }
+
+    @Test
+    void testIdleDeadlineWaitsForQuietPeriod() throws Exception {
+        AtomicLong lastOutput = new AtomicLong(System.nanoTime());
+        CountDownLatch terminated = new CountDownLatch(1);
+        XShellWatchdog.scheduleIdle(scheduler, 200, 0, lastOutput::get, target(terminated));
+        long start = System.nanoTime();
+        for (int i = 0; i < 8; i++) {
+            Thread.sleep(50);
+            lastOutput.set(System.nanoTime());
+        }
+        assertThat(terminated.getCount(), is(1L));
+        assertThat(terminated.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), greaterThanOrEqualTo(600L));
+    }
+
+    @Test
+    void testCancelledIdleDeadlineNeverFires() throws Exception {
+        CountDownLatch terminated = new CountDownLatch(1);
+        XShellWatchdog.scheduleIdle(scheduler, 50, 0, System::nanoTime, target(terminated)).cancel();
+        assertThat(terminated.await(300, TimeUnit.MILLISECONDS), is(false));
+    }
+}